@@ -0,0 +1,254 @@
+package no.bankaxept.home.assignment.benchmarks.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for {@code POST /payment/pay}, reporting latency percentiles per outcome.
+ * <p>
+ * In open mode payments are sent at a fixed rate whatever the service does, and each latency is measured from the
+ * moment the payment was due to be sent, so a stalled service shows up in the percentiles instead of quietly
+ * lowering the load (coordinated omission). In closed mode a fixed number of clients each wait for their response
+ * before sending the next payment, which shows the throughput the service sustains. Without {@code --target} the
+ * service is started in this JVM against stub banks with the configured latency and error profile, so the slow
+ * payment processor of Assignment_b.md can be reproduced with, for example:
+ * <pre>
+ * java -cp payment-benchmarks/target/benchmarks.jar no.bankaxept.home.assignment.benchmarks.load.LoadGenerator \
+ *     --rate=500 --bigShare=0.5 --bankLatency.bigbank=5000 --bankErrorRate=0.05
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    private final LoadTestOptions options;
+    private final PaymentMix mix;
+    private final OutcomeHistograms histograms;
+    private final CloseableHttpAsyncClient client;
+    private final List<String> urls;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong();
+
+    private LoadGenerator(LoadTestOptions options, PaymentMix mix, OutcomeHistograms histograms, CloseableHttpAsyncClient client, List<String> urls) {
+        this.options = options;
+        this.mix = mix;
+        this.histograms = histograms;
+        this.client = client;
+        this.urls = urls;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options;
+        try {
+            options = new LoadTestOptions(args);
+            options.isOpenLoop();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        PaymentMix mix = new PaymentMix(options.bankWeights(), options.decimal("bigShare", 0.3),
+                options.integer("hotCards", 10), options.integer("coldCards", 10000), options.decimal("hotShare", 0.8));
+
+        String target = options.string("target", null);
+        LocalPaymentSystem local = target == null ? new LocalPaymentSystem(options, mix.allCards()) : null;
+        String histogramLog = options.string("histogramLog", null);
+        PrintStream logStream = histogramLog == null ? null : new PrintStream(new FileOutputStream(histogramLog), false, "UTF-8");
+        HistogramLogWriter logWriter = logStream == null ? null : histogramLogWriter(logStream);
+        int timeout = options.integer("timeout", 60000);
+        int maxConnections = Math.max(options.integer("maxInFlight", 2000), options.integer("concurrency", 32));
+        try (CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(timeout).setSocketTimeout(timeout).build())
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .build()) {
+            client.start();
+            List<String> urls = new ArrayList<>();
+            for (String node : target != null ? Arrays.asList(target.split(",")) : local.getUrls()) {
+                urls.add(node.trim() + "/payment/pay");
+            }
+            new LoadGenerator(options, mix, new OutcomeHistograms(logWriter), client, urls).run();
+        } finally {
+            if (logStream != null) {
+                logStream.close();
+            }
+            if (local != null) {
+                local.close();
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        boolean openLoop = options.isOpenLoop();
+        int warmupSeconds = options.integer("warmup", 5);
+        int durationSeconds = options.integer("duration", 30);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        System.out.printf("%s loop against %s: %s, %ds warm-up, %ds measured%n", openLoop ? "Open" : "Closed", String.join(", ", urls),
+                openLoop ? options.integer("rate", 200) + " payments/s" : options.integer("concurrency", 32) + " clients",
+                warmupSeconds, durationSeconds);
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger second = new AtomicInteger();
+        sampler.scheduleAtFixedRate(() -> progress(second.incrementAndGet(), warmupSeconds), 1, 1, TimeUnit.SECONDS);
+        try {
+            if (openLoop) {
+                runOpenLoop(start, end);
+            } else {
+                runClosedLoop(end);
+            }
+            // Let the last responses arrive, so slow ones are not left out of the percentiles
+            long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.integer("timeout", 60000));
+            while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } finally {
+            sampler.shutdownNow();
+            sampler.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        histograms.sample(second.get() >= warmupSeconds);
+
+        System.out.printf("%nSent %d payments%n", sent.get());
+        histograms.report(System.out, durationSeconds);
+    }
+
+    private void runOpenLoop(long start, long end) {
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / (double) options.integer("rate", 200);
+        int maxInFlight = options.integer("maxInFlight", 2000);
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * intervalNanos);
+            if (intended >= end) {
+                return;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (inFlight.get() >= maxInFlight) {
+                // The client cannot keep up with the rate; count the payment rather than silently skipping it
+                histograms.record("dropped", System.nanoTime() - intended);
+                continue;
+            }
+            send(intended);
+        }
+    }
+
+    private void runClosedLoop(long end) throws InterruptedException {
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < options.integer("concurrency", 32); i++) {
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+                    try {
+                        send(System.nanoTime()).get();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (ExecutionException e) {
+                        // Recorded by the callback
+                    }
+                }
+            }, "load-client-" + i);
+            thread.start();
+            clients.add(thread);
+        }
+        for (Thread thread : clients) {
+            thread.join();
+        }
+    }
+
+    private Future<HttpResponse> send(long startNanos) {
+        // Spread over the nodes the way a load balancer would, regardless of which node owns the card
+        HttpPost request = new HttpPost(urls.get((int) (sent.getAndIncrement() % urls.size())));
+        request.setEntity(new StringEntity(mix.next(), ContentType.APPLICATION_JSON));
+        inFlight.incrementAndGet();
+        return client.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                String outcome;
+                try {
+                    outcome = classify(response.getStatusLine().getStatusCode(), EntityUtils.toString(response.getEntity()));
+                } catch (IOException e) {
+                    outcome = "connection_error";
+                }
+                done(outcome);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                done(e instanceof SocketTimeoutException ? "timeout" : "connection_error");
+            }
+
+            @Override
+            public void cancelled() {
+                done("cancelled");
+            }
+
+            private void done(String outcome) {
+                histograms.record(outcome, System.nanoTime() - startNanos);
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    private void progress(int second, int warmupSeconds) {
+        Map<String, Histogram> interval = histograms.sample(second > warmupSeconds);
+        long responses = interval.values().stream().mapToLong(Histogram::getTotalCount).sum();
+        Histogram paid = interval.get("paid");
+        System.out.printf("%4ds%s %6d responses/s, %5d in flight, paid p99 %s%n", second, second > warmupSeconds ? " " : "*",
+                responses, inFlight.get(),
+                paid == null || paid.getTotalCount() == 0 ? "-" : String.format("%.1f ms", paid.getValueAtPercentile(99) / 1000.0));
+    }
+
+    static String classify(int status, String body) {
+        if (status == 200) {
+            if (body.contains("\"currentAccountBalance\"")) {
+                return "paid";
+            } else if (body.contains("Insufficient funds")) {
+                return "declined";
+            } else if (body.contains("Bank validation failed")) {
+                return "bank_rejected";
+            } else if (body.contains("IO error")) {
+                return "io_error";
+            } else if (body.contains("Database error")) {
+                return "database_error";
+            }
+            return "other_error";
+        } else if (status == 429) {
+            return "throttled";
+        } else if (status == 503) {
+            return "unavailable";
+        }
+        return "http_" + status;
+    }
+
+    private static HistogramLogWriter histogramLogWriter(PrintStream stream) {
+        HistogramLogWriter writer = new HistogramLogWriter(stream);
+        writer.outputLogFormatVersion();
+        writer.outputStartTime(System.currentTimeMillis());
+        writer.outputLegend();
+        return writer;
+    }
+}
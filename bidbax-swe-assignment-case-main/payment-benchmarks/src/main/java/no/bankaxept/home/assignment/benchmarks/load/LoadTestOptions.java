@@ -0,0 +1,89 @@
+package no.bankaxept.home.assignment.benchmarks.load;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command line of the load generator, as {@code --name=value} arguments. Every option has a default, so a bare
+ * run starts the service locally with stub banks and drives it open loop at 200 payments a second for 30 seconds.
+ */
+class LoadTestOptions {
+
+    static final String USAGE = String.join("\n",
+            "Options (--name=value):",
+            "  mode=open|closed        open: fixed arrival rate; closed: fixed number of clients (open)",
+            "  rate=200                payments per second in open mode",
+            "  concurrency=32          clients in closed mode",
+            "  maxInFlight=2000        open mode: requests outstanding before new ones are counted as dropped",
+            "  duration=30             measured seconds",
+            "  warmup=5                seconds run before measuring",
+            "  timeout=60000           client timeout in milliseconds",
+            "  target=URL[,URL...]     payment service to test, e.g. http://localhost:8080; started locally if absent.",
+            "                          Payments are spread round robin over several URLs",
+            "  nodes=1                 local service: instances started on one shared database, cards sharded between them",
+            "  nodeProcesses=false     local service: run every node in a JVM of its own instead of in this one",
+            "  nodeCpus=               with nodeProcesses, the CPUs of each node for taskset, separated by /, e.g. 0-1/2-3",
+            "  banks=The Big Bank:1,The Cashiers:1,Loaners:1   banks and their weights",
+            "  bigShare=0.3            share of payments above the bank's big payment threshold",
+            "  hotCards=10             cards that receive hotShare of the payments",
+            "  coldCards=10000         cards that receive the rest",
+            "  hotShare=0.8",
+            "  bankLatency=100         local stub banks: delay in milliseconds, per bank with bankLatency.<id>",
+            "  bankJitter=0            extra random delay up to this many milliseconds, per bank with bankJitter.<id>",
+            "  bankErrorRate=0         share of bank calls failing with 503, per bank with bankErrorRate.<id>",
+            "                          (<id> is bigbank, cashiers or loaners)",
+            "  histogramLog=FILE       also write the interval histograms in HdrHistogram log format");
+
+    private final Map<String, String> values = new HashMap<>();
+
+    LoadTestOptions(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg + "\n" + USAGE);
+            }
+            int separator = arg.indexOf('=');
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+    }
+
+    boolean isOpenLoop() {
+        String mode = string("mode", "open");
+        if (!mode.equals("open") && !mode.equals("closed")) {
+            throw new IllegalArgumentException("mode must be open or closed, not " + mode);
+        }
+        return mode.equals("open");
+    }
+
+    String string(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int integer(String name, int defaultValue) {
+        return values.containsKey(name) ? Integer.parseInt(values.get(name)) : defaultValue;
+    }
+
+    double decimal(String name, double defaultValue) {
+        return values.containsKey(name) ? Double.parseDouble(values.get(name)) : defaultValue;
+    }
+
+    /**
+     * A per-bank value such as {@code bankLatency.loaners}, falling back to {@code bankLatency}.
+     */
+    double perBank(String name, String bankId, double defaultValue) {
+        return decimal(name + "." + bankId, decimal(name, defaultValue));
+    }
+
+    Map<String, Integer> bankWeights() {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : string("banks", "The Big Bank:1,The Cashiers:1,Loaners:1").split(",")) {
+            int separator = entry.lastIndexOf(':');
+            if (separator < 0) {
+                weights.put(entry.trim(), 1);
+            } else {
+                weights.put(entry.substring(0, separator).trim(), Integer.parseInt(entry.substring(separator + 1).trim()));
+            }
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,217 @@
+package no.bankaxept.home.assignment.benchmarks.load;
+
+import no.bankaxept.home.assignment.service.bank.StubBankServer;
+import no.bankaxept.home.assignment.web.PaymentApplication;
+import org.h2.tools.Server;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The payment service started in this JVM, talking to local stub banks with the configured latency and error
+ * profiles, with a balance for every card the load uses.
+ * <p>
+ * With {@code --nodes} above 1, that many instances are started on their own ports against one shared database,
+ * with the cards sharded between them, as a cluster of payment nodes would be. By default they share this JVM and
+ * its cores. With {@code --nodeProcesses=true} every node is a JVM of its own, reaching the database through an H2
+ * TCP server in this one, and {@code --nodeCpus} pins each node to its own cores with {@code taskset}, so a run
+ * shows how throughput grows with nodes that do not compete for a CPU. The shared database still serialises the
+ * debits of all nodes, as a single database would in production.
+ */
+class LocalPaymentSystem implements AutoCloseable {
+
+    private static final int CARD_BALANCE = 1_000_000_000;
+    private static final long NODE_START_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private final List<StubBankServer> banks = new ArrayList<>();
+    private final Path queueDirectory;
+    private final List<String> urls = new ArrayList<>();
+    private final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+    private Server databaseServer;
+
+    LocalPaymentSystem(LoadTestOptions options, List<String> cards) throws IOException {
+        StubBankServer bigBank = startBank(options, "bigbank");
+        StubBankServer cashiers = startBank(options, "cashiers");
+        StubBankServer loaners = startBank(options, "loaners");
+        queueDirectory = Files.createTempDirectory("payment-queue");
+
+        int nodeCount = options.integer("nodes", 1);
+        boolean separateProcesses = Boolean.parseBoolean(options.string("nodeProcesses", "false"));
+        String[] nodeCpus = options.string("nodeCpus", "").isEmpty() ? new String[0] : options.string("nodeCpus", "").split("/");
+        if (nodeCpus.length > 0 && (!separateProcesses || nodeCpus.length != nodeCount)) {
+            throw new IllegalArgumentException("nodeCpus needs nodeProcesses=true and one CPU list per node");
+        }
+        for (int port : freePorts(nodeCount + 1)) {
+            urls.add("http://localhost:" + port);
+        }
+        // The last port is the database's when the nodes run in processes of their own
+        int databasePort = port(urls.remove(nodeCount));
+        String databaseName = "mem:payments-" + UUID.randomUUID();
+        String database = separateProcesses
+                ? "jdbc:h2:tcp://localhost:" + databasePort + "/" + databaseName + ";DB_CLOSE_DELAY=-1;QUERY_CACHE_SIZE=64"
+                : "jdbc:h2:" + databaseName + ";DB_CLOSE_DELAY=-1;QUERY_CACHE_SIZE=64";
+        try {
+            if (separateProcesses) {
+                databaseServer = Server.createTcpServer("-tcpPort", String.valueOf(databasePort), "-ifNotExists").start();
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                String[] args = {
+                        "--server.port=" + port(urls.get(i)),
+                        "--logging.level.root=ERROR",
+                        // The nodes would register their beans under the same names
+                        "--spring.jmx.enabled=false",
+                        "--spring.datasource.url=" + database,
+                        // The first node creates the tables
+                        "--spring.datasource.initialization-mode=" + (i == 0 ? "embedded" : "never"),
+                        "--bank.bigbank.url=" + bigBank.getUrl(),
+                        "--bank.cashiers.url=" + cashiers.getUrl(),
+                        "--bank.loaners.url=" + loaners.getUrl(),
+                        "--payment.queue.directory=" + queueDirectory.resolve("node-" + i),
+                        "--payment.shard.enabled=" + (nodeCount > 1),
+                        "--payment.shard.self=" + urls.get(i),
+                        "--payment.shard.nodes=" + String.join(",", urls)};
+                if (separateProcesses) {
+                    // One at a time, so the first has created the tables before the others look for them
+                    processes.add(startProcess(i, nodeCpus.length > 0 ? nodeCpus[i] : null, args));
+                    awaitHealthy(urls.get(i), processes.get(i));
+                } else {
+                    nodes.add(SpringApplication.run(PaymentApplication.class, args));
+                }
+            }
+
+            List<Object[]> balances = cards.stream()
+                    .map(card -> new Object[]{card, CARD_BALANCE})
+                    .collect(Collectors.toList());
+            JdbcTemplate jdbcTemplate = separateProcesses
+                    ? new JdbcTemplate(new DriverManagerDataSource(database, "sa", ""))
+                    : nodes.get(0).getBean(JdbcTemplate.class);
+            jdbcTemplate.batchUpdate("INSERT INTO balance (cardNumber, amount) VALUES (?, ?)", balances);
+        } catch (RuntimeException | IOException e) {
+            // Otherwise the nodes already started keep the JVM running
+            close();
+            throw e;
+        } catch (SQLException e) {
+            close();
+            throw new IOException("Could not start the database server", e);
+        }
+    }
+
+    List<String> getUrls() {
+        return urls;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The database lives as long as the JVM, so the nodes can be closed in any order
+        nodes.forEach(ConfigurableApplicationContext::close);
+        for (Process process : processes) {
+            process.destroy();
+            try {
+                if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+            }
+        }
+        if (databaseServer != null) {
+            databaseServer.stop();
+        }
+        banks.forEach(StubBankServer::close);
+        try (Stream<Path> paths = Files.walk(queueDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // The same classes as this JVM, started under taskset when the node has CPUs of its own; the output goes to a log
+    // file next to the node's queue
+    private Process startProcess(int node, String cpus, String[] args) throws IOException {
+        List<String> command = new ArrayList<>();
+        if (cpus != null) {
+            command.addAll(Arrays.asList("taskset", "-c", cpus));
+        }
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), PaymentApplication.class.getName()));
+        command.addAll(Arrays.asList(args));
+        File log = queueDirectory.resolve("node-" + node + ".log").toFile();
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    private static void awaitHealthy(String url, Process process) throws IOException {
+        long deadline = System.currentTimeMillis() + NODE_START_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("Node " + url + " exited with status " + process.exitValue() + " while starting");
+            }
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url + "/actuator/health").openConnection();
+                connection.setConnectTimeout(1000);
+                connection.setReadTimeout(1000);
+                if (connection.getResponseCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for node " + url, e);
+            }
+        }
+        throw new IOException("Node " + url + " did not become healthy within " + NODE_START_TIMEOUT_MS + " ms");
+    }
+
+    private static int port(String url) {
+        return Integer.parseInt(url.substring(url.lastIndexOf(':') + 1));
+    }
+
+    // Held open together, so no two nodes are given the same port
+    private static int[] freePorts(int count) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[count];
+        try {
+            int[] ports = new int[count];
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+            return ports;
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private StubBankServer startBank(LoadTestOptions options, String bankId) throws IOException {
+        StubBankServer bank = new StubBankServer((long) options.perBank("bankLatency", bankId, 100));
+        bank.setJitterMillis((long) options.perBank("bankJitter", bankId, 0));
+        bank.setErrorRate(options.perBank("bankErrorRate", bankId, 0));
+        banks.add(bank);
+        return bank;
+    }
+}
@@ -0,0 +1,75 @@
+package no.bankaxept.home.assignment.benchmarks.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms per outcome, recorded in microseconds.
+ * <p>
+ * Recording is lock free. {@link #sample} collects what was recorded since the last sample into the running
+ * totals, and optionally into an HdrHistogram log.
+ */
+class OutcomeHistograms {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> totals = new TreeMap<>();
+    private final HistogramLogWriter logWriter;
+
+    OutcomeHistograms(HistogramLogWriter logWriter) {
+        this.logWriter = logWriter;
+    }
+
+    void record(String outcome, long latencyNanos) {
+        long micros = Math.min(HIGHEST_TRACKABLE_MICROS, Math.max(1, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        recorders.computeIfAbsent(outcome, key -> new Recorder(HIGHEST_TRACKABLE_MICROS, 3)).recordValue(micros);
+    }
+
+    /**
+     * Moves what was recorded since the last call into the totals and returns the interval's histograms.
+     *
+     * @param keep whether the interval counts towards the totals; false during warm-up
+     */
+    synchronized Map<String, Histogram> sample(boolean keep) {
+        Map<String, Histogram> interval = new TreeMap<>();
+        recorders.forEach((outcome, recorder) -> {
+            Histogram histogram = recorder.getIntervalHistogram();
+            interval.put(outcome, histogram);
+            if (keep) {
+                totals.computeIfAbsent(outcome, key -> new Histogram(HIGHEST_TRACKABLE_MICROS, 3)).add(histogram);
+                if (logWriter != null && histogram.getTotalCount() > 0) {
+                    histogram.setTag(outcome);
+                    logWriter.outputIntervalHistogram(histogram);
+                }
+            }
+        });
+        return interval;
+    }
+
+    synchronized void report(PrintStream out, double seconds) {
+        out.printf("%-18s %10s %10s %10s %10s %10s %10s %10s %10s%n",
+                "outcome", "count", "per sec", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "p99.99 ms", "max ms");
+        totals.forEach((outcome, histogram) -> out.printf("%-18s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                outcome,
+                histogram.getTotalCount(),
+                histogram.getTotalCount() / seconds,
+                millis(histogram.getValueAtPercentile(50)),
+                millis(histogram.getValueAtPercentile(90)),
+                millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getValueAtPercentile(99.99)),
+                millis(histogram.getMaxValue())));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
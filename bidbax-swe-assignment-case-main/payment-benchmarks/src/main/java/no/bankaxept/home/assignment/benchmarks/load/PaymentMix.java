@@ -0,0 +1,71 @@
+package no.bankaxept.home.assignment.benchmarks.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Random payment requests following the configured mix of banks, big and small amounts, and hot and cold cards.
+ */
+class PaymentMix {
+
+    // Mirror the thresholds in PaymentService above which a payment is validated with its bank
+    private static final int BIG_BANK_THRESHOLD = 200;
+    private static final int LOANERS_THRESHOLD = 100;
+
+    private final List<String> banks = new ArrayList<>();
+    private final double bigShare;
+    private final int hotCards;
+    private final int coldCards;
+    private final double hotShare;
+
+    PaymentMix(Map<String, Integer> bankWeights, double bigShare, int hotCards, int coldCards, double hotShare) {
+        bankWeights.forEach((bank, weight) -> {
+            for (int i = 0; i < weight; i++) {
+                banks.add(bank);
+            }
+        });
+        if (banks.isEmpty()) {
+            throw new IllegalArgumentException("At least one bank needs a positive weight");
+        }
+        this.bigShare = bigShare;
+        this.hotCards = hotCards;
+        this.coldCards = coldCards;
+        this.hotShare = hotShare;
+    }
+
+    /**
+     * JSON body of the next payment.
+     */
+    String next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String bank = banks.get(random.nextInt(banks.size()));
+        int threshold = "The Big Bank".equals(bank) ? BIG_BANK_THRESHOLD : LOANERS_THRESHOLD;
+        int amount = random.nextDouble() < bigShare
+                ? threshold + 1 + random.nextInt(threshold)
+                : 1 + random.nextInt(threshold);
+        boolean hot = coldCards == 0 || (hotCards > 0 && random.nextDouble() < hotShare);
+        String card = hot ? hotCard(random.nextInt(hotCards)) : coldCard(random.nextInt(coldCards));
+        return "{\"cardNumber\":\"" + card + "\",\"bank\":\"" + bank + "\",\"amount\":" + amount + "}";
+    }
+
+    List<String> allCards() {
+        List<String> cards = new ArrayList<>(hotCards + coldCards);
+        for (int i = 0; i < hotCards; i++) {
+            cards.add(hotCard(i));
+        }
+        for (int i = 0; i < coldCards; i++) {
+            cards.add(coldCard(i));
+        }
+        return cards;
+    }
+
+    private static String hotCard(int index) {
+        return String.format("hot-%04d", index);
+    }
+
+    private static String coldCard(int index) {
+        return String.format("cold-%06d", index);
+    }
+}
@@ -0,0 +1,147 @@
+package no.bankaxept.home.assignment.service;
+
+import com.zaxxer.hikari.HikariDataSource;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.bank.BankRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The statements of {@link PaymentService} and a card history query, against the schema before and after its
+ * indexes were revised, with H2's per-connection statement cache off and on.
+ * <p>
+ * The transaction table holds {@value #ROWS} rows spread over {@value #CARDS} cards, so a query that cannot use an
+ * index on the card shows it. {@code queryCacheSize=0} parses every statement again each time it is prepared, as
+ * happens once more distinct statements run on a connection than its cache holds. Each call reads another card,
+ * since H2 answers a repeated query on an unchanged table from its last result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataAccessBenchmark {
+
+    private static final int CARDS = 1000;
+    private static final int ROWS = 100_000;
+
+    // schema.sql as it was before the revision
+    private static final String LEGACY_SCHEMA = String.join("\n",
+            "CREATE TABLE transaction (id INT AUTO_INCREMENT PRIMARY KEY, uuid VARCHAR(250) NOT NULL UNIQUE,",
+            "  card VARCHAR(250) NOT NULL, bank VARCHAR(250) DEFAULT NULL, amount INT DEFAULT NULL,",
+            "  date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, type VARCHAR(250) DEFAULT NULL);",
+            "CREATE TABLE balance (id INT AUTO_INCREMENT PRIMARY KEY, cardNumber VARCHAR(250) NOT NULL, amount INT DEFAULT NULL);",
+            "CREATE INDEX idx_cardNumber ON balance (cardNumber);");
+
+    private static final String HISTORY_SQL = "SELECT id, uuid, bank, amount, date, type FROM transaction WHERE card = ? "
+            + "ORDER BY card, date DESC, id DESC LIMIT 20";
+
+    @Param({"legacy", "revised"})
+    public String schema;
+
+    @Param({"0", "64"})
+    public int queryCacheSize;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final Transaction[] payments = new Transaction[CARDS];
+    private HikariDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private PaymentService paymentService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;QUERY_CACHE_SIZE=" + queryCacheSize);
+        dataSource.setUsername("sa");
+        dataSource.setMaximumPoolSize(1);
+        new ResourceDatabasePopulator(schema.equals("legacy")
+                ? new ByteArrayResource(LEGACY_SCHEMA.getBytes(StandardCharsets.UTF_8))
+                : new ClassPathResource("schema.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+
+        List<Object[]> balances = new ArrayList<>();
+        for (int card = 0; card < CARDS; card++) {
+            payments[card] = new Transaction("card-" + card, 1, "Loaners");
+            balances.add(new Object[]{payments[card].cardNumber, Integer.MAX_VALUE});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO balance (cardNumber, amount) VALUES (?, ?)", balances);
+        List<Object[]> rows = new ArrayList<>();
+        long start = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30);
+        for (int row = 0; row < ROWS; row++) {
+            rows.add(new Object[]{"Loaners", "history-" + row, "card-" + row % CARDS, 10, new Timestamp(start + row * 1000L), "small"});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES (?, ?, ?, ?, ?, ?)", rows);
+
+        paymentService = new PaymentService(jdbcTemplate, new DataSourceTransactionManager(dataSource), BankRegistry.of(null), null,
+                Runnable::run, Runnable::run, null, null, null, Clock.systemUTC(), 1.0, null);
+    }
+
+    @Setup(Level.Iteration)
+    public void removePayments() {
+        jdbcTemplate.update("DELETE FROM transaction WHERE uuid LIKE 'bench-%'");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        jdbcTemplate.execute("SHUTDOWN");
+        dataSource.close();
+    }
+
+    @Benchmark
+    public boolean duplicateCheck() {
+        return paymentService.isTransactionProcessed(nextUuid());
+    }
+
+    @Benchmark
+    public int balanceRead() {
+        return paymentService.getCurrentBalance(nextPayment());
+    }
+
+    @Benchmark
+    public int debitAndRecord() {
+        Transaction payment = nextPayment();
+        int balance = paymentService.debitBalance(payment);
+        paymentService.recordTransaction(payment, nextUuid(), "small", new Timestamp(System.currentTimeMillis()));
+        return balance;
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> cardHistory() {
+        return jdbcTemplate.queryForList(HISTORY_SQL, nextPayment().cardNumber);
+    }
+
+    private Transaction nextPayment() {
+        return payments[(int) (sequence.incrementAndGet() % CARDS)];
+    }
+
+    private String nextUuid() {
+        return "bench-" + sequence.incrementAndGet();
+    }
+}
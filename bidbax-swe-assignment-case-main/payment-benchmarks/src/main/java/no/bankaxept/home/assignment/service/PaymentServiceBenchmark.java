@@ -0,0 +1,175 @@
+package no.bankaxept.home.assignment.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import no.bankaxept.home.assignment.model.PaymentResult;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.bank.BankClient;
+import no.bankaxept.home.assignment.service.bank.BankRegistry;
+import no.bankaxept.home.assignment.service.bank.BankResilience;
+import no.bankaxept.home.assignment.service.bank.StubBankServer;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot path of {@link PaymentService} against an embedded H2 database and the in-process stub banks.
+ * <p>
+ * Payments run on the calling thread, so a result is the cost of the service itself: the duplicate check, the
+ * conditional debit and the transaction row, plus a localhost round trip to the stub bank for a big payment.
+ * Rows and balances are reset before every iteration so the transaction table does not grow without bound.
+ * <p>
+ * The {@code payDeclined} benchmarks pay from an empty card: a small payment is declined by its debit, a big one by
+ * the balance check before its bank call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaymentServiceBenchmark {
+
+    private static final String CARD = "001";
+    private static final String EMPTY_CARD = "002";
+    private static final String PROCESSED_UUID = "processed-uuid";
+
+    private final AtomicLong sequence = new AtomicLong();
+    private HikariDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private StubBankServer bank;
+    private CloseableHttpAsyncClient httpClient;
+    private PaymentService paymentService;
+    private Transaction smallPayment;
+    private Transaction bigPayment;
+    private Transaction smallDecline;
+    private Transaction bigDecline;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        dataSource.setUsername("sa");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("INSERT INTO balance (cardNumber, amount) VALUES (?, ?)", CARD, Integer.MAX_VALUE);
+        jdbcTemplate.update("INSERT INTO balance (cardNumber, amount) VALUES (?, ?)", EMPTY_CARD, 0);
+
+        bank = new StubBankServer(0);
+        httpClient = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(1000).setSocketTimeout(1000).build())
+                .setMaxConnTotal(100)
+                .setMaxConnPerRoute(100)
+                .build();
+        httpClient.start();
+        BankClient bankClient = new BankClient(httpClient, new ObjectMapper(), bank.getUrl(), bank.getUrl(), bank.getUrl());
+        BankResilience bankResilience = new BankResilience(50, 5000, 100, 100, 10000, 3);
+        bankResilience.register("The Big Bank", 100);
+
+        paymentService = new PaymentService(jdbcTemplate, new DataSourceTransactionManager(dataSource), BankRegistry.of(bankClient), bankResilience,
+                Runnable::run, Runnable::run, null, null, null, Clock.systemUTC(), 1.0, null);
+        smallPayment = new Transaction(CARD, 100, "The Big Bank");
+        bigPayment = new Transaction(CARD, 250, "The Big Bank");
+        smallDecline = new Transaction(EMPTY_CARD, 100, "The Big Bank");
+        bigDecline = new Transaction(EMPTY_CARD, 250, "The Big Bank");
+    }
+
+    @Setup(Level.Iteration)
+    public void resetTables() {
+        jdbcTemplate.update("DELETE FROM transaction");
+        jdbcTemplate.update("UPDATE balance SET amount = ? WHERE cardNumber = ?", Integer.MAX_VALUE, CARD);
+        paymentService.recordTransaction(smallPayment, PROCESSED_UUID, "small", new Timestamp(System.currentTimeMillis()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        httpClient.close();
+        bank.close();
+        jdbcTemplate.execute("SHUTDOWN");
+        dataSource.close();
+    }
+
+    @Benchmark
+    public PaymentResult paySmall() throws Exception {
+        return paymentService.pay(smallPayment, nextUuid()).get();
+    }
+
+    @Benchmark
+    public PaymentResult payBig() throws Exception {
+        return paymentService.pay(bigPayment, nextUuid()).get();
+    }
+
+    @Benchmark
+    public Throwable payDeclinedSmall() throws Exception {
+        try {
+            paymentService.pay(smallDecline, nextUuid()).get();
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        throw new IllegalStateException("Payment from an empty card went through");
+    }
+
+    @Benchmark
+    public Throwable payDeclinedBig() throws Exception {
+        try {
+            paymentService.pay(bigDecline, nextUuid());
+        } catch (InsufficientFundsException e) {
+            return e;
+        }
+        throw new IllegalStateException("Payment from an empty card went through");
+    }
+
+    @Benchmark
+    public boolean isTransactionProcessed_Miss() {
+        return paymentService.isTransactionProcessed(nextUuid());
+    }
+
+    @Benchmark
+    public boolean isTransactionProcessed_Hit() {
+        return paymentService.isTransactionProcessed(PROCESSED_UUID);
+    }
+
+    @Benchmark
+    public int getCurrentBalance() {
+        return paymentService.getCurrentBalance(smallPayment);
+    }
+
+    @Benchmark
+    public int debitBalance() {
+        return paymentService.debitBalance(smallPayment);
+    }
+
+    @Benchmark
+    public void recordTransaction() {
+        paymentService.recordTransaction(smallPayment, nextUuid(), "small", new Timestamp(System.currentTimeMillis()));
+    }
+
+    private String nextUuid() {
+        return "bench-" + sequence.incrementAndGet();
+    }
+}
@@ -0,0 +1,59 @@
+package no.bankaxept.home.assignment.web;
+
+import no.bankaxept.home.assignment.model.PaymentResult;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON bodies built by {@link PaymentController} for a paid and a declined payment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaymentResponsesBenchmark {
+
+    private Transaction transaction;
+    private PaymentResult payment;
+    private BankValidationException rejection;
+    private InsufficientFundsException insufficientFunds;
+
+    @Setup
+    public void setUp() {
+        transaction = new Transaction("1234567812345678", 250, "The Big Bank");
+        payment = new PaymentResult(750, 12, Instant.now());
+        rejection = new BankValidationException("The Big Bank", "Transaction not approved by Big Bank.");
+        insufficientFunds = new InsufficientFundsException(100, 250, "The Big Bank");
+    }
+
+    @Benchmark
+    public String success() {
+        return PaymentResponses.success(transaction, payment);
+    }
+
+    @Benchmark
+    public String bankRejected() {
+        return PaymentResponses.error(transaction, rejection);
+    }
+
+    @Benchmark
+    public String insufficientFunds() {
+        return PaymentResponses.insufficientFunds(insufficientFunds);
+    }
+}
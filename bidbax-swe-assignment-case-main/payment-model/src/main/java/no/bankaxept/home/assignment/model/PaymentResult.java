@@ -0,0 +1,32 @@
+package no.bankaxept.home.assignment.model;
+
+import java.time.Instant;
+
+/**
+ * Outcome of a completed payment: the balance left on the card, how long the payment took and the time the
+ * transaction was recorded with.
+ */
+public final class PaymentResult {
+
+    private final int balance;
+    private final long durationMillis;
+    private final Instant recordedAt;
+
+    public PaymentResult(int balance, long durationMillis, Instant recordedAt) {
+        this.balance = balance;
+        this.durationMillis = durationMillis;
+        this.recordedAt = recordedAt;
+    }
+
+    public int getBalance() {
+        return balance;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public Instant getRecordedAt() {
+        return recordedAt;
+    }
+}
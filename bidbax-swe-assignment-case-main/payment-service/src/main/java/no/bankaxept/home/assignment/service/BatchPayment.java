@@ -0,0 +1,31 @@
+package no.bankaxept.home.assignment.service;
+
+import no.bankaxept.home.assignment.model.Transaction;
+
+/**
+ * One payment of a batch: its position in the batch, its transaction id and the transaction itself.
+ */
+public final class BatchPayment {
+
+    private final long index;
+    private final String transactionUuid;
+    private final Transaction transaction;
+
+    public BatchPayment(long index, String transactionUuid, Transaction transaction) {
+        this.index = index;
+        this.transactionUuid = transactionUuid;
+        this.transaction = transaction;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public String getTransactionUuid() {
+        return transactionUuid;
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+}
@@ -0,0 +1,50 @@
+package no.bankaxept.home.assignment.service;
+
+import no.bankaxept.home.assignment.model.PaymentResult;
+
+/**
+ * How one payment of a batch ended: with a {@link PaymentResult} when it was paid, otherwise with the exception a
+ * single payment would have failed with.
+ */
+public final class BatchPaymentResult {
+
+    private final BatchPayment payment;
+    private final PaymentResult result;
+    private final Throwable failure;
+
+    private BatchPaymentResult(BatchPayment payment, PaymentResult result, Throwable failure) {
+        this.payment = payment;
+        this.result = result;
+        this.failure = failure;
+    }
+
+    public static BatchPaymentResult paid(BatchPayment payment, PaymentResult result) {
+        return new BatchPaymentResult(payment, result, null);
+    }
+
+    public static BatchPaymentResult failed(BatchPayment payment, Throwable failure) {
+        return new BatchPaymentResult(payment, null, failure);
+    }
+
+    public BatchPayment getPayment() {
+        return payment;
+    }
+
+    /**
+     * The result of a paid payment, otherwise {@code null}.
+     */
+    public PaymentResult getResult() {
+        return result;
+    }
+
+    /**
+     * Why the payment was not paid, or {@code null} when it was.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public boolean isPaid() {
+        return failure == null;
+    }
+}
@@ -0,0 +1,321 @@
+package no.bankaxept.home.assignment.service;
+
+import no.bankaxept.home.assignment.model.PaymentResult;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.dedup.DuplicateDetector;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.PaymentTimeoutException;
+import no.bankaxept.home.assignment.service.exception.VelocityLimitException;
+import no.bankaxept.home.assignment.service.ledger.BalanceLedger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Pays many transactions at once, for clients that settle thousands of payments in one request.
+ * <p>
+ * The duplicate check for a whole batch is one query per {@value #MAX_IN_LIST} ids. The payments are then grouped
+ * by card: cards run in parallel on the batch executor, and the payments of one card in the order they were given.
+ * A card's big payments are checked with their banks together, after one balance read has declined those the card
+ * cannot cover; then all of the card's debits and transaction rows are written in one database transaction, the
+ * rows as a single batch insert. A card served by the balance ledger is debited through the ledger instead.
+ * <p>
+ * With velocity limits, each payment is counted against its card's limits before its bank check, in the order
+ * given, and taken out again if it is not paid.
+ * <p>
+ * Each payment fails the way it would have on its own. Only when a card's database transaction fails are all of
+ * that card's debits failed together, since none of them was committed.
+ */
+public class BatchPaymentService {
+    private static final Logger logger = LoggerFactory.getLogger(BatchPaymentService.class);
+
+    private static final int MAX_IN_LIST = 500;
+    private static final String INSERT_SQL = "INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final PaymentService paymentService;
+    private final BalanceLedger ledger;
+    private final DuplicateDetector duplicateDetector;
+    private final Executor executor;
+    private final Clock clock;
+
+    /**
+     * @param paymentService   classifies the payments and checks them with their banks
+     * @param ledger           the ledger {@code paymentService} debits through, or {@code null}
+     * @param duplicateDetector the filter {@code paymentService} checks, told about each paid payment, or {@code null}
+     * @param executor         runs the cards of a batch
+     */
+    public BatchPaymentService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, PaymentService paymentService,
+                               BalanceLedger ledger, DuplicateDetector duplicateDetector, Executor executor, Clock clock) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionManager = transactionManager;
+        this.paymentService = paymentService;
+        this.ledger = ledger;
+        this.duplicateDetector = duplicateDetector;
+        this.executor = executor;
+        this.clock = clock;
+    }
+
+    /**
+     * Pays {@code payments} and hands each outcome to {@code listener}: duplicates right away, the others as their
+     * card finishes, in the order they were given for each card. The listener is called from several threads.
+     * The returned future completes once every payment has been reported.
+     *
+     * @throws org.springframework.dao.DataAccessException if the duplicate check fails, before any payment is reported
+     */
+    public CompletableFuture<Void> pay(List<BatchPayment> payments, Consumer<BatchPaymentResult> listener) {
+        long started = System.nanoTime();
+        Deadline deadline = Deadline.after(PaymentService.MAX_PROCESSING_TIME_MS);
+        Set<String> processed = findProcessed(payments);
+
+        Set<String> seen = new HashSet<>();
+        Map<String, List<BatchPayment>> byCard = new LinkedHashMap<>();
+        for (BatchPayment payment : payments) {
+            if (processed.contains(payment.getTransactionUuid()) || !seen.add(payment.getTransactionUuid())) {
+                listener.accept(BatchPaymentResult.failed(payment, new DuplicateTransactionException()));
+            } else {
+                byCard.computeIfAbsent(payment.getTransaction().cardNumber, card -> new ArrayList<>()).add(payment);
+            }
+        }
+
+        CompletableFuture<?>[] cards = new CompletableFuture<?>[byCard.size()];
+        int i = 0;
+        for (List<BatchPayment> card : byCard.values()) {
+            cards[i++] = payCard(card, started, deadline).handle((results, failure) -> {
+                if (failure != null) {
+                    Throwable cause = unwrap(failure);
+                    card.forEach(payment -> listener.accept(BatchPaymentResult.failed(payment, cause)));
+                } else {
+                    results.forEach(listener);
+                }
+                return null;
+            });
+        }
+        return CompletableFuture.allOf(cards);
+    }
+
+    private CompletableFuture<List<BatchPaymentResult>> payCard(List<BatchPayment> payments, long started, Deadline deadline) {
+        long[] countedAt = new long[payments.size()];
+        Arrays.fill(countedAt, PaymentService.NOT_COUNTED);
+        CompletableFuture<List<CompletableFuture<Void>>> checks;
+        try {
+            checks = CompletableFuture.supplyAsync(() -> checkWithBanks(payments, countedAt, deadline), executor);
+        } catch (RuntimeException e) {
+            // A full executor refuses the card before anything has happened to it
+            checks = new CompletableFuture<>();
+            checks.completeExceptionally(e);
+        }
+        return checks
+                .thenCompose(bankChecks -> CompletableFuture.allOf(bankChecks.stream().filter(check -> check != null).toArray(CompletableFuture<?>[]::new))
+                        .handle((ignored, failure) -> bankChecks))
+                .thenApplyAsync(bankChecks -> debit(payments, bankChecks, started, deadline), executor)
+                .whenComplete((results, failure) -> {
+                    for (int i = 0; i < payments.size(); i++) {
+                        if (results == null || !results.get(i).isPaid()) {
+                            paymentService.releaseVelocity(payments.get(i).getTransaction(), countedAt[i]);
+                        }
+                    }
+                });
+    }
+
+    // One check per payment, null for a small payment that needs none; records when each payment was counted
+    // against the velocity limits
+    private List<CompletableFuture<Void>> checkWithBanks(List<BatchPayment> payments, long[] countedAt, Deadline deadline) {
+        List<CompletableFuture<Void>> checks = new ArrayList<>(payments.size());
+        Integer balance = null;
+        for (int i = 0; i < payments.size(); i++) {
+            BatchPayment payment = payments.get(i);
+            Transaction transaction = payment.getTransaction();
+            try {
+                countedAt[i] = paymentService.checkVelocity(transaction);
+            } catch (VelocityLimitException e) {
+                checks.add(failed(e));
+                continue;
+            }
+            if (!paymentService.isBigTransaction(transaction)) {
+                checks.add(null);
+                continue;
+            }
+            if (balance == null) {
+                balance = paymentService.getCurrentBalance(transaction);
+            }
+            // The balance only goes down during the batch, so a payment it does not cover now never gets to the bank
+            if (balance < transaction.amount) {
+                checks.add(failed(new InsufficientFundsException(balance, transaction.amount, transaction.bank)));
+                continue;
+            }
+            try {
+                checks.add(paymentService.validateBigTransactionWithBank(transaction, payment.getTransactionUuid(), deadline));
+            } catch (RuntimeException e) {
+                checks.add(failed(e));
+                continue;
+            }
+            // Held back for it even if the bank turns it down, so the card is never sent more than it can cover
+            balance -= transaction.amount;
+        }
+        return checks;
+    }
+
+    private List<BatchPaymentResult> debit(List<BatchPayment> payments, List<CompletableFuture<Void>> checks, long started, Deadline deadline) {
+        BatchPaymentResult[] results = new BatchPaymentResult[payments.size()];
+        List<Integer> approved = new ArrayList<>(payments.size());
+        for (int i = 0; i < payments.size(); i++) {
+            Throwable failure = checks.get(i) == null ? null : failureOf(checks.get(i));
+            if (failure != null) {
+                results[i] = BatchPaymentResult.failed(payments.get(i), failure);
+            } else {
+                approved.add(i);
+            }
+        }
+        try {
+            deadline.check();
+            long recordedAt = clock.millis();
+            if (ledger != null && ledger.supports(payments.get(0).getTransaction().cardNumber)) {
+                debitThroughLedger(payments, approved, results, started, recordedAt);
+            } else {
+                debitAndRecord(payments, approved, results, started, recordedAt, deadline);
+            }
+        } catch (RuntimeException | PaymentTimeoutException e) {
+            if (!(e instanceof PaymentTimeoutException)) {
+                logger.error("Batch debits of {} payments for one card were rolled back", approved.size(), e);
+            }
+            for (int i : approved) {
+                results[i] = BatchPaymentResult.failed(payments.get(i), e);
+            }
+            return Arrays.asList(results);
+        }
+        if (duplicateDetector != null) {
+            for (int i : approved) {
+                if (results[i].isPaid()) {
+                    duplicateDetector.recordProcessed(payments.get(i).getTransactionUuid());
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    // Each ledger debit commits on its own, so a failure fails only its payment and never the debits before it
+    private void debitThroughLedger(List<BatchPayment> payments, List<Integer> approved, BatchPaymentResult[] results,
+                                    long started, long recordedAt) {
+        for (int i : approved) {
+            BatchPayment payment = payments.get(i);
+            Transaction transaction = payment.getTransaction();
+            try {
+                int balance = ledger.debit(transaction, payment.getTransactionUuid(), type(transaction), recordedAt);
+                results[i] = BatchPaymentResult.paid(payment, result(balance, started, recordedAt));
+            } catch (InsufficientFundsException | IOException e) {
+                results[i] = BatchPaymentResult.failed(payment, e);
+            } catch (RuntimeException e) {
+                logger.error("Ledger debit of batch payment {} failed", payment.getTransactionUuid(), e);
+                results[i] = BatchPaymentResult.failed(payment, e);
+            }
+        }
+    }
+
+    // Every debit and row of the card in one transaction; a declined debit changes nothing, so the others go on
+    private void debitAndRecord(List<BatchPayment> payments, List<Integer> approved, BatchPaymentResult[] results,
+                                long started, long recordedAt, Deadline deadline) throws PaymentTimeoutException {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setTimeout(deadline.remainingSeconds());
+        Timestamp date = new Timestamp(recordedAt);
+        try {
+            transactionTemplate.execute(status -> {
+                List<Object[]> rows = new ArrayList<>(approved.size());
+                for (int i : approved) {
+                    BatchPayment payment = payments.get(i);
+                    Transaction transaction = payment.getTransaction();
+                    try {
+                        int balance = paymentService.debitBalance(transaction);
+                        results[i] = BatchPaymentResult.paid(payment, result(balance, started, recordedAt));
+                        rows.add(new Object[]{transaction.bank, payment.getTransactionUuid(), transaction.cardNumber,
+                                transaction.amount, date, type(transaction)});
+                    } catch (InsufficientFundsException e) {
+                        results[i] = BatchPaymentResult.failed(payment, e);
+                    }
+                }
+                if (!rows.isEmpty()) {
+                    jdbcTemplate.batchUpdate(INSERT_SQL, rows);
+                }
+                return null;
+            });
+        } catch (TransactionTimedOutException | QueryTimeoutException e) {
+            throw new PaymentTimeoutException("Payment processing took too long.", e);
+        }
+    }
+
+    private Set<String> findProcessed(List<BatchPayment> payments) {
+        Set<String> processed = new HashSet<>();
+        for (int from = 0; from < payments.size(); from += MAX_IN_LIST) {
+            List<BatchPayment> slice = payments.subList(from, Math.min(from + MAX_IN_LIST, payments.size()));
+            StringBuilder sql = new StringBuilder("SELECT uuid FROM transaction WHERE uuid IN (");
+            Object[] ids = new Object[slice.size()];
+            for (int i = 0; i < ids.length; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+                ids[i] = slice.get(i).getTransactionUuid();
+            }
+            sql.append(')');
+            processed.addAll(jdbcTemplate.queryForList(sql.toString(), ids, String.class));
+        }
+        // Debits accepted by the ledger have no transaction row until they are flushed
+        if (ledger != null) {
+            for (BatchPayment payment : payments) {
+                if (ledger.isPending(payment.getTransactionUuid())) {
+                    processed.add(payment.getTransactionUuid());
+                }
+            }
+        }
+        return processed;
+    }
+
+    private String type(Transaction transaction) {
+        return paymentService.isBigTransaction(transaction) ? "big" : "small";
+    }
+
+    private static PaymentResult result(int balance, long started, long recordedAt) {
+        return new PaymentResult(balance, (System.nanoTime() - started) / 1_000_000, Instant.ofEpochMilli(recordedAt));
+    }
+
+    private static CompletableFuture<Void> failed(Throwable failure) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    private static Throwable failureOf(CompletableFuture<Void> check) {
+        try {
+            check.join();
+            return null;
+        } catch (CompletionException e) {
+            return unwrap(e);
+        } catch (CancellationException e) {
+            return e;
+        }
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+}
@@ -0,0 +1,60 @@
+package no.bankaxept.home.assignment.service;
+
+import no.bankaxept.home.assignment.service.exception.PaymentTimeoutException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of one payment, carried through every stage of it.
+ * <p>
+ * Each stage checks the deadline before it starts and hands the remaining budget to whatever it waits on: the
+ * bank call gets it as its timeout and the database transaction as its transaction timeout, which Spring applies
+ * as the query timeout of every statement. A cancelled deadline counts as expired, so a payment whose client has
+ * gone stops at the next stage instead of moving money nobody is waiting for.
+ */
+public final class Deadline {
+    private final long expiresAtNanos;
+    private volatile boolean cancelled;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    public long remainingMillis() {
+        if (cancelled) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+    }
+
+    /**
+     * Remaining budget rounded up to whole seconds, the unit of JDBC query and Spring transaction timeouts.
+     */
+    public int remainingSeconds() {
+        return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(remainingMillis() + 999));
+    }
+
+    public boolean isExpired() {
+        return cancelled || expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @throws PaymentTimeoutException if the deadline has passed or was cancelled
+     */
+    public void check() throws PaymentTimeoutException {
+        if (cancelled) {
+            throw new PaymentTimeoutException("Payment was cancelled.");
+        }
+        if (isExpired()) {
+            throw new PaymentTimeoutException("Payment processing took too long.");
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+}
@@ -0,0 +1,97 @@
+package no.bankaxept.home.assignment.service;
+
+import no.bankaxept.home.assignment.model.PaymentResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The one log line written for each payment when it ends, as {@code key=value} pairs:
+ * <pre>
+ * payment uuid="..." bank="The Big Bank" type=big amount=250 outcome=paid balance=750 duration_ms=4.120 duplicate_check_ms=0.210 ...
+ * </pre>
+ * Each stage the payment reached adds its {@code <stage>_ms}. Outcomes the service expects, such as insufficient
+ * funds or a bank saying no, are logged at INFO with their reason and no stack trace; anything else is a WARN, and
+ * only database and unexpected errors carry their stack trace.
+ */
+final class PaymentEvents {
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentEvents.class);
+
+    private static final Set<String> EXPECTED_OUTCOMES = new HashSet<>(Arrays.asList(
+            "paid", "insufficient_funds", "bank_rejected", "duplicate", "rejected", "timeout", "velocity_limit"));
+
+    private PaymentEvents() {
+    }
+
+    static void log(PaymentTrace trace, String outcome, long durationNanos, PaymentResult result, Throwable failure) {
+        boolean expected = EXPECTED_OUTCOMES.contains(outcome);
+        if (expected ? !logger.isInfoEnabled() : !logger.isWarnEnabled()) {
+            return;
+        }
+        StringBuilder event = new StringBuilder(256).append("payment uuid=");
+        quoted(event, trace.transactionUuid);
+        event.append(" bank=");
+        quoted(event, trace.transaction.bank);
+        event.append(" type=").append(trace.type)
+                .append(" amount=").append(trace.transaction.amount)
+                .append(" outcome=").append(outcome);
+        if (result != null) {
+            event.append(" balance=").append(result.getBalance());
+        }
+        millis(event.append(" duration_ms="), durationNanos);
+        for (int i = 0; i < PaymentTrace.STAGES.length; i++) {
+            long nanos = trace.stageNanos(i);
+            if (nanos >= 0) {
+                millis(event.append(' ').append(PaymentTrace.STAGES[i]).append("_ms="), nanos);
+            }
+        }
+        Throwable cause = PaymentMetrics.unwrap(failure);
+        if (cause != null) {
+            event.append(" reason=");
+            quoted(event, cause.getMessage());
+        }
+
+        if (expected) {
+            logger.info(event.toString());
+        } else if ("db_error".equals(outcome) || "error".equals(outcome)) {
+            logger.warn(event.toString(), cause);
+        } else {
+            logger.warn(event.toString());
+        }
+    }
+
+    // Milliseconds to the microsecond, without going through a double
+    private static void millis(StringBuilder event, long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        event.append(micros / 1000).append('.');
+        if (fraction < 100) {
+            event.append(fraction < 10 ? "00" : "0");
+        }
+        event.append(fraction);
+    }
+
+    // The uuid can be a client's idempotency key, so nothing in a value may end the line or the value early
+    private static void quoted(StringBuilder event, String value) {
+        event.append('"');
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    event.append('\\').append(c);
+                } else if (c == '\n') {
+                    event.append("\\n");
+                } else if (c == '\r') {
+                    event.append("\\r");
+                } else {
+                    event.append(c);
+                }
+            }
+        }
+        event.append('"');
+    }
+}
@@ -0,0 +1,155 @@
+package no.bankaxept.home.assignment.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.bank.BankRegistry;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.PaymentRejectedException;
+import no.bankaxept.home.assignment.service.exception.PaymentTimeoutException;
+import no.bankaxept.home.assignment.service.exception.VelocityLimitException;
+import org.springframework.dao.DataAccessException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Timers for each stage of a payment and counters for its outcome, tagged by bank and by big or small payment.
+ * <p>
+ * {@code payment.stage} times the duplicate check, velocity check, balance read, funds validation, bank call, balance update and
+ * transaction insert; {@code payment.duration} the whole payment; {@code payment.outcome} counts how payments end.
+ * The bank tag only takes the names of registered banks, so a request cannot create new time series.
+ */
+final class PaymentMetrics {
+
+    static final String DUPLICATE_CHECK = "duplicate_check";
+    static final String VELOCITY_CHECK = "velocity_check";
+    static final String BALANCE_READ = "balance_read";
+    static final String FUNDS_VALIDATION = "funds_validation";
+    static final String BANK_CALL = "bank_call";
+    static final String BALANCE_UPDATE = "balance_update";
+    static final String TRANSACTION_INSERT = "transaction_insert";
+
+    private final BankRegistry banks;
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    // Registered once per tag combination, keyed by the tag values with the bank last, so the hot path only looks them up
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> durationTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> outcomeCounters = new ConcurrentHashMap<>();
+
+    PaymentMetrics(BankRegistry banks) {
+        this.banks = banks;
+    }
+
+    void bindTo(MeterRegistry registry) {
+        meterRegistry.add(registry);
+    }
+
+    long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Times a stage of the payment, both for {@code payment.stage} and for the payment's own event.
+     */
+    void stage(PaymentTrace trace, String stage, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        trace.record(stage, nanos);
+        String bank = bankTag(trace.transaction);
+        String key = trace.type + '/' + stage + '/' + bank;
+        Timer timer = stageTimers.get(key);
+        if (timer == null) {
+            timer = stageTimers.computeIfAbsent(key, ignored -> Timer.builder("payment.stage")
+                    .description("Time spent in one stage of a payment")
+                    .tags(Tags.of("bank", bank, "type", trace.type, "stage", stage))
+                    .register(meterRegistry));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records how a payment ended, as named by {@link #outcome(Throwable)}, and returns how long it took.
+     */
+    long outcome(PaymentTrace trace, String outcome) {
+        long nanos = System.nanoTime() - trace.startNanos;
+        String bank = bankTag(trace.transaction);
+        String key = trace.type + '/' + bank;
+        Timer duration = durationTimers.get(key);
+        if (duration == null) {
+            duration = durationTimers.computeIfAbsent(key, ignored -> Timer.builder("payment.duration")
+                    .description("Time from receiving a payment to its outcome")
+                    .tags(Tags.of("bank", bank, "type", trace.type))
+                    .register(meterRegistry));
+        }
+        duration.record(nanos, TimeUnit.NANOSECONDS);
+        key = trace.type + '/' + outcome + '/' + bank;
+        Counter counter = outcomeCounters.get(key);
+        if (counter == null) {
+            counter = outcomeCounters.computeIfAbsent(key, ignored -> Counter.builder("payment.outcome")
+                    .description("Payments by how they ended")
+                    .tags(Tags.of("bank", bank, "type", trace.type, "outcome", outcome))
+                    .register(meterRegistry));
+        }
+        counter.increment();
+        return nanos;
+    }
+
+    /**
+     * How a payment ended; {@code failure} is {@code null} for a paid one.
+     */
+    static String outcome(Throwable failure) {
+        Throwable e = unwrap(failure);
+        if (e == null) {
+            return "paid";
+        } else if (e instanceof InsufficientFundsException) {
+            return "insufficient_funds";
+        } else if (e instanceof VelocityLimitException) {
+            return "velocity_limit";
+        } else if (e instanceof BankValidationException) {
+            return "bank_rejected";
+        } else if (e instanceof DataAccessException) {
+            return "db_error";
+        } else if (e instanceof PaymentRejectedException) {
+            return "rejected";
+        } else if (isTimeout(e)) {
+            return "timeout";
+        } else if (e instanceof DuplicateTransactionException) {
+            return "duplicate";
+        } else if (e instanceof IOException) {
+            return "io_error";
+        }
+        return "error";
+    }
+
+    private static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof PaymentTimeoutException || cause instanceof SocketTimeoutException || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Throwable unwrap(Throwable failure) {
+        Throwable e = failure;
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private String bankTag(Transaction transaction) {
+        return banks.contains(transaction.bank) ? transaction.bank : "unknown";
+    }
+}
@@ -1,226 +1,424 @@
 package no.bankaxept.home.assignment.service;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.bankaxept.home.assignment.model.PaymentResult;
 import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.bank.BankAdapter;
+import no.bankaxept.home.assignment.service.bank.BankClient;
+import no.bankaxept.home.assignment.service.bank.BankRegistry;
+import no.bankaxept.home.assignment.service.bank.BankResilience;
+import no.bankaxept.home.assignment.service.dedup.DuplicateDetector;
 import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
 import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.PaymentRejectedException;
+import no.bankaxept.home.assignment.service.exception.PaymentTimeoutException;
+import no.bankaxept.home.assignment.service.executor.PaymentExecutor;
+import no.bankaxept.home.assignment.service.ledger.BalanceLedger;
+import no.bankaxept.home.assignment.service.velocity.VelocityLimiter;
+import no.bankaxept.home.assignment.service.writer.TransactionWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
-import org.springframework.http.ResponseEntity;
+import org.springframework.dao.QueryTimeoutException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.retry.annotation.Backoff;
-import org.springframework.retry.annotation.Retryable;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.StopWatch;
-import org.springframework.web.client.ResourceAccessException;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
 import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 
 @Service
-public class PaymentService {
+public class PaymentService implements MeterBinder {
     private static final Logger logger = LoggerFactory.getLogger(PaymentService.class);
 
-    private static final int BIG_BANK_THRESHOLD = 200;
-    private static final int LOANERS_THRESHOLD = 100;
-    private static final long MAX_PROCESSING_TIME_MS = 30000;
+    static final long MAX_PROCESSING_TIME_MS = 30000;
+    // What checkVelocity returns without velocity limits
+    static final long NOT_COUNTED = Long.MIN_VALUE;
 
-    private final JdbcTemplate jdbcTemplate;
-    private final RestTemplate restTemplate;
-    private final ObjectMapper objectMapper;
+    // Kept as constants so every call sends the same text, which is what the database's statement cache is keyed on
+    private static final String EXISTS_SQL = "SELECT 1 FROM transaction WHERE uuid = ?";
+    private static final String BALANCE_SQL = "SELECT amount FROM balance WHERE cardNumber = ?";
+    private static final String INSERT_SQL = "INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String DEBIT_SQL = "UPDATE balance SET amount = amount - ? WHERE cardNumber = ? AND amount >= ?";
 
-    public PaymentService(JdbcTemplate jdbcTemplate, RestTemplate restTemplate, ObjectMapper objectMapper) {
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final BankRegistry banks;
+    private final BankResilience bankResilience;
+    private final Executor smallPaymentExecutor;
+    private final Executor bigPaymentExecutor;
+    private final BalanceLedger ledger;
+    private final TransactionWriter transactionWriter;
+    private final DuplicateDetector duplicateDetector;
+    private final Clock clock;
+    private final double debugSampleRate;
+    private final VelocityLimiter velocityLimiter;
+    private final PaymentMetrics metrics;
+
+    /**
+     * @param banks                the banks big payments are checked with, and the thresholds that make a payment big;
+     *                             {@link BankRegistry#of(BankClient)} for the three banks of a single client
+     * @param smallPaymentExecutor runs small payments, which only touch the database
+     * @param bigPaymentExecutor   resumes big payments once their bank has approved them
+     * @param ledger               in-memory balance ledger for the cards it serves, or {@code null} to debit the balance
+     *                             table directly
+     * @param transactionWriter    group-commit writer for the other cards, or {@code null} for one transaction per payment
+     * @param duplicateDetector    filter in front of the duplicate check, or {@code null} to query the database every time
+     * @param clock                dates the transactions; a {@link no.bankaxept.home.assignment.service.clock.CachedClock}
+     *                             keeps reading it cheap
+     * @param debugSampleRate      share of payments, from 0 to 1, that log their DEBUG detail while DEBUG is enabled
+     *                             for this class; every payment logs one event through {@code PaymentEvents} regardless
+     * @param velocityLimiter      spending limits per card checked before any money moves, or {@code null} for none
+     */
+    public PaymentService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, BankRegistry banks,
+                          BankResilience bankResilience, Executor smallPaymentExecutor, Executor bigPaymentExecutor, BalanceLedger ledger,
+                          TransactionWriter transactionWriter, DuplicateDetector duplicateDetector, Clock clock, double debugSampleRate,
+                          VelocityLimiter velocityLimiter) {
         this.jdbcTemplate = jdbcTemplate;
-        this.restTemplate = restTemplate;
-        this.objectMapper = objectMapper;
+        this.transactionManager = transactionManager;
+        this.banks = banks;
+        this.bankResilience = bankResilience;
+        this.smallPaymentExecutor = smallPaymentExecutor;
+        this.bigPaymentExecutor = bigPaymentExecutor;
+        this.ledger = ledger;
+        this.transactionWriter = transactionWriter;
+        this.duplicateDetector = duplicateDetector;
+        this.clock = clock;
+        this.debugSampleRate = debugSampleRate;
+        this.velocityLimiter = velocityLimiter;
+        this.metrics = new PaymentMetrics(banks);
     }
 
+    /**
+     * Processes a payment. The duplicate check runs on the calling thread, and a small payment continues on the
+     * small payment executor. A big transaction first checks the balance so an obviously uncovered payment never
+     * reaches the bank, then waits for its bank check without holding any thread and resumes on the big payment
+     * executor. A full executor fails the payment with a {@link PaymentRejectedException} before any money moves,
+     * and a transaction id that was already processed fails the returned future with a
+     * {@link DuplicateTransactionException}. The debit itself is a single conditional update, so concurrent payments
+     * on the same card can never overdraw it; with a {@link TransactionWriter} the debits and rows of concurrent
+     * payments are committed together.
+     * <p>
+     * The payment has {@value #MAX_PROCESSING_TIME_MS} ms to finish.
+     */
+    public CompletableFuture<PaymentResult> pay(Transaction transaction, String transactionUuid) {
+        return pay(transaction, transactionUuid, Deadline.after(MAX_PROCESSING_TIME_MS));
+    }
 
-    @Async
-    @Transactional
-    public CompletableFuture<Map<String, Object>> pay(Transaction transaction, String transactionUuid) throws IOException, URISyntaxException {
-        logger.info("Starting payment process for transaction ID: {}", transactionUuid);
-
-        StopWatch stopWatch = new StopWatch();
-        stopWatch.start();
-        // Check if transaction with this UUID has already been processed
-        if (isTransactionProcessed(transactionUuid)) {
-            throw new IOException("Duplicate transaction detected.");
+    /**
+     * Processes a payment within {@code deadline}. The bank call and the database transaction only get the time
+     * that is left, and every stage checks the deadline before it starts, so a late payment fails with a
+     * {@link PaymentTimeoutException} before its money moves; once the debit has committed the payment succeeds
+     * however long it took. Cancelling the returned future cancels the deadline, which stops the payment at its
+     * next stage.
+     */
+    public CompletableFuture<PaymentResult> pay(Transaction transaction, String transactionUuid, Deadline deadline) {
+        long started = metrics.start();
+        String type = isBigTransaction(transaction) ? "big" : "small";
+        PaymentTrace trace = new PaymentTrace(transaction, transactionUuid, type, started, isDetailed());
+        CompletableFuture<PaymentResult> payment;
+        try {
+            payment = startPayment(trace, deadline);
+        } catch (RuntimeException e) {
+            finish(trace, null, e);
+            throw e;
         }
+        CompletableFuture<PaymentResult> result = payment.whenComplete((response, failure) -> finish(trace, response, failure));
+        result.whenComplete((response, failure) -> {
+            if (result.isCancelled()) {
+                deadline.cancel();
+            }
+        });
+        return result;
+    }
 
-        int currentBalance = getCurrentBalance(transaction.cardNumber)
-                .orElseThrow(() -> {
-                    logger.error("No balance found for card: {}", transaction.cardNumber);
-                    return new DataAccessException("No balance found for card: " + transaction.cardNumber) {};
-                });
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        metrics.bindTo(registry);
+    }
 
-        validateSufficientFunds(currentBalance, transaction);
+    // Sampled once per payment, so a sampled payment logs all of its detail and the others none of it
+    private boolean isDetailed() {
+        return logger.isDebugEnabled() && ThreadLocalRandom.current().nextDouble() < debugSampleRate;
+    }
 
-        boolean isBigTransaction = isBigTransaction(transaction);
-        logger.info("Transaction {} is classified as {}", transactionUuid, isBigTransaction ? "big" : "small");
+    private void finish(PaymentTrace trace, PaymentResult result, Throwable failure) {
+        String outcome = PaymentMetrics.outcome(failure);
+        PaymentEvents.log(trace, outcome, metrics.outcome(trace, outcome), result, failure);
+    }
 
-        if (isBigTransaction) {
-            validateBigTransactionWithBank(transaction, transactionUuid);
+    private CompletableFuture<PaymentResult> startPayment(PaymentTrace trace, Deadline deadline) {
+        Transaction transaction = trace.transaction;
+        String transactionUuid = trace.transactionUuid;
+        // Check if transaction with this UUID has already been processed
+        long duplicateCheckStart = metrics.start();
+        boolean processed = isTransactionProcessed(transactionUuid);
+        metrics.stage(trace, PaymentMetrics.DUPLICATE_CHECK, duplicateCheckStart);
+        if (processed) {
+            return failed(new DuplicateTransactionException());
         }
 
-        recordTransaction(transaction, transactionUuid, isBigTransaction ? "big" : "small");
-
-        int newBalance = updateBalance(transaction, currentBalance);
-
-        stopWatch.stop();
-
-        if (stopWatch.getTotalTimeMillis() > MAX_PROCESSING_TIME_MS) { // If processing takes longer than 30 seconds
-            logger.warn("Payment processing for transaction ID: {} took too long: {} ms", transactionUuid, stopWatch.getTotalTimeMillis());
-            throw new IOException("Payment processing took too long.");
+        if (trace.detailed) {
+            logger.debug("Transaction {} for {} at {} is classified as {}", transactionUuid, transaction.amount, transaction.bank, trace.type);
+        }
+        if (velocityLimiter == null) {
+            return routePayment(trace, deadline);
         }
 
-        logger.info("Payment processed successfully for transaction ID: {}. New balance: {}", transactionUuid, newBalance);
-        return CompletableFuture.completedFuture(createResponse(newBalance, stopWatch.getTotalTimeMillis()));
+        // Before the bank call, so a card over its limit costs no round-trip; a payment that fails later is taken out again
+        long velocityCheckStart = metrics.start();
+        long countedAt;
+        try {
+            countedAt = checkVelocity(transaction);
+        } finally {
+            metrics.stage(trace, PaymentMetrics.VELOCITY_CHECK, velocityCheckStart);
+        }
+        CompletableFuture<PaymentResult> payment;
+        try {
+            payment = routePayment(trace, deadline);
+        } catch (RuntimeException e) {
+            releaseVelocity(transaction, countedAt);
+            throw e;
+        }
+        return payment.whenComplete((result, failure) -> {
+            if (failure != null) {
+                releaseVelocity(transaction, countedAt);
+            }
+        });
     }
 
-    boolean isTransactionProcessed(String transactionUuid) {
-        logger.info("Checking if transaction with UUID: {} has already been processed", transactionUuid);
+    private CompletableFuture<PaymentResult> routePayment(PaymentTrace trace, Deadline deadline) {
+        Transaction transaction = trace.transaction;
+        String transactionUuid = trace.transactionUuid;
+        if ("small".equals(trace.type)) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return completePayment(trace, deadline);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, smallPaymentExecutor).thenCompose(payment -> payment);
+        }
 
-        String sql = "SELECT COUNT(*) FROM transaction WHERE uuid = ?";
-        Integer count = jdbcTemplate.queryForObject(sql, new Object[]{transactionUuid}, Integer.class);
+        long validationStart = metrics.start();
+        try {
+            long balanceReadStart = metrics.start();
+            int currentBalance = getCurrentBalance(transaction);
+            metrics.stage(trace, PaymentMetrics.BALANCE_READ, balanceReadStart);
+            if (trace.detailed) {
+                logger.debug("Transaction {} sees a balance of {} before its bank check", transactionUuid, currentBalance);
+            }
+            validateSufficientFunds(currentBalance, transaction);
+        } finally {
+            metrics.stage(trace, PaymentMetrics.FUNDS_VALIDATION, validationStart);
+        }
+        // No point asking the bank when there will be no thread to finish the payment
+        if (bigPaymentExecutor instanceof PaymentExecutor) {
+            ((PaymentExecutor) bigPaymentExecutor).checkCapacity();
+        }
+        try {
+            deadline.check();
+        } catch (PaymentTimeoutException e) {
+            return failed(e);
+        }
 
-        boolean isProcessed = count != null && count > 0;
-        logger.info("Transaction with UUID: {} is already processed: {}", transactionUuid, isProcessed);
+        long bankCallStart = metrics.start();
+        return validateBigTransactionWithBank(transaction, transactionUuid, deadline)
+                .whenComplete((approved, failure) -> metrics.stage(trace, PaymentMetrics.BANK_CALL, bankCallStart))
+                .thenComposeAsync(approved -> {
+                    try {
+                        return completePayment(trace, deadline);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, bigPaymentExecutor);
+    }
 
-        return isProcessed;
+    private CompletableFuture<PaymentResult> completePayment(PaymentTrace trace, Deadline deadline) throws IOException {
+        // Last point at which a late payment can still be failed without undoing anything
+        deadline.check();
+        // One timestamp for the transaction row and the response
+        long recordedAt = clock.millis();
+        return debitAndRecord(trace, recordedAt, deadline).thenApply(newBalance -> {
+            if (duplicateDetector != null) {
+                duplicateDetector.recordProcessed(trace.transactionUuid);
+            }
+            if (trace.detailed) {
+                logger.debug("Transaction {} debited card {}, new balance {}", trace.transactionUuid, trace.transaction.cardNumber, newBalance);
+            }
+            return createResponse(newBalance, (System.nanoTime() - trace.startNanos) / 1_000_000, recordedAt);
+        });
     }
 
-    private Optional<Integer> getCurrentBalance(String cardNumber) {
-        String sql = "SELECT amount FROM balance WHERE cardNumber = ?";
+    // Completes with the new balance once the debit and the transaction row are durable
+    private CompletableFuture<Integer> debitAndRecord(PaymentTrace trace, long recordedAt, Deadline deadline) throws IOException {
+        Transaction transaction = trace.transaction;
+        String transactionUuid = trace.transactionUuid;
+        String type = trace.type;
+        if (isServedByLedger(transaction)) {
+            long debitStart = metrics.start();
+            try {
+                return CompletableFuture.completedFuture(ledger.debit(transaction, transactionUuid, type, recordedAt));
+            } finally {
+                metrics.stage(trace, PaymentMetrics.BALANCE_UPDATE, debitStart);
+            }
+        }
+        if (transactionWriter != null) {
+            // The rows are inserted for the whole batch; payment.writer.flush.latency times that
+            return transactionWriter.submit(transaction, transactionUuid, type, new Timestamp(recordedAt), () -> timedDebit(trace), deadline);
+        }
+        // Spring applies the transaction timeout as the query timeout of each statement, and rolls back past it
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setTimeout(deadline.remainingSeconds());
         try {
-            return jdbcTemplate.query(sql, new Object[]{cardNumber}, (ResultSet rs) -> rs.next() ? Optional.of(rs.getInt("amount")) : Optional.empty());
-        } catch (DataAccessException e) {
-            logger.error("Error retrieving balance for card: {}", cardNumber, e);
-            return Optional.empty();
+            return CompletableFuture.completedFuture(transactionTemplate.execute(status -> {
+                int balance = timedDebit(trace);
+                long insertStart = metrics.start();
+                recordTransaction(transaction, transactionUuid, type, new Timestamp(recordedAt));
+                metrics.stage(trace, PaymentMetrics.TRANSACTION_INSERT, insertStart);
+                return balance;
+            }));
+        } catch (TransactionTimedOutException | QueryTimeoutException e) {
+            throw new PaymentTimeoutException("Payment processing took too long.", e);
         }
     }
 
-    void validateSufficientFunds(int currentBalance, Transaction transaction) {
-        if (currentBalance < transaction.amount) {
-            logger.warn("Insufficient funds for transaction ID: {}. Available: {}, Required: {}", transaction.cardNumber, currentBalance, transaction.amount);
-            throw new InsufficientFundsException(currentBalance, transaction.amount, transaction.bank);
+    private static CompletableFuture<PaymentResult> failed(Throwable failure) {
+        CompletableFuture<PaymentResult> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    private int timedDebit(PaymentTrace trace) {
+        long debitStart = metrics.start();
+        try {
+            return debitBalance(trace.transaction);
+        } finally {
+            metrics.stage(trace, PaymentMetrics.BALANCE_UPDATE, debitStart);
         }
     }
 
-    private boolean isBigTransaction(Transaction transaction) {
-        return "The Big Bank".equals(transaction.bank) ? transaction.amount > BIG_BANK_THRESHOLD : transaction.amount > LOANERS_THRESHOLD;
+    boolean isTransactionProcessed(String transactionUuid) {
+        // Debits accepted by the ledger have no transaction row until they are flushed
+        return ledger != null && ledger.isPending(transactionUuid)
+                || (duplicateDetector != null ? duplicateDetector.isProcessed(transactionUuid) : existsInDatabase(transactionUuid));
     }
 
-    @Retryable(value = { ResourceAccessException.class }, maxAttempts = 3, backoff = @Backoff(delay = 2000))
-    void validateBigTransactionWithBank(Transaction transaction, String transactionUuid) throws IOException, URISyntaxException {
-        switch (transaction.bank) {
-            case "The Big Bank":
-                validateBigBank(transaction, transactionUuid);
-                break;
-            case "The Cashiers":
-                validateCashiers(transaction, transactionUuid);
-                break;
-            case "Loaners":
-                validateLoaners(transaction, transactionUuid);
-                break;
-            default:
-                logger.error("Unsupported bank: {}", transaction.bank);
-                throw new BankValidationException(transaction.bank, "Unsupported bank.");
-        }
+    private boolean existsInDatabase(String transactionUuid) {
+        return !jdbcTemplate.queryForList(EXISTS_SQL, new Object[]{transactionUuid}, Integer.class).isEmpty();
     }
 
-    private void validateBigBank(Transaction transaction, String transactionUuid) throws IOException {
-        try {
-            ResponseEntity<String> response = restTemplate.getForEntity("http://fake.bigbank.no/check/" + transaction.amount, String.class, transactionUuid);
-            JsonNode jsonNode = objectMapper.readTree(response.getBody());
-            if (!jsonNode.get("successful").asBoolean()) {
-                throw new BankValidationException(transaction.bank, "Transaction not approved by Big Bank.");
-            }
-        } catch (ResourceAccessException e) {
-            logger.error("Payment API timeout for Big Bank on transaction: {}", transactionUuid);
-            throw new IOException("Big Bank Service is currently unavailable. Please try again later.", e);
+    int getCurrentBalance(Transaction transaction) {
+        Optional<Integer> balance;
+        if (isServedByLedger(transaction)) {
+            OptionalInt ledgerBalance = ledger.balance(transaction.cardNumber);
+            balance = ledgerBalance.isPresent() ? Optional.of(ledgerBalance.getAsInt()) : Optional.empty();
+        } else {
+            balance = findCurrentBalance(transaction.cardNumber);
         }
+        return balance
+                .orElseThrow(() -> {
+                    logger.error("No balance found for card: {}", transaction.cardNumber);
+                    return new DataAccessException("No balance found for card: " + transaction.cardNumber) {};
+                });
     }
 
-    private void validateCashiers(Transaction transaction, String transactionUuid) throws IOException {
+    private Optional<Integer> findCurrentBalance(String cardNumber) {
         try {
-            ResponseEntity<String> response = restTemplate.getForEntity("http://fake.cashiers.no/payment/" + transaction.cardNumber + "?amount=" + transaction.amount,
-                    String.class,transactionUuid);
-            if (response.getStatusCode().isError()) {
-                throw new BankValidationException(transaction.bank, "Transaction failed with Cashiers.");
-            }
-        } catch (ResourceAccessException e) {
-            logger.error("Payment API timeout for Cashier on transaction: {}", transactionUuid);
-            throw new IOException("Payment service is currently unavailable. Please try again later.", e);
-
+            return jdbcTemplate.query(BALANCE_SQL, new Object[]{cardNumber}, (ResultSet rs) -> rs.next() ? Optional.of(rs.getInt("amount")) : Optional.empty());
+        } catch (DataAccessException e) {
+            logger.error("Error retrieving balance for card: {}", cardNumber, e);
+            return Optional.empty();
         }
     }
 
-    private void validateLoaners(Transaction transaction, String transactionUuid) throws IOException {
-        try {
-            LoanersRequest request = new LoanersRequest(transaction.cardNumber, transaction.amount);
-            ResponseEntity<LoanersResponse> response = restTemplate.postForEntity("http://fake.loaners.no/payment/check", request, LoanersResponse.class, transactionUuid);
-            Optional.ofNullable(response.getBody())
-                    .filter(resp -> resp.responseCode == 1 && "Approved".equals(resp.status))
-                    .orElseThrow(() -> new BankValidationException(transaction.bank, "Transaction not approved by Loaners."));
-        }catch (ResourceAccessException e) {
-            logger.error("Payment API timeout for Loaners on transaction: {}", transactionUuid);
-            throw new IOException("Loaners service is currently unavailable. Please try again later.", e);
+    void validateSufficientFunds(int currentBalance, Transaction transaction) {
+        if (currentBalance < transaction.amount) {
+            throw new InsufficientFundsException(currentBalance, transaction.amount, transaction.bank);
         }
     }
 
-    private void recordTransaction(Transaction transaction, String transactionUuid, String type) {
-        String sql = "INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES (?, ?, ?, ?, ?, ?)";
-        jdbcTemplate.update(sql, transaction.bank, transactionUuid, transaction.cardNumber, transaction.amount, getCurrentDate(), type);
-        logger.info("Recorded transaction ID: {} of type: {}", transactionUuid, type);
+    /**
+     * Counts the payment against its card's velocity limits and returns when, or {@link #NOT_COUNTED} without limits
+     * or for an amount that is not positive, which spends nothing and which the limiter does not accept.
+     */
+    long checkVelocity(Transaction transaction) {
+        return velocityLimiter == null || transaction.amount <= 0 ? NOT_COUNTED : velocityLimiter.acquire(transaction, clock.millis());
     }
 
-    int updateBalance(Transaction transaction, int currentBalance) {
-        int newBalance = currentBalance - transaction.amount;
-        jdbcTemplate.update("UPDATE balance SET amount = ? WHERE cardNumber = ?", newBalance, transaction.cardNumber);
-        logger.info("Updated balance for card: {}. New balance: {}", transaction.cardNumber, newBalance);
-        return newBalance;
+    void releaseVelocity(Transaction transaction, long countedAt) {
+        if (velocityLimiter != null && countedAt != NOT_COUNTED) {
+            velocityLimiter.release(transaction, countedAt);
+        }
     }
 
-    private Map<String, Object> createResponse(int newBalance, long responseDuration) {
-        Map<String, Object> response = new HashMap<>();
-        response.put("balance", newBalance);
-        response.put("duration", responseDuration);
-        logger.info("Response created with balance: {} and duration: {} ms", newBalance, responseDuration);
-        return response;
+    boolean isBigTransaction(Transaction transaction) {
+        return banks.isBigTransaction(transaction);
     }
 
-    private String getCurrentDate() {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    private boolean isServedByLedger(Transaction transaction) {
+        return ledger != null && ledger.supports(transaction.cardNumber);
     }
 
-    // Nested static classes for LoanersRequest and LoanersResponse
+    // Called directly from pay, so the per-bank bulkhead and circuit breaker are applied explicitly rather than through a proxy
+    CompletableFuture<Void> validateBigTransactionWithBank(Transaction transaction, String transactionUuid, Deadline deadline) {
+        BankAdapter bank = banks.get(transaction.bank);
+        if (bank == null) {
+            logger.error("Unsupported bank: {}", transaction.bank);
+            throw new BankValidationException(transaction.bank, "Unsupported bank.");
+        }
+        // Never 0, which would leave the call with the adapter's default timeouts
+        long budget = Math.max(1, deadline.remainingMillis());
+        return bankResilience.execute(transaction.bank, () -> bank.validate(transaction, transactionUuid, budget));
+    }
 
-    private static class LoanersRequest {
-        public String cardNumber;
-        public int amount;
+    // The date is bound as a TIMESTAMP, so the driver does not have to parse it from text
+    void recordTransaction(Transaction transaction, String transactionUuid, String type, Timestamp date) {
+        jdbcTemplate.update(INSERT_SQL, transaction.bank, transactionUuid, transaction.cardNumber, transaction.amount, date, type);
+    }
 
-        public LoanersRequest(String cardNumber, int amount) {
-            this.cardNumber = cardNumber;
-            this.amount = amount;
+    /**
+     * Debits the card in one conditional statement and returns the new balance, read back through the
+     * generated keys of the same update. No row is updated when the balance does not cover the amount;
+     * only then is the balance read separately to report it.
+     */
+    int debitBalance(Transaction transaction) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        int updated = jdbcTemplate.update(connection -> {
+            PreparedStatement statement = connection.prepareStatement(DEBIT_SQL, new String[]{"amount"});
+            statement.setInt(1, transaction.amount);
+            statement.setString(2, transaction.cardNumber);
+            statement.setInt(3, transaction.amount);
+            return statement;
+        }, keyHolder);
+
+        if (updated == 0) {
+            // Nothing was debited: either the card is unknown or the balance does not cover the amount
+            validateSufficientFunds(getCurrentBalance(transaction), transaction);
+            // The balance was topped up after the update ran, so the debit can be tried again
+            return debitBalance(transaction);
         }
+
+        return keyHolder.getKey().intValue();
     }
 
-    private static class LoanersResponse {
-        public int responseCode;
-        public String status;
-        public String errorReason;
+    private PaymentResult createResponse(int newBalance, long responseDuration, long recordedAt) {
+        return new PaymentResult(newBalance, responseDuration, Instant.ofEpochMilli(recordedAt));
     }
 }
\ No newline at end of file
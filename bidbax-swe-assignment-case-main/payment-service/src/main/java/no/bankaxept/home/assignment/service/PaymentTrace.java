@@ -0,0 +1,53 @@
+package no.bankaxept.home.assignment.service;
+
+import no.bankaxept.home.assignment.model.Transaction;
+
+import java.util.Arrays;
+
+/**
+ * What one payment has done so far: the time it spent in each stage, for the single event logged when it ends.
+ * <p>
+ * The stages of a payment run one after another, each handing over to the next through its future, so the
+ * timings need no synchronisation.
+ */
+final class PaymentTrace {
+
+    static final String[] STAGES = {
+            PaymentMetrics.DUPLICATE_CHECK, PaymentMetrics.VELOCITY_CHECK, PaymentMetrics.BALANCE_READ,
+            PaymentMetrics.FUNDS_VALIDATION, PaymentMetrics.BANK_CALL, PaymentMetrics.BALANCE_UPDATE, PaymentMetrics.TRANSACTION_INSERT
+    };
+
+    final Transaction transaction;
+    final String transactionUuid;
+    final String type;
+    final long startNanos;
+    // Whether this payment was picked to log its DEBUG detail
+    final boolean detailed;
+    // -1 for a stage the payment never reached
+    private final long[] stageNanos = new long[STAGES.length];
+
+    PaymentTrace(Transaction transaction, String transactionUuid, String type, long startNanos, boolean detailed) {
+        this.transaction = transaction;
+        this.transactionUuid = transactionUuid;
+        this.type = type;
+        this.startNanos = startNanos;
+        this.detailed = detailed;
+        Arrays.fill(stageNanos, -1);
+    }
+
+    void record(String stage, long nanos) {
+        for (int i = 0; i < STAGES.length; i++) {
+            if (STAGES[i].equals(stage)) {
+                stageNanos[i] = nanos;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Time spent in {@code STAGES[index]}, or -1 when the payment did not get that far.
+     */
+    long stageNanos(int index) {
+        return stageNanos[index];
+    }
+}
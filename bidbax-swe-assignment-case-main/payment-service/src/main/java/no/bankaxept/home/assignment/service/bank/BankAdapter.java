@@ -0,0 +1,31 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import no.bankaxept.home.assignment.model.Transaction;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A bank the service can ask to approve big payments, registered in a {@link BankRegistry} under the name that
+ * payments give in {@code Transaction.bank}.
+ * <p>
+ * {@link #validate} follows the contract of {@link BankClient}: the future completes exceptionally with a
+ * {@link no.bankaxept.home.assignment.service.exception.BankValidationException} when the bank says no and with an
+ * {@link java.io.IOException} when it cannot be reached, and cancelling it aborts the call.
+ */
+public interface BankAdapter {
+
+    /**
+     * The bank's name, as payments give it.
+     */
+    String getBank();
+
+    /**
+     * Payments above this amount are big and need the bank's approval; the others only need the balance.
+     */
+    int getBigPaymentThreshold();
+
+    /**
+     * @param timeoutMillis time the whole check may take, or {@code 0} for the adapter's own timeouts only
+     */
+    CompletableFuture<Void> validate(Transaction transaction, String transactionUuid, long timeoutMillis);
+}
@@ -0,0 +1,253 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non-blocking client for the bank check APIs. Every call returns immediately with a future that is
+ * completed on the HTTP client's I/O threads, so no caller thread is held while a bank responds.
+ * <p>
+ * Futures complete exceptionally with {@link BankValidationException} when the bank rejects the
+ * transaction and with {@link IOException} when the bank cannot be reached or answers with a server error.
+ * <p>
+ * A call given a timeout is bounded by it as a whole: the connect and read timeouts of the request are cut down to
+ * it, and when it runs out the exchange is aborted and the future fails with an {@link IOException} caused by a
+ * {@link TimeoutException}, even while the bank is still trickling a response.
+ * <p>
+ * Each check can be given the URL of the bank to call, so one client serves every bank in a {@link BankRegistry};
+ * the checks without one call the URLs the client was created with.
+ */
+public class BankClient {
+    private static final Logger logger = LoggerFactory.getLogger(BankClient.class);
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final String bigBankUrl;
+    private final String cashiersUrl;
+    private final String loanersUrl;
+    private final RequestConfig requestConfig;
+    private final ScheduledThreadPoolExecutor timeouts;
+
+    /**
+     * A client for checks that are given their bank's URL.
+     */
+    public BankClient(CloseableHttpAsyncClient httpClient, ObjectMapper objectMapper, RequestConfig requestConfig) {
+        this(httpClient, objectMapper, null, null, null, requestConfig);
+    }
+
+    public BankClient(CloseableHttpAsyncClient httpClient, ObjectMapper objectMapper,
+                      String bigBankUrl, String cashiersUrl, String loanersUrl) {
+        this(httpClient, objectMapper, bigBankUrl, cashiersUrl, loanersUrl, RequestConfig.DEFAULT);
+    }
+
+    /**
+     * @param requestConfig the HTTP client's default request config, which per-call timeouts are derived from
+     */
+    public BankClient(CloseableHttpAsyncClient httpClient, ObjectMapper objectMapper,
+                      String bigBankUrl, String cashiersUrl, String loanersUrl, RequestConfig requestConfig) {
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.bigBankUrl = bigBankUrl;
+        this.cashiersUrl = cashiersUrl;
+        this.loanersUrl = loanersUrl;
+        this.requestConfig = requestConfig;
+        this.timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "bank-call-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most calls finish in time, so their timers must not pile up in the queue
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    public CompletableFuture<Void> validateBigBank(Transaction transaction, String transactionUuid) {
+        return validateBigBank(transaction, transactionUuid, 0);
+    }
+
+    /**
+     * @param timeoutMillis time the whole call may take, or {@code 0} for the client's default timeouts only
+     */
+    public CompletableFuture<Void> validateBigBank(Transaction transaction, String transactionUuid, long timeoutMillis) {
+        return validateBigBank(bigBankUrl, transaction, transactionUuid, timeoutMillis);
+    }
+
+    public CompletableFuture<Void> validateBigBank(String url, Transaction transaction, String transactionUuid, long timeoutMillis) {
+        HttpGet request = new HttpGet(url + "/check/" + transaction.amount);
+        return execute(request, "Big Bank", "Big Bank Service is currently unavailable. Please try again later.", transactionUuid, timeoutMillis)
+                .thenAccept(response -> {
+                    JsonNode jsonNode = readTree(checkStatus(response, transaction, "Transaction not approved by Big Bank."));
+                    if (jsonNode == null || !jsonNode.path("successful").asBoolean()) {
+                        throw new BankValidationException(transaction.bank, "Transaction not approved by Big Bank.");
+                    }
+                });
+    }
+
+    public CompletableFuture<Void> validateCashiers(Transaction transaction, String transactionUuid) {
+        return validateCashiers(transaction, transactionUuid, 0);
+    }
+
+    public CompletableFuture<Void> validateCashiers(Transaction transaction, String transactionUuid, long timeoutMillis) {
+        return validateCashiers(cashiersUrl, transaction, transactionUuid, timeoutMillis);
+    }
+
+    public CompletableFuture<Void> validateCashiers(String url, Transaction transaction, String transactionUuid, long timeoutMillis) {
+        HttpGet request = new HttpGet(url + "/payment/" + transaction.cardNumber + "?amount=" + transaction.amount);
+        return execute(request, "Cashier", "Payment service is currently unavailable. Please try again later.", transactionUuid, timeoutMillis)
+                .thenAccept(response -> checkStatus(response, transaction, "Transaction failed with Cashiers."));
+    }
+
+    public CompletableFuture<Void> validateLoaners(Transaction transaction, String transactionUuid) {
+        return validateLoaners(transaction, transactionUuid, 0);
+    }
+
+    public CompletableFuture<Void> validateLoaners(Transaction transaction, String transactionUuid, long timeoutMillis) {
+        return validateLoaners(loanersUrl, transaction, transactionUuid, timeoutMillis);
+    }
+
+    public CompletableFuture<Void> validateLoaners(String url, Transaction transaction, String transactionUuid, long timeoutMillis) {
+        HttpPost request = new HttpPost(url + "/payment/check");
+        try {
+            String body = objectMapper.writeValueAsString(new LoanersRequest(transaction.cardNumber, transaction.amount));
+            request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return execute(request, "Loaners", "Loaners service is currently unavailable. Please try again later.", transactionUuid, timeoutMillis)
+                .thenAccept(response -> {
+                    String body = checkStatus(response, transaction, "Transaction not approved by Loaners.");
+                    Optional.ofNullable(readValue(body, LoanersResponse.class))
+                            .filter(resp -> resp.responseCode == 1 && "Approved".equals(resp.status))
+                            .orElseThrow(() -> new BankValidationException(transaction.bank, "Transaction not approved by Loaners."));
+                });
+    }
+
+    private CompletableFuture<HttpResponse> execute(HttpRequestBase request, String bankName, String unavailableMessage,
+                                                    String transactionUuid, long timeoutMillis) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        if (timeoutMillis > 0) {
+            request.setConfig(RequestConfig.copy(requestConfig)
+                    .setConnectTimeout(cap(requestConfig.getConnectTimeout(), timeoutMillis))
+                    .setConnectionRequestTimeout(cap(requestConfig.getConnectionRequestTimeout(), timeoutMillis))
+                    .setSocketTimeout(cap(requestConfig.getSocketTimeout(), timeoutMillis))
+                    .build());
+        }
+        Future<HttpResponse> exchange = httpClient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                logger.error("Payment API timeout for {} on transaction: {}", bankName, transactionUuid);
+                future.completeExceptionally(new IOException(unavailableMessage, e));
+            }
+
+            @Override
+            public void cancelled() {
+                future.completeExceptionally(new IOException(unavailableMessage));
+            }
+        });
+        ScheduledFuture<?> timeout = timeoutMillis > 0 ? timeouts.schedule(() -> {
+            if (future.completeExceptionally(new IOException(unavailableMessage, new TimeoutException(bankName + " did not answer within " + timeoutMillis + " ms")))) {
+                logger.warn("Payment API deadline passed for {} on transaction: {}", bankName, transactionUuid);
+                exchange.cancel(true);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS) : null;
+        // Abort the exchange if the caller gives up on the result
+        future.whenComplete((response, e) -> {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (future.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    // A timeout of 0 or less means none, so the budget always applies then
+    private static int cap(int configured, long budget) {
+        return (int) (configured > 0 ? Math.min(configured, budget) : budget);
+    }
+
+    private String checkStatus(HttpResponse response, Transaction transaction, String rejectionMessage) {
+        int status = response.getStatusLine().getStatusCode();
+        String body = readBody(response);
+        if (status >= 500) {
+            throw new CompletionException(new IOException(transaction.bank + " responded with HTTP " + status));
+        }
+        if (status >= 400) {
+            throw new BankValidationException(transaction.bank, rejectionMessage);
+        }
+        return body;
+    }
+
+    private String readBody(HttpResponse response) {
+        try {
+            return response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private JsonNode readTree(String body) {
+        try {
+            return objectMapper.readTree(body);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private <T> T readValue(String body, Class<T> type) {
+        try {
+            return objectMapper.readValue(body, type);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    // Nested static classes for LoanersRequest and LoanersResponse
+
+    private static class LoanersRequest {
+        public String cardNumber;
+        public int amount;
+
+        public LoanersRequest(String cardNumber, int amount) {
+            this.cardNumber = cardNumber;
+            this.amount = amount;
+        }
+    }
+
+    private static class LoanersResponse {
+        public int responseCode;
+        public String status;
+        public String errorReason;
+    }
+}
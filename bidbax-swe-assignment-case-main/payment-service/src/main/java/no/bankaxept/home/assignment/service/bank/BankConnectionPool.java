@@ -0,0 +1,142 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.http.HttpHost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Keep-alive connection pool for the bank clients. Each bank host is its own route, so every bank gets a
+ * separate pool with its own maximum and one saturated bank cannot starve connections to the others.
+ * <p>
+ * Connections are reused until they exceed the configured time to live; a background task closes expired
+ * connections and those idle for longer than the idle timeout.
+ */
+public class BankConnectionPool implements MeterBinder, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BankConnectionPool.class);
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final Map<String, HttpRoute> routes = new LinkedHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    public BankConnectionPool(int maxTotal, int defaultMaxPerRoute, long timeToLiveMs,
+                              long idleTimeoutMs, long evictionIntervalMs) throws IOReactorException {
+        DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                .setSoKeepAlive(true)
+                .setTcpNoDelay(true)
+                .build());
+        this.connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, null,
+                RegistryBuilder.<SchemeIOSessionStrategy>create()
+                        .register("http", NoopIOSessionStrategy.INSTANCE)
+                        .register("https", SSLIOSessionStrategy.getDefaultStrategy())
+                        .build(),
+                null, null, timeToLiveMs, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(defaultMaxPerRoute);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bank-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(() -> evict(idleTimeoutMs), evictionIntervalMs, evictionIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the host of {@code url} as the route for {@code bank}, capped at {@code maxConnections}.
+     */
+    public void registerRoute(String bank, String url, int maxConnections) {
+        HttpRoute route = toRoute(url);
+        connectionManager.setMaxPerRoute(route, maxConnections);
+        routes.put(bank, route);
+    }
+
+    public PoolingNHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public PoolStats getStats(String bank) {
+        HttpRoute route = routes.get(bank);
+        if (route == null) {
+            throw new IllegalArgumentException("No connection pool registered for bank: " + bank);
+        }
+        return connectionManager.getStats(route);
+    }
+
+    public PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    public Map<String, PoolStats> getStatsByBank() {
+        Map<String, PoolStats> stats = new LinkedHashMap<>();
+        routes.forEach((bank, route) -> stats.put(bank, connectionManager.getStats(route)));
+        return Collections.unmodifiableMap(stats);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        routes.keySet().forEach(bank -> {
+            gauge(registry, "bank.http.pool.leased", "Connections currently in use", bank, PoolStats::getLeased);
+            gauge(registry, "bank.http.pool.pending", "Requests waiting for a connection", bank, PoolStats::getPending);
+            gauge(registry, "bank.http.pool.available", "Idle keep-alive connections", bank, PoolStats::getAvailable);
+            gauge(registry, "bank.http.pool.max", "Maximum connections for the bank", bank, PoolStats::getMax);
+        });
+    }
+
+    private void gauge(MeterRegistry registry, String name, String description, String bank, ToDoubleFunction<PoolStats> value) {
+        Gauge.builder(name, this, pool -> value.applyAsDouble(pool.getStats(bank)))
+                .description(description)
+                .tag("bank", bank)
+                .register(registry);
+    }
+
+    private void evict(long idleTimeoutMs) {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS);
+        getStatsByBank().forEach((bank, stats) -> {
+            if (stats.getPending() > 0) {
+                logger.warn("Connection pool for {} is saturated: leased={}, pending={}, available={}, max={}",
+                        bank, stats.getLeased(), stats.getPending(), stats.getAvailable(), stats.getMax());
+            }
+        });
+    }
+
+    private static HttpRoute toRoute(String url) {
+        HttpHost host = HttpHost.create(url);
+        try {
+            // The client resolves default ports before looking up a route, so the registered route has to as well
+            HttpHost target = new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host), host.getSchemeName());
+            return new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+        } catch (UnsupportedSchemeException e) {
+            throw new IllegalArgumentException("Unsupported bank URL: " + url, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+    }
+}
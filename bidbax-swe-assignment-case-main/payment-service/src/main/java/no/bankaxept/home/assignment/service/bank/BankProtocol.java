@@ -0,0 +1,63 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import no.bankaxept.home.assignment.model.Transaction;
+
+import java.util.function.Function;
+
+/**
+ * The check APIs {@link BankClient} speaks. A new bank that speaks one of them is added in configuration only.
+ */
+public enum BankProtocol {
+    BIG_BANK("big-bank") {
+        @Override
+        public ConfiguredBankAdapter.Check bind(BankClient client, String url) {
+            return (transaction, transactionUuid, timeoutMillis) -> client.validateBigBank(url, transaction, transactionUuid, timeoutMillis);
+        }
+
+        // The check only sends the amount
+        @Override
+        public Function<Transaction, Object> cacheKey() {
+            return transaction -> transaction.amount;
+        }
+    },
+    CASHIERS("cashiers") {
+        @Override
+        public ConfiguredBankAdapter.Check bind(BankClient client, String url) {
+            return (transaction, transactionUuid, timeoutMillis) -> client.validateCashiers(url, transaction, transactionUuid, timeoutMillis);
+        }
+    },
+    LOANERS("loaners") {
+        @Override
+        public ConfiguredBankAdapter.Check bind(BankClient client, String url) {
+            return (transaction, transactionUuid, timeoutMillis) -> client.validateLoaners(url, transaction, transactionUuid, timeoutMillis);
+        }
+    };
+
+    private final String id;
+
+    BankProtocol(String id) {
+        this.id = id;
+    }
+
+    /**
+     * The check against the bank at {@code url}.
+     */
+    public abstract ConfiguredBankAdapter.Check bind(BankClient client, String url);
+
+    /**
+     * What the bank's answer depends on, for a {@link CachingBankAdapter}, or {@code null} when the answer depends on
+     * the card and must not be cached.
+     */
+    public Function<Transaction, Object> cacheKey() {
+        return null;
+    }
+
+    public static BankProtocol of(String id) {
+        for (BankProtocol protocol : values()) {
+            if (protocol.id.equals(id)) {
+                return protocol;
+            }
+        }
+        throw new IllegalArgumentException("Unknown bank protocol: " + id);
+    }
+}
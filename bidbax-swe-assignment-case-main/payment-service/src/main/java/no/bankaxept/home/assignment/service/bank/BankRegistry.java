@@ -0,0 +1,71 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.bankaxept.home.assignment.model.Transaction;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The banks the service knows, by the name payments give in {@code Transaction.bank}. A payment to a bank that is
+ * not registered is big above {@value #DEFAULT_BIG_PAYMENT_THRESHOLD}, and fails as unsupported once it needs the
+ * bank's approval. Adapters with metrics of their own are bound with the registry.
+ */
+public class BankRegistry implements MeterBinder {
+
+    public static final int DEFAULT_BIG_PAYMENT_THRESHOLD = 100;
+
+    private final Map<String, BankAdapter> adapters = new LinkedHashMap<>();
+
+    public BankRegistry(Collection<? extends BankAdapter> adapters) {
+        for (BankAdapter adapter : adapters) {
+            if (this.adapters.putIfAbsent(adapter.getBank(), adapter) != null) {
+                throw new IllegalArgumentException("Bank registered twice: " + adapter.getBank());
+            }
+        }
+    }
+
+    /**
+     * The three banks at the URLs {@code client} was created with, checked without retries.
+     */
+    public static BankRegistry of(BankClient client) {
+        // Lambdas rather than method references, so a service that never calls a bank can pass a null client
+        return new BankRegistry(Arrays.asList(
+                new ConfiguredBankAdapter("The Big Bank", 200, 0, 0, (t, uuid, timeout) -> client.validateBigBank(t, uuid, timeout)),
+                new ConfiguredBankAdapter("The Cashiers", DEFAULT_BIG_PAYMENT_THRESHOLD, 0, 0, (t, uuid, timeout) -> client.validateCashiers(t, uuid, timeout)),
+                new ConfiguredBankAdapter("Loaners", DEFAULT_BIG_PAYMENT_THRESHOLD, 0, 0, (t, uuid, timeout) -> client.validateLoaners(t, uuid, timeout))));
+    }
+
+    /**
+     * The adapter for {@code bank}, or {@code null} when it is not registered.
+     */
+    public BankAdapter get(String bank) {
+        return bank == null ? null : adapters.get(bank);
+    }
+
+    public boolean contains(String bank) {
+        return get(bank) != null;
+    }
+
+    public boolean isBigTransaction(Transaction transaction) {
+        BankAdapter adapter = get(transaction.bank);
+        return transaction.amount > (adapter != null ? adapter.getBigPaymentThreshold() : DEFAULT_BIG_PAYMENT_THRESHOLD);
+    }
+
+    public Collection<BankAdapter> getAdapters() {
+        return Collections.unmodifiableCollection(adapters.values());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (BankAdapter adapter : adapters.values()) {
+            if (adapter instanceof MeterBinder) {
+                ((MeterBinder) adapter).bindTo(registry);
+            }
+        }
+    }
+}
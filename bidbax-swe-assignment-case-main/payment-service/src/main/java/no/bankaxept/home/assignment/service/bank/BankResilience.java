@@ -0,0 +1,144 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Per-bank bulkhead and circuit breaker for the bank checks.
+ * <p>
+ * The bulkhead caps the number of in-flight checks for each bank and rejects the excess immediately, so a slow
+ * bank cannot take up capacity meant for the others. The circuit breaker opens when too many checks for a bank
+ * fail or are slow, rejects further checks while open, and after a wait lets a few probe checks through to decide
+ * whether the bank has recovered. A rejection by the bank itself is a healthy answer and does not count as a failure.
+ * <p>
+ * Both guards are applied by a plain method call rather than an AOP proxy, so they also hold when the caller
+ * invokes them from inside the same bean.
+ */
+public class BankResilience implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(BankResilience.class);
+
+    private final CircuitBreakerConfig circuitBreakerConfig;
+    private final Map<String, Guard> guards = new ConcurrentHashMap<>();
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+
+    public BankResilience(float failureRateThreshold, long slowCallThresholdMs, int slidingWindowSize,
+                          int minimumNumberOfCalls, long waitDurationInOpenStateMs, int permittedCallsInHalfOpenState) {
+        this.circuitBreakerConfig = CircuitBreakerConfig.custom()
+                .failureRateThreshold(failureRateThreshold)
+                .slowCallRateThreshold(failureRateThreshold)
+                .slowCallDurationThreshold(Duration.ofMillis(slowCallThresholdMs))
+                .slidingWindowSize(slidingWindowSize)
+                .minimumNumberOfCalls(minimumNumberOfCalls)
+                .waitDurationInOpenState(Duration.ofMillis(waitDurationInOpenStateMs))
+                .permittedNumberOfCallsInHalfOpenState(permittedCallsInHalfOpenState)
+                .automaticTransitionFromOpenToHalfOpenEnabled(true)
+                .recordExceptions(IOException.class, TimeoutException.class)
+                .ignoreExceptions(BulkheadFullException.class)
+                .build();
+    }
+
+    /**
+     * Registers a bank with at most {@code maxConcurrentCalls} checks in flight at any time.
+     */
+    public void register(String bank, int maxConcurrentCalls) {
+        Bulkhead bulkhead = Bulkhead.of(bank, BulkheadConfig.custom()
+                .maxConcurrentCalls(maxConcurrentCalls)
+                .maxWaitDuration(Duration.ZERO)
+                .build());
+        CircuitBreaker circuitBreaker = CircuitBreaker.of(bank, circuitBreakerConfig);
+
+        Gauge.builder("bank.circuitbreaker.state", circuitBreaker, breaker -> breaker.getState().getOrder())
+                .description("Circuit breaker state: 0 closed, 1 open, 2 half-open")
+                .tag("bank", bank)
+                .register(meterRegistry);
+        Gauge.builder("bank.bulkhead.available", bulkhead, guard -> guard.getMetrics().getAvailableConcurrentCalls())
+                .description("Remaining concurrent bank checks before rejection")
+                .tag("bank", bank)
+                .register(meterRegistry);
+        Counter circuitRejections = Counter.builder("bank.circuitbreaker.rejections")
+                .description("Checks rejected because the circuit breaker was open")
+                .tag("bank", bank)
+                .register(meterRegistry);
+        Counter bulkheadRejections = Counter.builder("bank.bulkhead.rejections")
+                .description("Checks rejected because the bank was at its concurrency limit")
+                .tag("bank", bank)
+                .register(meterRegistry);
+
+        circuitBreaker.getEventPublisher()
+                .onStateTransition(event -> {
+                    logger.warn("Circuit breaker for {} changed state: {}", bank, event.getStateTransition());
+                    Counter.builder("bank.circuitbreaker.transitions")
+                            .description("Circuit breaker state transitions")
+                            .tag("bank", bank)
+                            .tag("from", event.getStateTransition().getFromState().name())
+                            .tag("to", event.getStateTransition().getToState().name())
+                            .register(meterRegistry)
+                            .increment();
+                })
+                .onCallNotPermitted(event -> circuitRejections.increment());
+        bulkhead.getEventPublisher()
+                .onCallRejected(event -> bulkheadRejections.increment());
+
+        guards.put(bank, new Guard(bulkhead, circuitBreaker));
+    }
+
+    /**
+     * Runs the bank check through the bank's bulkhead and circuit breaker. Checks rejected by either guard
+     * complete exceptionally with an {@link IOException}, the same way an unreachable bank does.
+     */
+    public <T> CompletableFuture<T> execute(String bank, Supplier<CompletableFuture<T>> call) {
+        Guard guard = guards.get(bank);
+        if (guard == null) {
+            return call.get();
+        }
+        Supplier<CompletableFuture<T>> guarded = () -> Bulkhead.decorateCompletionStage(guard.bulkhead, call::get).get().toCompletableFuture();
+        CompletableFuture<T> result = CircuitBreaker.decorateCompletionStage(guard.circuitBreaker, guarded::get).get().toCompletableFuture();
+        return result.exceptionally(throwable -> {
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            if (cause instanceof CallNotPermittedException || cause instanceof BulkheadFullException) {
+                logger.warn("Check rejected for {}: {}", bank, cause.getMessage());
+                throw new CompletionException(new IOException(bank + " is temporarily unavailable. Please try again later.", cause));
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    public CircuitBreaker.State getState(String bank) {
+        return guards.get(bank).circuitBreaker.getState();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        meterRegistry.add(registry);
+    }
+
+    private static class Guard {
+        final Bulkhead bulkhead;
+        final CircuitBreaker circuitBreaker;
+
+        Guard(Bulkhead bulkhead, CircuitBreaker circuitBreaker) {
+            this.bulkhead = bulkhead;
+            this.circuitBreaker = circuitBreaker;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Remembers the answers of a bank whose check depends only on inputs that are not sensitive, such as the amount.
+ * <p>
+ * The first check for a key calls the bank; a concurrent check with the same key shares that call, and a later
+ * one gets the stored answer until it expires after the TTL. Approvals and rejections are both answers and are
+ * stored; a check that could not reach the bank is not, so the next one calls again. When the cache is full,
+ * expired answers are dropped first, then the first settled one found.
+ * <p>
+ * A shared call runs with the time its first caller offered. Cancelling a check does not cancel the call that
+ * others may be waiting for.
+ */
+public class CachingBankAdapter implements BankAdapter, MeterBinder {
+
+    private final BankAdapter delegate;
+    private final Function<Transaction, Object> key;
+    private final long ttlMs;
+    private final int maxEntries;
+    private final Map<Object, Entry> entries = new ConcurrentHashMap<>();
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param key what the bank's answer depends on; it must not contain the card number or anything else sensitive
+     */
+    public CachingBankAdapter(BankAdapter delegate, Function<Transaction, Object> key, long ttlMs, int maxEntries) {
+        this.delegate = delegate;
+        this.key = key;
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+
+        Gauge.builder("bank.cache.entries", entries, Map::size)
+                .description("Bank answers currently cached")
+                .tag("bank", delegate.getBank())
+                .register(meterRegistry);
+        registerRequests("hit", hits);
+        registerRequests("miss", misses);
+        registerRequests("coalesced", coalesced);
+    }
+
+    @Override
+    public String getBank() {
+        return delegate.getBank();
+    }
+
+    @Override
+    public int getBigPaymentThreshold() {
+        return delegate.getBigPaymentThreshold();
+    }
+
+    @Override
+    public CompletableFuture<Void> validate(Transaction transaction, String transactionUuid, long timeoutMillis) {
+        Object cacheKey = key.apply(transaction);
+        while (true) {
+            Entry existing = entries.get(cacheKey);
+            if (existing == null) {
+                if (entries.size() >= maxEntries && !makeRoom()) {
+                    misses.increment();
+                    return delegate.validate(transaction, transactionUuid, timeoutMillis);
+                }
+                Entry entry = new Entry();
+                if (entries.putIfAbsent(cacheKey, entry) == null) {
+                    misses.increment();
+                    call(cacheKey, entry, transaction, transactionUuid, timeoutMillis);
+                    return copy(entry.result);
+                }
+                continue;
+            }
+            if (existing.isExpired(System.currentTimeMillis())) {
+                entries.remove(cacheKey, existing);
+                continue;
+            }
+            (existing.result.isDone() ? hits : coalesced).increment();
+            return copy(existing.result);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        meterRegistry.add(registry);
+    }
+
+    private void call(Object cacheKey, Entry entry, Transaction transaction, String transactionUuid, long timeoutMillis) {
+        CompletableFuture<Void> answer;
+        try {
+            answer = delegate.validate(transaction, transactionUuid, timeoutMillis);
+        } catch (RuntimeException e) {
+            answer = new CompletableFuture<>();
+            answer.completeExceptionally(e);
+        }
+        answer.whenComplete((ignored, failure) -> {
+            if (failure != null && !(unwrap(failure) instanceof BankValidationException)) {
+                entries.remove(cacheKey, entry);
+            } else {
+                entry.expiresAt = System.currentTimeMillis() + ttlMs;
+            }
+            if (failure != null) {
+                entry.result.completeExceptionally(failure);
+            } else {
+                entry.result.complete(null);
+            }
+        });
+    }
+
+    // Drops expired answers, or failing that one settled answer; false when every entry is still in flight
+    private boolean makeRoom() {
+        long now = System.currentTimeMillis();
+        if (entries.values().removeIf(entry -> entry.isExpired(now))) {
+            return true;
+        }
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().result.isDone()) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Every caller gets its own future, so one caller cancelling cannot cancel the answer for the others
+    private static CompletableFuture<Void> copy(CompletableFuture<Void> result) {
+        return result.thenApply(Function.identity());
+    }
+
+    private void registerRequests(String outcome, LongAdder count) {
+        FunctionCounter.builder("bank.cache.requests", count, LongAdder::sum)
+                .description("Bank checks by whether the cache answered them")
+                .tags("bank", delegate.getBank(), "outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    private static class Entry {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        // Still in flight until set
+        volatile long expiresAt = Long.MAX_VALUE;
+
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+}
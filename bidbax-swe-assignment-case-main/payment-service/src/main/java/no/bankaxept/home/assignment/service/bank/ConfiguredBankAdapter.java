@@ -0,0 +1,93 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import no.bankaxept.home.assignment.model.Transaction;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link BankAdapter} with its own threshold, timeout and retries around a single check call.
+ * <p>
+ * The timeout caps the time the payment offers; a check gets whichever is shorter. A check that fails with an
+ * {@link IOException}, such as a refused connection or a server error, is tried again up to {@code retries} times
+ * while that time lasts. A rejection by the bank is an answer and is never retried.
+ */
+public class ConfiguredBankAdapter implements BankAdapter {
+
+    /**
+     * One call to the bank, as made by {@link BankClient}.
+     */
+    @FunctionalInterface
+    public interface Check {
+        CompletableFuture<Void> validate(Transaction transaction, String transactionUuid, long timeoutMillis);
+    }
+
+    private final String bank;
+    private final int bigPaymentThreshold;
+    private final long timeoutMillis;
+    private final int retries;
+    private final Check check;
+
+    /**
+     * @param timeoutMillis longest a check may take, or {@code 0} to leave it to the payment
+     * @param retries       further attempts after a check that could not reach the bank
+     */
+    public ConfiguredBankAdapter(String bank, int bigPaymentThreshold, long timeoutMillis, int retries, Check check) {
+        this.bank = bank;
+        this.bigPaymentThreshold = bigPaymentThreshold;
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        this.check = check;
+    }
+
+    @Override
+    public String getBank() {
+        return bank;
+    }
+
+    @Override
+    public int getBigPaymentThreshold() {
+        return bigPaymentThreshold;
+    }
+
+    @Override
+    public CompletableFuture<Void> validate(Transaction transaction, String transactionUuid, long timeoutMillis) {
+        long budget = this.timeoutMillis <= 0 ? timeoutMillis : timeoutMillis <= 0 ? this.timeoutMillis : Math.min(this.timeoutMillis, timeoutMillis);
+        if (retries == 0) {
+            return check.validate(transaction, transactionUuid, budget);
+        }
+        long deadlineNanos = budget > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget) : 0;
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        attempt(transaction, transactionUuid, budget, deadlineNanos, retries, result);
+        return result;
+    }
+
+    private void attempt(Transaction transaction, String transactionUuid, long budget, long deadlineNanos, int retriesLeft,
+                         CompletableFuture<Void> result) {
+        CompletableFuture<Void> call = check.validate(transaction, transactionUuid, budget);
+        result.whenComplete((ignored, e) -> {
+            if (result.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+        call.whenComplete((ignored, failure) -> {
+            if (failure == null) {
+                result.complete(null);
+                return;
+            }
+            long remaining = deadlineNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (retriesLeft > 0 && isRetryable(failure) && (deadlineNanos == 0 || remaining > 0) && !result.isDone()) {
+                attempt(transaction, transactionUuid, remaining, deadlineNanos, retriesLeft - 1, result);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        });
+    }
+
+    private static boolean isRetryable(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        return cause instanceof IOException;
+    }
+}
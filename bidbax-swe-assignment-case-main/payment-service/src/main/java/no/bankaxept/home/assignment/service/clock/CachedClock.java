@@ -0,0 +1,73 @@
+package no.bankaxept.home.assignment.service.clock;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock that serves the time from a field refreshed by a background thread, so reading it on the payment hot path
+ * is a single volatile read. The time it reports is at most one resolution period behind the system clock.
+ */
+public class CachedClock extends Clock implements Closeable {
+    private final Ticker ticker;
+    private final ZoneId zone;
+
+    public CachedClock(long resolutionMillis) {
+        this(new Ticker(resolutionMillis), ZoneOffset.UTC);
+    }
+
+    private CachedClock(Ticker ticker, ZoneId zone) {
+        this.ticker = ticker;
+        this.zone = zone;
+    }
+
+    @Override
+    public long millis() {
+        return ticker.millis;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(ticker.millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * A clock in another zone that shares this clock's time source.
+     */
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new CachedClock(ticker, zone);
+    }
+
+    /**
+     * Stops refreshing the time, for this clock and every clock derived from it.
+     */
+    @Override
+    public void close() {
+        ticker.scheduler.shutdownNow();
+    }
+
+    private static class Ticker {
+        final ScheduledExecutorService scheduler;
+        volatile long millis = System.currentTimeMillis();
+
+        Ticker(long resolutionMillis) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cached-clock");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(() -> millis = System.currentTimeMillis(), resolutionMillis, resolutionMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package no.bankaxept.home.assignment.service.config;
+
+import no.bankaxept.home.assignment.service.bank.BankAdapter;
+import no.bankaxept.home.assignment.service.bank.BankClient;
+import no.bankaxept.home.assignment.service.bank.BankProtocol;
+import no.bankaxept.home.assignment.service.bank.CachingBankAdapter;
+import no.bankaxept.home.assignment.service.bank.ConfiguredBankAdapter;
+import org.springframework.core.env.Environment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One bank from configuration. {@code bank.adapters} lists the ids, and each id has its own properties:
+ * <pre>
+ * bank.adapters=bigbank,...
+ * bank.bigbank.name=The Big Bank
+ * bank.bigbank.protocol=big-bank
+ * bank.bigbank.url=http://fake.bigbank.no
+ * bank.bigbank.bigPaymentThreshold=200
+ * bank.bigbank.timeout=0
+ * bank.bigbank.retries=1
+ * bank.bigbank.maxConnections=50
+ * bank.bigbank.maxConcurrentCalls=50
+ * bank.bigbank.cache.ttl=10000
+ * bank.bigbank.cache.maxEntries=10000
+ * </pre>
+ * The protocol is one of {@link BankProtocol}; a timeout of 0 leaves the check to the payment's deadline. A bank's
+ * answers are only cached when it sets a {@code cache.ttl}, and only a protocol whose check does not depend on the
+ * card allows it.
+ */
+final class BankSettings {
+
+    final String name;
+    final BankProtocol protocol;
+    final String url;
+    final int bigPaymentThreshold;
+    final long timeout;
+    final int retries;
+    final int maxConnections;
+    final int maxConcurrentCalls;
+    final long cacheTtl;
+    final int cacheMaxEntries;
+
+    private BankSettings(Environment environment, String id) {
+        String prefix = "bank." + id + ".";
+        this.name = environment.getRequiredProperty(prefix + "name");
+        this.protocol = BankProtocol.of(environment.getRequiredProperty(prefix + "protocol"));
+        this.url = environment.getRequiredProperty(prefix + "url");
+        this.bigPaymentThreshold = environment.getRequiredProperty(prefix + "bigPaymentThreshold", Integer.class);
+        this.timeout = environment.getProperty(prefix + "timeout", Long.class, 0L);
+        this.retries = environment.getProperty(prefix + "retries", Integer.class, 0);
+        this.maxConnections = environment.getRequiredProperty(prefix + "maxConnections", Integer.class);
+        this.maxConcurrentCalls = environment.getRequiredProperty(prefix + "maxConcurrentCalls", Integer.class);
+        this.cacheTtl = environment.getProperty(prefix + "cache.ttl", Long.class, 0L);
+        this.cacheMaxEntries = environment.getProperty(prefix + "cache.maxEntries", Integer.class, 10000);
+        if (cacheTtl > 0 && protocol.cacheKey() == null) {
+            throw new IllegalArgumentException("Checks for " + name + " depend on the card and cannot be cached; remove "
+                    + prefix + "cache.ttl");
+        }
+    }
+
+    static List<BankSettings> load(Environment environment) {
+        List<BankSettings> banks = new ArrayList<>();
+        for (String id : environment.getRequiredProperty("bank.adapters", String[].class)) {
+            banks.add(new BankSettings(environment, id.trim()));
+        }
+        return banks;
+    }
+
+    BankAdapter adapter(BankClient client) {
+        BankAdapter adapter = new ConfiguredBankAdapter(name, bigPaymentThreshold, timeout, retries, protocol.bind(client, url));
+        return cacheTtl > 0 ? new CachingBankAdapter(adapter, protocol.cacheKey(), cacheTtl, cacheMaxEntries) : adapter;
+    }
+}
@@ -1,39 +1,289 @@
 package no.bankaxept.home.assignment.service.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import no.bankaxept.home.assignment.service.BatchPaymentService;
 import no.bankaxept.home.assignment.service.PaymentService;
+import no.bankaxept.home.assignment.service.bank.BankAdapter;
+import no.bankaxept.home.assignment.service.bank.BankClient;
+import no.bankaxept.home.assignment.service.bank.BankConnectionPool;
+import no.bankaxept.home.assignment.service.bank.BankRegistry;
+import no.bankaxept.home.assignment.service.bank.BankResilience;
+import no.bankaxept.home.assignment.service.clock.CachedClock;
+import no.bankaxept.home.assignment.service.dedup.DuplicateDetector;
+import no.bankaxept.home.assignment.service.executor.PaymentExecutor;
+import no.bankaxept.home.assignment.service.history.TransactionHistory;
+import no.bankaxept.home.assignment.service.ledger.BalanceJournal;
+import no.bankaxept.home.assignment.service.ledger.BalanceLedger;
+import no.bankaxept.home.assignment.service.velocity.VelocityLimiter;
+import no.bankaxept.home.assignment.service.writer.TransactionWriter;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.core.env.Environment;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
 
 @Configuration
 public class ServiceConfiguration {
 
-    @Value("${rest.template.connectTimeout}")
+    @Value("${bank.client.connectTimeout}")
     private int connectTimeout;
 
-    @Value("${rest.template.readTimeout}")
+    @Value("${bank.client.readTimeout}")
     private int readTimeout;
 
+    @Value("${bank.pool.maxTotal}")
+    private int poolMaxTotal;
+
+    @Value("${bank.pool.maxPerRoute}")
+    private int poolMaxPerRoute;
+
+    @Value("${bank.pool.timeToLive}")
+    private long poolTimeToLive;
+
+    @Value("${bank.pool.idleTimeout}")
+    private long poolIdleTimeout;
+
+    @Value("${bank.pool.evictionInterval}")
+    private long poolEvictionInterval;
+
+    @Value("${bank.circuitbreaker.failureRateThreshold}")
+    private float failureRateThreshold;
+
+    @Value("${bank.circuitbreaker.slowCallThreshold}")
+    private long slowCallThreshold;
+
+    @Value("${bank.circuitbreaker.slidingWindowSize}")
+    private int slidingWindowSize;
+
+    @Value("${bank.circuitbreaker.minimumNumberOfCalls}")
+    private int minimumNumberOfCalls;
+
+    @Value("${bank.circuitbreaker.waitDurationInOpenState}")
+    private long waitDurationInOpenState;
+
+    @Value("${bank.circuitbreaker.permittedCallsInHalfOpenState}")
+    private int permittedCallsInHalfOpenState;
+
+    @Value("${ledger.journal.directory}")
+    private String ledgerJournalDirectory;
+
+    @Value("${ledger.journal.segmentSize}")
+    private long ledgerJournalSegmentSize;
+
+    @Value("${ledger.stripes}")
+    private int ledgerStripes;
+
+    @Value("${ledger.flush.batchSize}")
+    private int ledgerFlushBatchSize;
+
+    @Value("${ledger.flush.interval}")
+    private long ledgerFlushInterval;
+
+    @Value("${payment.writer.batchSize}")
+    private int writerBatchSize;
+
+    @Value("${payment.writer.flushInterval}")
+    private long writerFlushInterval;
+
+    @Value("${payment.dedup.expectedInsertions}")
+    private long dedupExpectedInsertions;
+
+    @Value("${payment.dedup.falsePositiveRate}")
+    private double dedupFalsePositiveRate;
+
+    @Value("${payment.dedup.recentCapacity}")
+    private int dedupRecentCapacity;
+
+    @Value("${payment.executor.small.threads}")
+    private int smallExecutorThreads;
+
+    @Value("${payment.executor.small.queueCapacity}")
+    private int smallExecutorQueueCapacity;
+
+    @Value("${payment.executor.big.threads}")
+    private int bigExecutorThreads;
+
+    @Value("${payment.executor.big.queueCapacity}")
+    private int bigExecutorQueueCapacity;
+
+    @Value("${payment.executor.batch.threads}")
+    private int batchExecutorThreads;
+
+    @Value("${payment.executor.batch.queueCapacity}")
+    private int batchExecutorQueueCapacity;
+
+    @Value("${payment.executor.virtualThreads}")
+    private boolean executorVirtualThreads;
+
+    @Value("${payment.clock.resolution}")
+    private long clockResolution;
+
+    @Value("${payment.log.debugSampleRate}")
+    private double debugSampleRate;
+
+    @Value("${payment.history.maxPageSize}")
+    private int historyMaxPageSize;
+
+    @Value("${payment.history.exportFetchSize}")
+    private int historyExportFetchSize;
+
+    @Value("${payment.history.maxConcurrentExports}")
+    private int historyMaxConcurrentExports;
+
+    @Value("${payment.velocity.maxCards}")
+    private int velocityMaxCards;
+
+    @Value("${payment.velocity.stripes}")
+    private int velocityStripes;
+
+    private final List<BankSettings> banks;
+
+    public ServiceConfiguration(Environment environment) {
+        this.banks = BankSettings.load(environment);
+    }
+
     @Bean
     public ObjectMapper objectMapper() {
         return new ObjectMapper();
     }
 
+    @Bean(destroyMethod = "close")
+    public BankConnectionPool bankConnectionPool() throws IOReactorException {
+        BankConnectionPool pool = new BankConnectionPool(poolMaxTotal, poolMaxPerRoute, poolTimeToLive, poolIdleTimeout, poolEvictionInterval);
+        for (BankSettings bank : banks) {
+            pool.registerRoute(bank.name, bank.url, bank.maxConnections);
+        }
+        return pool;
+    }
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpAsyncClient bankHttpClient(BankConnectionPool bankConnectionPool) {
+        CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(bankRequestConfig())
+                .setConnectionManager(bankConnectionPool.getConnectionManager())
+                .build();
+        httpClient.start();
+        return httpClient;
+    }
+
+    @Bean
+    public BankResilience bankResilience() {
+        BankResilience resilience = new BankResilience(failureRateThreshold, slowCallThreshold, slidingWindowSize,
+                minimumNumberOfCalls, waitDurationInOpenState, permittedCallsInHalfOpenState);
+        for (BankSettings bank : banks) {
+            resilience.register(bank.name, bank.maxConcurrentCalls);
+        }
+        return resilience;
+    }
+
+    @Bean
+    public BankClient bankClient(CloseableHttpAsyncClient bankHttpClient, ObjectMapper objectMapper) {
+        return new BankClient(bankHttpClient, objectMapper, bankRequestConfig());
+    }
+
+    @Bean
+    public BankRegistry bankRegistry(BankClient bankClient) {
+        List<BankAdapter> adapters = new ArrayList<>();
+        for (BankSettings bank : banks) {
+            adapters.add(bank.adapter(bankClient));
+        }
+        return new BankRegistry(adapters);
+    }
+
+    private RequestConfig bankRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(connectTimeout) // 10 seconds
+                .setSocketTimeout(readTimeout)     // 10 seconds
+                .build();
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "ledger.enabled", havingValue = "true")
+    public BalanceLedger balanceLedger(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) throws IOException {
+        BalanceJournal journal = new BalanceJournal(Paths.get(ledgerJournalDirectory), ledgerJournalSegmentSize);
+        BalanceLedger ledger = new BalanceLedger(jdbcTemplate, transactionManager, journal, ledgerStripes, ledgerFlushBatchSize, ledgerFlushInterval);
+        ledger.recover();
+        return ledger;
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "payment.writer.enabled", havingValue = "true")
+    public TransactionWriter transactionWriter(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        return new TransactionWriter(jdbcTemplate, transactionManager, writerBatchSize, writerFlushInterval);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "payment.dedup.enabled", havingValue = "true")
+    public DuplicateDetector duplicateDetector(JdbcTemplate jdbcTemplate) {
+        DuplicateDetector detector = new DuplicateDetector(jdbcTemplate, dedupExpectedInsertions, dedupFalsePositiveRate, dedupRecentCapacity);
+        detector.load();
+        return detector;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "payment.velocity.enabled", havingValue = "true")
+    public VelocityLimiter velocityLimiter(Environment environment) {
+        return new VelocityLimiter(VelocitySettings.load(environment), velocityMaxCards, velocityStripes);
+    }
+
+    @Bean(destroyMethod = "close")
+    public PaymentExecutor smallPaymentExecutor() {
+        return new PaymentExecutor("small", smallExecutorThreads, smallExecutorQueueCapacity, executorVirtualThreads);
+    }
+
+    @Bean(destroyMethod = "close")
+    public PaymentExecutor bigPaymentExecutor() {
+        return new PaymentExecutor("big", bigExecutorThreads, bigExecutorQueueCapacity, executorVirtualThreads);
+    }
+
+    @Bean(destroyMethod = "close")
+    public PaymentExecutor batchPaymentExecutor() {
+        return new PaymentExecutor("batch", batchExecutorThreads, batchExecutorQueueCapacity, executorVirtualThreads);
+    }
+
+    // A resolution of 0 reads the system clock every time
+    @Bean
+    public Clock paymentClock() {
+        return clockResolution > 0 ? new CachedClock(clockResolution) : Clock.systemUTC();
+    }
+
+    @Bean
+    public PaymentService paymentService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                         BankRegistry bankRegistry, BankResilience bankResilience,
+                                         PaymentExecutor smallPaymentExecutor, PaymentExecutor bigPaymentExecutor,
+                                         ObjectProvider<BalanceLedger> balanceLedger, ObjectProvider<TransactionWriter> transactionWriter,
+                                         ObjectProvider<DuplicateDetector> duplicateDetector, Clock paymentClock,
+                                         ObjectProvider<VelocityLimiter> velocityLimiter) {
+        return new PaymentService(jdbcTemplate, transactionManager, bankRegistry, bankResilience, smallPaymentExecutor, bigPaymentExecutor,
+                balanceLedger.getIfAvailable(), transactionWriter.getIfAvailable(), duplicateDetector.getIfAvailable(), paymentClock,
+                debugSampleRate, velocityLimiter.getIfAvailable());
+    }
+
     @Bean
-    public RestTemplate restTemplate() {
-        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
-        factory.setConnectTimeout(connectTimeout); // 10 seconds
-        factory.setReadTimeout(readTimeout);    // 10 seconds
-        return new RestTemplate(factory);
+    public BatchPaymentService batchPaymentService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                                   PaymentService paymentService, ObjectProvider<BalanceLedger> balanceLedger,
+                                                   ObjectProvider<DuplicateDetector> duplicateDetector,
+                                                   PaymentExecutor batchPaymentExecutor, Clock paymentClock) {
+        return new BatchPaymentService(jdbcTemplate, transactionManager, paymentService, balanceLedger.getIfAvailable(),
+                duplicateDetector.getIfAvailable(), batchPaymentExecutor, paymentClock);
     }
 
     @Bean
-    public PaymentService paymentService(JdbcTemplate jdbcTemplate, RestTemplate restTemplate, ObjectMapper objectMapper) {
-        return new PaymentService(jdbcTemplate, restTemplate, objectMapper);
+    public TransactionHistory transactionHistory(JdbcTemplate jdbcTemplate) {
+        return new TransactionHistory(jdbcTemplate, historyMaxPageSize, historyExportFetchSize, historyMaxConcurrentExports);
     }
 
 }
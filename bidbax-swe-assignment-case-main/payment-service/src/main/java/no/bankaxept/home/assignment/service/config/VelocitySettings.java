@@ -0,0 +1,39 @@
+package no.bankaxept.home.assignment.service.config;
+
+import no.bankaxept.home.assignment.service.velocity.VelocityLimit;
+import org.springframework.core.env.Environment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The velocity limits from configuration. {@code payment.velocity.limits} lists the ids, and each id has its own
+ * properties:
+ * <pre>
+ * payment.velocity.limits=minute,...
+ * payment.velocity.minute.window=60000
+ * payment.velocity.minute.buckets=6
+ * payment.velocity.minute.maxAmount=5000
+ * payment.velocity.minute.maxCount=10
+ * </pre>
+ * The window is in milliseconds and must split evenly into its buckets; a max of 0, or none, leaves that measure
+ * unlimited.
+ */
+final class VelocitySettings {
+
+    private VelocitySettings() {
+    }
+
+    static List<VelocityLimit> load(Environment environment) {
+        List<VelocityLimit> limits = new ArrayList<>();
+        for (String id : environment.getRequiredProperty("payment.velocity.limits", String[].class)) {
+            String prefix = "payment.velocity." + id.trim() + ".";
+            limits.add(new VelocityLimit(id.trim(),
+                    environment.getRequiredProperty(prefix + "window", Long.class),
+                    environment.getRequiredProperty(prefix + "buckets", Integer.class),
+                    environment.getProperty(prefix + "maxAmount", Long.class, 0L),
+                    environment.getProperty(prefix + "maxCount", Integer.class, 0)));
+        }
+        return limits;
+    }
+}
@@ -0,0 +1,136 @@
+package no.bankaxept.home.assignment.service.dedup;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers "has this transaction id been processed?" without a database round-trip in the common case.
+ * <p>
+ * Every recorded id goes into a {@link ScalableBloomFilter}, loaded from the transaction table at startup, and into a
+ * bounded LRU of recent ids. An id the filter has never seen is new and needs no query. An id in the LRU is a
+ * known duplicate. Only an id the filter might contain is looked up in the database, which tells true duplicates
+ * from false positives. Ids written by another process are not in this filter; the {@code UNIQUE} constraint on
+ * {@code transaction.uuid} still rejects those when the row is inserted.
+ */
+public class DuplicateDetector implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(DuplicateDetector.class);
+
+    static final String EXISTS_SQL = "SELECT 1 FROM transaction WHERE uuid = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ScalableBloomFilter filter;
+    private final Map<String, Boolean> recent;
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final LongAdder definitelyNew = new LongAdder();
+    private final LongAdder recentHits = new LongAdder();
+    private final LongAdder confirmedDuplicates = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    public DuplicateDetector(JdbcTemplate jdbcTemplate, long expectedInsertions, double falsePositiveRate, int recentCapacity) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.filter = new ScalableBloomFilter(expectedInsertions, falsePositiveRate);
+        this.recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > recentCapacity;
+            }
+        };
+
+        registerLookups("new", definitelyNew);
+        registerLookups("recent", recentHits);
+        registerLookups("duplicate", confirmedDuplicates);
+        registerLookups("false_positive", falsePositives);
+        Gauge.builder("payment.dedup.filter.memory", filter, ScalableBloomFilter::getMemoryBytes)
+                .description("Memory held by the Bloom filter")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("payment.dedup.filter.entries", filter, ScalableBloomFilter::getApproximateCount)
+                .description("Transaction ids added to the Bloom filter")
+                .register(meterRegistry);
+        Gauge.builder("payment.dedup.filter.expected.fpp", filter, ScalableBloomFilter::expectedFalsePositiveRate)
+                .description("False-positive rate expected from the current fill of the Bloom filter")
+                .register(meterRegistry);
+        Gauge.builder("payment.dedup.filter.observed.fpp", this, DuplicateDetector::getObservedFalsePositiveRate)
+                .description("Share of new transaction ids the Bloom filter wrongly reported as seen")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Adds every transaction id already in the database to the filter.
+     */
+    public void load() {
+        long start = System.currentTimeMillis();
+        jdbcTemplate.query("SELECT uuid FROM transaction", (RowCallbackHandler) rs -> filter.add(rs.getString(1)));
+        logger.info("Loaded {} transaction ids into the duplicate filter in {} ms ({} bytes, {} stage(s))",
+                filter.getApproximateCount(), System.currentTimeMillis() - start, filter.getMemoryBytes(), filter.getStageCount());
+    }
+
+    public boolean isProcessed(String transactionUuid) {
+        if (!filter.mightContain(transactionUuid)) {
+            definitelyNew.increment();
+            return false;
+        }
+        synchronized (recent) {
+            if (recent.containsKey(transactionUuid)) {
+                recentHits.increment();
+                return true;
+            }
+        }
+        boolean exists = !jdbcTemplate.queryForList(EXISTS_SQL, new Object[]{transactionUuid}, Integer.class).isEmpty();
+        if (exists) {
+            confirmedDuplicates.increment();
+            remember(transactionUuid);
+        } else {
+            falsePositives.increment();
+            logger.debug("Duplicate filter false positive for transaction ID: {}", transactionUuid);
+        }
+        return exists;
+    }
+
+    /**
+     * Records a transaction id whose row has been committed.
+     */
+    public void recordProcessed(String transactionUuid) {
+        filter.add(transactionUuid);
+        remember(transactionUuid);
+    }
+
+    public double getObservedFalsePositiveRate() {
+        long falsePositiveCount = falsePositives.sum();
+        long newIds = definitelyNew.sum() + falsePositiveCount;
+        return newIds == 0 ? 0 : (double) falsePositiveCount / newIds;
+    }
+
+    public long getMemoryBytes() {
+        return filter.getMemoryBytes();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        meterRegistry.add(registry);
+    }
+
+    private void remember(String transactionUuid) {
+        synchronized (recent) {
+            recent.put(transactionUuid, Boolean.TRUE);
+        }
+    }
+
+    private void registerLookups(String result, LongAdder count) {
+        FunctionCounter.builder("payment.dedup.lookups", count, LongAdder::sum)
+                .description("Duplicate checks by how they were answered")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
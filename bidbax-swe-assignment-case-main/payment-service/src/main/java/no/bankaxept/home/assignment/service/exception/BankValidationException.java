@@ -1,11 +1,14 @@
 package no.bankaxept.home.assignment.service.exception;
 
+/**
+ * Thrown when a bank does not approve a payment, or the payment names a bank the service does not know. Like a
+ * decline, this is an answer rather than a fault, so the exception carries no stack trace.
+ */
 public class BankValidationException extends RuntimeException {
-    public String message;
     private String bankName;
 
     public BankValidationException(String bankName, String message) {
-        super(message);
+        super(message, null, false, false);
         this.bankName = bankName;
     }
 
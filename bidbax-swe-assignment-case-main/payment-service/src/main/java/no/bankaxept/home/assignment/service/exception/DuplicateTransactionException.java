@@ -0,0 +1,13 @@
+package no.bankaxept.home.assignment.service.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a payment's transaction id has already been processed, or is being processed, so it is not paid again.
+ */
+public class DuplicateTransactionException extends IOException {
+
+    public DuplicateTransactionException() {
+        super("Duplicate transaction detected.");
+    }
+}
@@ -1,5 +1,8 @@
 package no.bankaxept.home.assignment.service.exception;
 
+/**
+ * Thrown when a card does not cover a payment. Declines are routine, so the exception carries no stack trace.
+ */
 public class InsufficientFundsException extends RuntimeException {
     public int currentBalance;
     public int amount;
@@ -7,7 +10,7 @@ public class InsufficientFundsException extends RuntimeException {
 
     // Constructor with message
     public InsufficientFundsException(int currentBalance, int amount, String bankName) {
-        super("Insufficient funds");
+        super("Insufficient funds", null, false, false);
         this.currentBalance = currentBalance;
         this.amount = amount;
         this.bankName = bankName;
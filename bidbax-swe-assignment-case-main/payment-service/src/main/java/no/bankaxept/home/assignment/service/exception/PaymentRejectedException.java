@@ -0,0 +1,32 @@
+package no.bankaxept.home.assignment.service.exception;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a payment executor has no room for another payment. {@code overloaded} tells a full executor, which
+ * the client may retry shortly, from one that has been shut down. An overloaded service throws it for every payment
+ * it turns away, so it carries no stack trace.
+ */
+public class PaymentRejectedException extends RejectedExecutionException {
+    private final String executorName;
+    private final boolean overloaded;
+
+    public PaymentRejectedException(String executorName, boolean overloaded, String message) {
+        super(message);
+        this.executorName = executorName;
+        this.overloaded = overloaded;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+    public String getExecutorName() {
+        return executorName;
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+}
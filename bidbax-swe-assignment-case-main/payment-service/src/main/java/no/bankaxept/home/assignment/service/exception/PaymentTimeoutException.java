@@ -0,0 +1,17 @@
+package no.bankaxept.home.assignment.service.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a payment runs out of time before its money has moved, so it can safely be retried.
+ */
+public class PaymentTimeoutException extends IOException {
+
+    public PaymentTimeoutException(String message) {
+        super(message);
+    }
+
+    public PaymentTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,12 @@
+package no.bankaxept.home.assignment.service.exception;
+
+/**
+ * Thrown when as many history exports are running as may hold a database connection at once. The client may retry
+ * shortly; a busy service refuses every export beyond the limit, so the exception carries no stack trace.
+ */
+public class TooManyExportsException extends RuntimeException {
+
+    public TooManyExportsException(String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,27 @@
+package no.bankaxept.home.assignment.service.exception;
+
+/**
+ * Thrown when a payment would take its card over a velocity limit. Like a decline for insufficient funds it is
+ * routine, so the exception carries no stack trace.
+ */
+public class VelocityLimitException extends RuntimeException {
+    private final String limit;
+    private final String bankName;
+
+    public VelocityLimitException(String limit, String bankName, String message) {
+        super(message, null, false, false);
+        this.limit = limit;
+        this.bankName = bankName;
+    }
+
+    /**
+     * The name of the limit the payment would exceed.
+     */
+    public String getLimit() {
+        return limit;
+    }
+
+    public String getBankName() {
+        return bankName;
+    }
+}
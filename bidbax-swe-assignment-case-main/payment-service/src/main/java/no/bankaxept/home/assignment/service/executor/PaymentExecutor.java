@@ -0,0 +1,172 @@
+package no.bankaxept.home.assignment.service.executor;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import no.bankaxept.home.assignment.service.exception.PaymentRejectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor for one kind of payment work, with metrics tagged by its name.
+ * <p>
+ * At most {@code threads} tasks run at once and at most {@code queueCapacity} more wait. A task beyond that is
+ * refused right away with a {@link PaymentRejectedException} rather than queued without limit, so an overloaded
+ * service answers quickly and the caller can back off. With {@code virtualThreads} each task gets its own virtual
+ * thread on JVMs that have them, and the same limit applies to the tasks in flight; older JVMs fall back to the
+ * platform thread pool.
+ */
+public class PaymentExecutor implements Executor, MeterBinder, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PaymentExecutor.class);
+
+    private final String name;
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final Timer waitTime;
+    private final Timer executionTime;
+    private final boolean virtual;
+
+    public PaymentExecutor(String name, int threads, int queueCapacity, boolean virtualThreads) {
+        this.name = name;
+        this.permits = new Semaphore(threads + queueCapacity);
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        this.delegate = virtual ? virtualExecutor : newThreadPool(name, threads);
+
+        this.waitTime = Timer.builder("payment.executor.wait")
+                .description("Time a payment task waited for a thread")
+                .tag("executor", name)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.executionTime = Timer.builder("payment.executor.execution")
+                .description("Time a payment task ran")
+                .tag("executor", name)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("payment.executor.active", running, AtomicInteger::get)
+                .description("Payment tasks running")
+                .tag("executor", name)
+                .register(meterRegistry);
+        Gauge.builder("payment.executor.queued", this, PaymentExecutor::getQueued)
+                .description("Payment tasks waiting for a thread")
+                .tag("executor", name)
+                .register(meterRegistry);
+        FunctionCounter.builder("payment.executor.rejected", rejected, LongAdder::sum)
+                .description("Payment tasks refused because the executor was full")
+                .tag("executor", name)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @throws PaymentRejectedException if the executor is full or shut down
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            throw new PaymentRejectedException(name, true, "Too many payments in progress. Please try again later.");
+        }
+        long queuedAt = System.nanoTime();
+        inFlight.incrementAndGet();
+        try {
+            delegate.execute(() -> run(task, queuedAt));
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            permits.release();
+            rejected.increment();
+            throw new PaymentRejectedException(name, false, "Payment service is shutting down.");
+        }
+    }
+
+    /**
+     * Refuses early when the executor is already full, so work that would end up on it is not started in vain.
+     *
+     * @throws PaymentRejectedException if the executor has no room
+     */
+    public void checkCapacity() {
+        if (permits.availablePermits() == 0) {
+            rejected.increment();
+            throw new PaymentRejectedException(name, true, "Too many payments in progress. Please try again later.");
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    int getQueued() {
+        return Math.max(0, inFlight.get() - running.get());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        meterRegistry.add(registry);
+    }
+
+    @Override
+    public void close() {
+        delegate.shutdown();
+        try {
+            if (!delegate.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Payment executor {} did not finish its tasks in time", name);
+                delegate.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            delegate.shutdownNow();
+        }
+    }
+
+    private void run(Runnable task, long queuedAt) {
+        long startedAt = System.nanoTime();
+        waitTime.record(startedAt - queuedAt, TimeUnit.NANOSECONDS);
+        running.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            running.decrementAndGet();
+            inFlight.decrementAndGet();
+            permits.release();
+            executionTime.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static ExecutorService newThreadPool(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        // The permits bound the queue, so it never rejects by itself
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-payment-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Looked up reflectively, since the code is compiled for Java 8
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not available on Java {}; using a thread pool", System.getProperty("java.version"));
+            return null;
+        }
+    }
+}
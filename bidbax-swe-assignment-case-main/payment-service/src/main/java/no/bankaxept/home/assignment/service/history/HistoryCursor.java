@@ -0,0 +1,54 @@
+package no.bankaxept.home.assignment.service.history;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Where a page of history ended: the date and id of its last transaction. The next page starts right after it,
+ * so transactions written meanwhile neither shift the pages nor show up twice.
+ * <p>
+ * Handed to clients as an opaque token, which they send back unchanged.
+ */
+public final class HistoryCursor {
+    private final Instant date;
+    private final long id;
+
+    public HistoryCursor(Instant date, long id) {
+        this.date = date;
+        this.id = id;
+    }
+
+    public static HistoryCursor after(TransactionRecord record) {
+        return new HistoryCursor(record.getDate(), record.getId());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token is not one {@link #encode()} returned
+     */
+    public static HistoryCursor decode(String token) {
+        try {
+            String text = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII);
+            int separator = text.indexOf('/');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Not a history cursor: " + token);
+            }
+            return new HistoryCursor(Instant.parse(text.substring(0, separator)), Long.parseLong(text.substring(separator + 1)));
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Not a history cursor: " + token, e);
+        }
+    }
+
+    public String encode() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((date + "/" + id).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public Instant getDate() {
+        return date;
+    }
+
+    public long getId() {
+        return id;
+    }
+}
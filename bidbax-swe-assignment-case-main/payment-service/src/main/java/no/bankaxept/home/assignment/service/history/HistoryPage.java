@@ -0,0 +1,27 @@
+package no.bankaxept.home.assignment.service.history;
+
+import java.util.List;
+
+/**
+ * Transactions of a card, newest first, and the cursor of the page after them.
+ */
+public class HistoryPage {
+    private final List<TransactionRecord> transactions;
+    private final HistoryCursor next;
+
+    public HistoryPage(List<TransactionRecord> transactions, HistoryCursor next) {
+        this.transactions = transactions;
+        this.next = next;
+    }
+
+    public List<TransactionRecord> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Where the next page starts, or {@code null} when this is the last one.
+     */
+    public HistoryCursor getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,41 @@
+package no.bankaxept.home.assignment.service.history;
+
+import java.time.Instant;
+
+/**
+ * Which of a card's transactions to read. Every filter but the card may be {@code null}.
+ */
+public class HistoryQuery {
+    private final String cardNumber;
+    private final Instant from;
+    private final Instant to;
+    private final String type;
+
+    /**
+     * @param from the earliest date included
+     * @param to   the first date no longer included
+     * @param type {@code big} or {@code small}
+     */
+    public HistoryQuery(String cardNumber, Instant from, Instant to, String type) {
+        this.cardNumber = cardNumber;
+        this.from = from;
+        this.to = to;
+        this.type = type;
+    }
+
+    public String getCardNumber() {
+        return cardNumber;
+    }
+
+    public Instant getFrom() {
+        return from;
+    }
+
+    public Instant getTo() {
+        return to;
+    }
+
+    public String getType() {
+        return type;
+    }
+}
@@ -0,0 +1,171 @@
+package no.bankaxept.home.assignment.service.history;
+
+import no.bankaxept.home.assignment.service.exception.TooManyExportsException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads a card's transactions, newest first, from the {@code (card, date, id)} index of the transaction table.
+ * <p>
+ * Pages are found by seeking past the date and id the previous page ended at rather than by an offset, so a page
+ * deep into the history costs the same as the first. Exports read the same order through one forward-only cursor.
+ * Payments show up once their row is written, which with the writer or the ledger is a little after they are paid.
+ * <p>
+ * An export holds its connection for as long as its client takes to read it, so at most {@code maxConcurrentExports}
+ * run at once and the rest are refused, leaving the other connections of the pool to the payments.
+ */
+public class TransactionHistory {
+
+    private static final String SELECT = "SELECT id, uuid, card, bank, amount, date, type FROM transaction WHERE card = ?";
+    // The card is fixed by the condition, but H2 only reads the rows in index order when the ORDER BY starts with it
+    private static final String ORDER = " ORDER BY card, date DESC, id DESC";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int maxPageSize;
+    private final int exportFetchSize;
+    private final Semaphore exports;
+
+    /**
+     * @param exportFetchSize      rows a driver that talks to its database over the network fetches per round trip
+     * @param maxConcurrentExports exports that may hold a connection at once; well below the size of the pool
+     */
+    public TransactionHistory(JdbcTemplate jdbcTemplate, int maxPageSize, int exportFetchSize, int maxConcurrentExports) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.maxPageSize = maxPageSize;
+        this.exportFetchSize = exportFetchSize;
+        this.exports = new Semaphore(maxConcurrentExports);
+    }
+
+    /**
+     * @param after where the previous page ended, or {@code null} for the newest transactions
+     * @param limit from 1 to {@link #getMaxPageSize()}
+     */
+    public HistoryPage page(HistoryQuery query, HistoryCursor after, int limit) {
+        if (limit < 1 || limit > maxPageSize) {
+            throw new IllegalArgumentException("A page holds from 1 to " + maxPageSize + " transactions, not " + limit);
+        }
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder sql = where(query, parameters);
+        if (after != null) {
+            // The first condition bounds the index range; the second skips the rows of that date already read
+            Timestamp date = Timestamp.from(after.getDate());
+            sql.append(" AND date <= ? AND (date < ? OR id < ?)");
+            parameters.add(date);
+            parameters.add(date);
+            parameters.add(after.getId());
+        }
+        // One more than asked for, to tell whether there is a next page
+        sql.append(ORDER).append(" LIMIT ?");
+        parameters.add(limit + 1);
+
+        List<TransactionRecord> transactions = jdbcTemplate.query(sql.toString(), parameters.toArray(), (rs, row) -> record(rs));
+        if (transactions.size() <= limit) {
+            return new HistoryPage(transactions, null);
+        }
+        List<TransactionRecord> page = transactions.subList(0, limit);
+        return new HistoryPage(page, HistoryCursor.after(page.get(limit - 1)));
+    }
+
+    /**
+     * Hands every transaction the query matches to {@code sink}, newest first, and returns how many there were.
+     * <p>
+     * The rows are read one at a time: H2 runs the query lazily, reading the index as the cursor moves instead of
+     * collecting the result first, and other databases fetch {@code exportFetchSize} rows at a time. An export of
+     * any size holds one connection and a constant amount of memory for as long as the sink takes.
+     *
+     * @throws TooManyExportsException if {@code maxConcurrentExports} exports are already running; nothing is read
+     * @throws IOException              when the sink does; the export stops there
+     */
+    public long export(HistoryQuery query, Sink sink) throws IOException {
+        if (!exports.tryAcquire()) {
+            throw new TooManyExportsException("Too many history exports are running; try again shortly.");
+        }
+        try {
+            return read(query, sink);
+        } finally {
+            exports.release();
+        }
+    }
+
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    /**
+     * Receives the transactions of an export.
+     */
+    public interface Sink {
+        void accept(TransactionRecord record) throws IOException;
+    }
+
+    private long read(HistoryQuery query, Sink sink) throws IOException {
+        List<Object> parameters = new ArrayList<>();
+        String sql = where(query, parameters).append(ORDER).toString();
+        try {
+            return jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+                setLazy(connection.createStatement(), true);
+                try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    statement.setFetchSize(exportFetchSize);
+                    for (int i = 0; i < parameters.size(); i++) {
+                        statement.setObject(i + 1, parameters.get(i));
+                    }
+                    long rows = 0;
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            sink.accept(record(rs));
+                            rows++;
+                        }
+                    }
+                    return rows;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    // The connection goes back to the pool
+                    setLazy(connection.createStatement(), false);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static StringBuilder where(HistoryQuery query, List<Object> parameters) {
+        StringBuilder sql = new StringBuilder(SELECT);
+        parameters.add(query.getCardNumber());
+        if (query.getFrom() != null) {
+            sql.append(" AND date >= ?");
+            parameters.add(Timestamp.from(query.getFrom()));
+        }
+        if (query.getTo() != null) {
+            sql.append(" AND date < ?");
+            parameters.add(Timestamp.from(query.getTo()));
+        }
+        if (query.getType() != null) {
+            sql.append(" AND type = ?");
+            parameters.add(query.getType());
+        }
+        return sql;
+    }
+
+    private static void setLazy(Statement statement, boolean lazy) throws SQLException {
+        try (Statement setting = statement) {
+            setting.execute("SET LAZY_QUERY_EXECUTION " + lazy);
+        }
+    }
+
+    private static TransactionRecord record(ResultSet rs) throws SQLException {
+        return new TransactionRecord(rs.getLong("id"), rs.getString("uuid"), rs.getString("card"), rs.getString("bank"),
+                rs.getInt("amount"), rs.getTimestamp("date").toInstant(), rs.getString("type"));
+    }
+}
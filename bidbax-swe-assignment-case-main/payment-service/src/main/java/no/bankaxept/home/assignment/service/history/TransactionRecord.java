@@ -0,0 +1,57 @@
+package no.bankaxept.home.assignment.service.history;
+
+import java.time.Instant;
+
+/**
+ * One row of the transaction table, as read back for a card's history.
+ */
+public class TransactionRecord {
+    private final long id;
+    private final String uuid;
+    private final String cardNumber;
+    private final String bank;
+    private final int amount;
+    private final Instant date;
+    private final String type;
+
+    public TransactionRecord(long id, String uuid, String cardNumber, String bank, int amount, Instant date, String type) {
+        this.id = id;
+        this.uuid = uuid;
+        this.cardNumber = cardNumber;
+        this.bank = bank;
+        this.amount = amount;
+        this.date = date;
+        this.type = type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getCardNumber() {
+        return cardNumber;
+    }
+
+    public String getBank() {
+        return bank;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public Instant getDate() {
+        return date;
+    }
+
+    /**
+     * {@code big} or {@code small}.
+     */
+    public String getType() {
+        return type;
+    }
+}
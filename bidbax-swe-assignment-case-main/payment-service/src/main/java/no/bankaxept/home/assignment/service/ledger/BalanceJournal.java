@@ -0,0 +1,278 @@
+package no.bankaxept.home.assignment.service.ledger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of accepted debits, split into segment files named after their first sequence number.
+ * <p>
+ * Each record is length-prefixed and followed by a CRC32 of its payload, so a record torn by a crash is detected
+ * and dropped on the next start. {@link #awaitDurable(long)} performs a group commit: whichever caller gets the
+ * sync lock forces everything appended so far, and callers whose records were covered by that force return
+ * without another one. Segments are deleted once every record in them has been written to the database.
+ */
+public class BalanceJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BalanceJournal.class);
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final List<JournalEntry> recoveredEntries;
+    private final Deque<Segment> closedSegments = new ArrayDeque<>();
+    private final Object syncLock = new Object();
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer buffer = ByteBuffer.allocate(512);
+    private FileChannel channel;
+    private Path activePath;
+    private long activeSize;
+    private long nextSequence;
+    private volatile long appendedSequence;
+    private volatile long durableSequence;
+
+    public BalanceJournal(Path directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        this.recoveredEntries = Collections.unmodifiableList(readSegments());
+        this.nextSequence = recoveredEntries.isEmpty() ? 1 : recoveredEntries.get(recoveredEntries.size() - 1).getSequence() + 1;
+        this.appendedSequence = nextSequence - 1;
+        this.durableSequence = appendedSequence;
+        openSegment();
+    }
+
+    /**
+     * Entries found in the journal when it was opened, in sequence order.
+     */
+    public List<JournalEntry> getRecoveredEntries() {
+        return recoveredEntries;
+    }
+
+    /**
+     * Appends a debit and returns it with its sequence number. The record is written but not yet forced to disk;
+     * call {@link #awaitDurable(long)} before acknowledging it.
+     */
+    public synchronized JournalEntry append(String uuid, String cardNumber, String bank, int amount, String type, long timestamp) throws IOException {
+        JournalEntry entry = new JournalEntry(nextSequence, uuid, cardNumber, bank, amount, type, timestamp);
+        ByteBuffer record = encode(entry);
+        while (record.hasRemaining()) {
+            activeSize += channel.write(record);
+        }
+        nextSequence++;
+        appendedSequence = entry.getSequence();
+        if (activeSize >= segmentSize) {
+            rollSegment();
+        }
+        return entry;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number, and every record before it, is on disk.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        if (durableSequence >= sequence) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durableSequence >= sequence) {
+                return;
+            }
+            FileChannel target;
+            long covered;
+            synchronized (this) {
+                target = channel;
+                covered = appendedSequence;
+            }
+            try {
+                target.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment was rolled, and rolling forces it before closing
+            }
+            durableSequence = covered;
+        }
+    }
+
+    /**
+     * Deletes closed segments whose records have all been written to the database.
+     */
+    public synchronized void release(long flushedSequence) {
+        Iterator<Segment> segments = closedSegments.iterator();
+        while (segments.hasNext()) {
+            Segment segment = segments.next();
+            if (segment.lastSequence > flushedSequence) {
+                break;
+            }
+            delete(segment.path);
+            segments.remove();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (channel.isOpen()) {
+                    channel.force(false);
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    private List<JournalEntry> readSegments() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        Collections.sort(paths);
+
+        List<JournalEntry> entries = new ArrayList<>();
+        for (Path path : paths) {
+            int before = entries.size();
+            readSegment(path, entries);
+            if (entries.size() == before) {
+                delete(path);
+            } else {
+                closedSegments.add(new Segment(path, entries.get(entries.size() - 1).getSequence()));
+            }
+        }
+        if (!entries.isEmpty()) {
+            logger.info("Recovered {} journal entries from {} segment(s) in {}", entries.size(), closedSegments.size(), directory);
+        }
+        return entries;
+    }
+
+    private void readSegment(Path path, List<JournalEntry> entries) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (data.remaining() >= Integer.BYTES) {
+            int start = data.position();
+            int length = data.getInt();
+            if (length <= 0 || data.remaining() < length + Integer.BYTES) {
+                logger.warn("Ignoring torn record at offset {} in {}", start, path);
+                return;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            ByteBuffer payload = ByteBuffer.wrap(data.array(), data.position(), length).slice();
+            data.position(data.position() + length);
+            if ((int) crc.getValue() != data.getInt()) {
+                logger.warn("Ignoring corrupt record at offset {} in {}", start, path);
+                return;
+            }
+            entries.add(decode(payload));
+        }
+    }
+
+    private ByteBuffer encode(JournalEntry entry) {
+        byte[] uuid = bytes(entry.getUuid());
+        byte[] card = bytes(entry.getCardNumber());
+        byte[] bank = bytes(entry.getBank());
+        byte[] type = bytes(entry.getType());
+        int length = Long.BYTES * 2 + Integer.BYTES + Short.BYTES * 4 + length(uuid) + length(card) + length(bank) + length(type);
+        if (buffer.capacity() < length + Integer.BYTES * 2) {
+            buffer = ByteBuffer.allocate(length + Integer.BYTES * 2);
+        }
+        buffer.clear();
+        buffer.putInt(length);
+        buffer.putLong(entry.getSequence());
+        buffer.putLong(entry.getTimestamp());
+        buffer.putInt(entry.getAmount());
+        put(buffer, uuid);
+        put(buffer, card);
+        put(buffer, bank);
+        put(buffer, type);
+        crc.reset();
+        crc.update(buffer.array(), Integer.BYTES, length);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static JournalEntry decode(ByteBuffer payload) {
+        long sequence = payload.getLong();
+        long timestamp = payload.getLong();
+        int amount = payload.getInt();
+        String uuid = string(payload);
+        String card = string(payload);
+        String bank = string(payload);
+        String type = string(payload);
+        return new JournalEntry(sequence, uuid, card, bank, amount, type, timestamp);
+    }
+
+    private void rollSegment() throws IOException {
+        channel.force(false);
+        channel.close();
+        closedSegments.add(new Segment(activePath, appendedSequence));
+        openSegment();
+    }
+
+    private void openSegment() throws IOException {
+        activePath = directory.resolve(String.format("%s%020d%s", PREFIX, nextSequence, SUFFIX));
+        channel = FileChannel.open(activePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        activeSize = 0;
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Could not delete journal segment {}: {}", path, e.getMessage());
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    private static void put(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static String string(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static class Segment {
+        final Path path;
+        final long lastSequence;
+
+        Segment(Path path, long lastSequence) {
+            this.path = path;
+            this.lastSequence = lastSequence;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package no.bankaxept.home.assignment.service.ledger;
+
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory balance ledger with write-behind to the {@code balance} and {@code transaction} tables.
+ * <p>
+ * Balances live in primitive maps split over lock stripes by card, so debits on one card are serialised while
+ * debits on different cards run in parallel, and a balance read needs no database round-trip. Every accepted debit
+ * is appended to the {@link BalanceJournal} and forced to disk before it is acknowledged. A background flusher then
+ * writes the debits in batches: the transaction rows and the summed balance change per card go in one database
+ * transaction, so a row in {@code transaction} marks its debit as applied to {@code balance}.
+ * <p>
+ * On startup {@link #recover()} loads the balance table and replays the journal entries that have no transaction
+ * row yet. While the ledger is enabled it owns the balances of the cards it serves; nothing else may debit them.
+ * Cards that are not plain digit strings of at most 18 digits are not served and stay on the database path.
+ */
+public class BalanceLedger implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BalanceLedger.class);
+
+    private static final int MAX_CARD_DIGITS = 18;
+    private static final int LOOKUP_CHUNK = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BalanceJournal journal;
+    private final Object[] locks;
+    private final CardBalanceMap[] balances;
+    private final int batchSize;
+    private final Object appendLock = new Object();
+    private final Object flushLock = new Object();
+    private final LinkedBlockingQueue<JournalEntry> pending = new LinkedBlockingQueue<>();
+    private final Set<String> pendingUuids = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher;
+    private final List<JournalEntry> batch = new ArrayList<>();
+
+    public BalanceLedger(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, BalanceJournal journal,
+                         int stripes, int batchSize, long flushIntervalMs) {
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two: " + stripes);
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.journal = journal;
+        this.locks = new Object[stripes];
+        this.balances = new CardBalanceMap[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+            balances[i] = new CardBalanceMap(16);
+        }
+        this.batchSize = batchSize;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ledger-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rebuilds the ledger from the balance table and the journal entries not yet written to the database, then
+     * writes those entries.
+     */
+    public void recover() {
+        int[] loaded = {0};
+        jdbcTemplate.query("SELECT cardNumber, amount FROM balance", (ResultSet rs) -> {
+            String cardNumber = rs.getString("cardNumber");
+            if (supports(cardNumber)) {
+                long key = cardKey(cardNumber);
+                int stripe = stripe(key);
+                synchronized (locks[stripe]) {
+                    balances[stripe].put(key, rs.getInt("amount"));
+                }
+                loaded[0]++;
+            }
+        });
+
+        List<JournalEntry> entries = journal.getRecoveredEntries();
+        Set<String> applied = findRecordedUuids(entries);
+        int replayed = 0;
+        for (JournalEntry entry : entries) {
+            if (applied.contains(entry.getUuid())) {
+                continue;
+            }
+            long key = cardKey(entry.getCardNumber());
+            int stripe = stripe(key);
+            synchronized (locks[stripe]) {
+                balances[stripe].put(key, balanceOf(stripe, key, entry.getCardNumber()) - entry.getAmount());
+            }
+            pendingUuids.add(entry.getUuid());
+            pending.add(entry);
+            replayed++;
+        }
+        logger.info("Ledger recovered {} balances and replayed {} of {} journal entries", loaded[0], replayed, entries.size());
+        flush();
+    }
+
+    /**
+     * Whether the ledger serves this card.
+     */
+    public boolean supports(String cardNumber) {
+        if (cardNumber == null || cardNumber.isEmpty() || cardNumber.length() > MAX_CARD_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < cardNumber.length(); i++) {
+            char c = cardNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Current balance of the card, loaded from the balance table on first use; empty if the card has no balance.
+     */
+    public OptionalInt balance(String cardNumber) {
+        long key = cardKey(cardNumber);
+        int stripe = stripe(key);
+        synchronized (locks[stripe]) {
+            if (!balances[stripe].containsKey(key) && !load(stripe, key, cardNumber)) {
+                return OptionalInt.empty();
+            }
+            return OptionalInt.of(balances[stripe].get(key));
+        }
+    }
+
+    /**
+     * Debits the card and returns the new balance once the debit is durable in the journal. The transaction row
+     * and the balance table are updated later by the flusher.
+     *
+     * @throws InsufficientFundsException if the balance does not cover the amount
+     * @throws IOException if the transaction id is already pending or the journal cannot be written, in which case
+     *                     nothing was debited; or if the journal could not be forced to disk after the debit was
+     *                     accepted, see {@link #debit(Transaction, String, String, long)}
+     */
+    public int debit(Transaction transaction, String transactionUuid, String type) throws IOException {
+        return debit(transaction, transactionUuid, type, System.currentTimeMillis());
+    }
+
+    /**
+     * Debits the card like {@link #debit(Transaction, String, String)}, recording the transaction at {@code timestamp}.
+     * <p>
+     * Once the debit is in the journal and the pending queue it cannot be taken back: the flusher may already have
+     * written it, and a record that reached the disk is replayed on recovery. If forcing the journal then fails,
+     * the outcome is unknown rather than failed. The debit stays applied and is written like any other, and its
+     * transaction id stays pending, so a retry with the same id is refused as a duplicate instead of paying twice.
+     */
+    public int debit(Transaction transaction, String transactionUuid, String type, long timestamp) throws IOException {
+        if (!pendingUuids.add(transactionUuid)) {
+            throw new DuplicateTransactionException();
+        }
+        long key = cardKey(transaction.cardNumber);
+        int stripe = stripe(key);
+        JournalEntry entry;
+        int newBalance;
+        try {
+            synchronized (locks[stripe]) {
+                int current = balanceOf(stripe, key, transaction.cardNumber);
+                if (current < transaction.amount) {
+                    throw new InsufficientFundsException(current, transaction.amount, transaction.bank);
+                }
+                synchronized (appendLock) {
+                    // Queued under the same lock as the append, so the queue stays in journal order
+                    entry = journal.append(transactionUuid, transaction.cardNumber, transaction.bank, transaction.amount, type, timestamp);
+                    pending.add(entry);
+                }
+                newBalance = current - transaction.amount;
+                balances[stripe].put(key, newBalance);
+            }
+        } catch (RuntimeException | IOException e) {
+            pendingUuids.remove(transactionUuid);
+            throw e;
+        }
+        try {
+            journal.awaitDurable(entry.getSequence());
+        } catch (IOException e) {
+            logger.error("Debit {} was accepted but the journal could not be forced; it will still be written", transactionUuid, e);
+            throw new IOException("Payment outcome unknown: the debit was accepted but could not be confirmed. Do not retry it under another id.", e);
+        }
+        return newBalance;
+    }
+
+    /**
+     * Whether a debit with this transaction id has been accepted but not yet written to the database.
+     */
+    public boolean isPending(String transactionUuid) {
+        return pendingUuids.contains(transactionUuid);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Writes all pending debits to the database. The debits of a batch that fails stay at the head of the queue,
+     * less those already written one by one, and are tried again on the next flush.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            while (true) {
+                if (batch.isEmpty()) {
+                    pending.drainTo(batch, batchSize);
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+                }
+                long last = batch.get(batch.size() - 1).getSequence();
+                write(batch);
+                journal.release(last);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (DataAccessException e) {
+            logger.error("Could not write {} pending debits on shutdown; they stay in the journal", pending.size() + batch.size(), e);
+        } finally {
+            journal.close();
+        }
+    }
+
+    // Anything thrown out of a scheduled task cancels it for good, and with it the write-behind
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.error("Ledger write-behind failed, {} debits pending", pending.size() + batch.size(), e);
+        }
+    }
+
+    // Takes the debits out of the batch once they are written, so a retry after a failure never writes one twice
+    private void write(List<JournalEntry> entries) {
+        try {
+            transactionTemplate.execute(status -> {
+                insertTransactions(entries);
+                applyBalances(entries);
+                return null;
+            });
+        } catch (DataIntegrityViolationException e) {
+            logger.warn("Batch of {} debits rejected by the database, writing them one by one", entries.size(), e);
+            Iterator<JournalEntry> remaining = entries.iterator();
+            while (remaining.hasNext()) {
+                JournalEntry entry = remaining.next();
+                writeSingle(entry);
+                remaining.remove();
+                pendingUuids.remove(entry.getUuid());
+            }
+            return;
+        }
+        for (JournalEntry entry : entries) {
+            pendingUuids.remove(entry.getUuid());
+        }
+        entries.clear();
+    }
+
+    private void writeSingle(JournalEntry entry) {
+        try {
+            transactionTemplate.execute(status -> {
+                insertTransactions(Collections.singletonList(entry));
+                applyBalances(Collections.singletonList(entry));
+                return null;
+            });
+        } catch (DataIntegrityViolationException e) {
+            if (!findRecordedUuids(Collections.singletonList(entry)).isEmpty()) {
+                // The row and the balance change commit together, so the row says this debit is already applied
+                logger.warn("Debit {} is already recorded, skipping it", entry.getUuid());
+                return;
+            }
+            // The database will not take the debit at all; give the amount back rather than keep a debit it never has
+            logger.error("Dropping debit for transaction ID: {}, rejected by the database. Crediting {} back to card {}",
+                    entry.getUuid(), entry.getAmount(), entry.getCardNumber(), e);
+            long key = cardKey(entry.getCardNumber());
+            int stripe = stripe(key);
+            synchronized (locks[stripe]) {
+                balances[stripe].put(key, balances[stripe].get(key) + entry.getAmount());
+            }
+        }
+    }
+
+    private void insertTransactions(List<JournalEntry> entries) {
+        List<Object[]> rows = new ArrayList<>(entries.size());
+        for (JournalEntry entry : entries) {
+            rows.add(new Object[]{entry.getBank(), entry.getUuid(), entry.getCardNumber(), entry.getAmount(),
+                    new Timestamp(entry.getTimestamp()), entry.getType()});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES (?, ?, ?, ?, ?, ?)", rows);
+    }
+
+    private void applyBalances(List<JournalEntry> entries) {
+        Map<String, Integer> debits = new LinkedHashMap<>();
+        for (JournalEntry entry : entries) {
+            debits.merge(entry.getCardNumber(), entry.getAmount(), Integer::sum);
+        }
+        List<Object[]> rows = new ArrayList<>(debits.size());
+        debits.forEach((cardNumber, amount) -> rows.add(new Object[]{amount, cardNumber}));
+        jdbcTemplate.batchUpdate("UPDATE balance SET amount = amount - ? WHERE cardNumber = ?", rows);
+    }
+
+    private Set<String> findRecordedUuids(List<JournalEntry> entries) {
+        Set<String> recorded = new HashSet<>();
+        for (int from = 0; from < entries.size(); from += LOOKUP_CHUNK) {
+            List<JournalEntry> chunk = entries.subList(from, Math.min(entries.size(), from + LOOKUP_CHUNK));
+            StringBuilder sql = new StringBuilder("SELECT uuid FROM transaction WHERE uuid IN (");
+            Object[] uuids = new Object[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+                uuids[i] = chunk.get(i).getUuid();
+            }
+            sql.append(')');
+            recorded.addAll(jdbcTemplate.queryForList(sql.toString(), uuids, String.class));
+        }
+        return recorded;
+    }
+
+    // Must be called with the stripe lock held
+    private int balanceOf(int stripe, long key, String cardNumber) {
+        if (!balances[stripe].containsKey(key) && !load(stripe, key, cardNumber)) {
+            logger.error("No balance found for card: {}", cardNumber);
+            throw new EmptyResultDataAccessException("No balance found for card: " + cardNumber, 1);
+        }
+        return balances[stripe].get(key);
+    }
+
+    // Must be called with the stripe lock held; the card has no pending debits, so the table is up to date
+    private boolean load(int stripe, long key, String cardNumber) {
+        List<Integer> amounts = jdbcTemplate.queryForList("SELECT amount FROM balance WHERE cardNumber = ?", new Object[]{cardNumber}, Integer.class);
+        if (amounts.isEmpty()) {
+            return false;
+        }
+        balances[stripe].put(key, amounts.get(0));
+        return true;
+    }
+
+    private int stripe(long key) {
+        // The high half of the hash, since the maps place the card by the low bits of its mix; cards of one
+        // stripe would otherwise share those bits and crowd into the same slots
+        return (int) (key * 0x9E3779B97F4A7C15L >>> 32) & (locks.length - 1);
+    }
+
+    /**
+     * Encodes a card number of up to 18 digits as a long. A leading 1 is prepended so that leading zeros are
+     * kept apart: "001" and "1" map to different keys.
+     */
+    static long cardKey(String cardNumber) {
+        long key = 1;
+        for (int i = 0; i < cardNumber.length(); i++) {
+            key = key * 10 + (cardNumber.charAt(i) - '0');
+        }
+        return key;
+    }
+}
@@ -0,0 +1,80 @@
+package no.bankaxept.home.assignment.service.ledger;
+
+/**
+ * Open-addressing hash map from encoded card keys to balances, stored in two primitive arrays so a lookup
+ * touches no boxed objects. Not thread-safe: each instance is owned by one ledger stripe and only accessed
+ * under that stripe's lock.
+ * <p>
+ * Key {@code 0} marks an empty slot; {@link BalanceLedger#cardKey(String)} never produces it.
+ */
+final class CardBalanceMap {
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    CardBalanceMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    boolean containsKey(long key) {
+        return keys[slot(keys, key)] == key;
+    }
+
+    int get(long key) {
+        int slot = slot(keys, key);
+        if (keys[slot] != key) {
+            throw new IllegalStateException("No balance for card key " + key);
+        }
+        return values[slot];
+    }
+
+    void put(long key, int value) {
+        int slot = slot(keys, key);
+        if (keys[slot] == EMPTY) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+                slot = slot(keys, key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // Linear probing; returns the key's slot or the empty slot where it would go
+    private static int slot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
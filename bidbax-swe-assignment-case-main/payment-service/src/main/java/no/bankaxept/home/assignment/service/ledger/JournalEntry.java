@@ -0,0 +1,53 @@
+package no.bankaxept.home.assignment.service.ledger;
+
+/**
+ * One accepted debit as written to the ledger journal: everything needed to replay it against the balance table
+ * and to insert its transaction row.
+ */
+public final class JournalEntry {
+    private final long sequence;
+    private final String uuid;
+    private final String cardNumber;
+    private final String bank;
+    private final int amount;
+    private final String type;
+    private final long timestamp;
+
+    JournalEntry(long sequence, String uuid, String cardNumber, String bank, int amount, String type, long timestamp) {
+        this.sequence = sequence;
+        this.uuid = uuid;
+        this.cardNumber = cardNumber;
+        this.bank = bank;
+        this.amount = amount;
+        this.type = type;
+        this.timestamp = timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getCardNumber() {
+        return cardNumber;
+    }
+
+    public String getBank() {
+        return bank;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
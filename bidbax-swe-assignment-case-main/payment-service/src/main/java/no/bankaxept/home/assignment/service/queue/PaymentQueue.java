@@ -0,0 +1,278 @@
+package no.bankaxept.home.assignment.service.queue;
+
+import no.bankaxept.home.assignment.model.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of accepted payments, kept in memory-mapped segment files.
+ * <p>
+ * {@link #enqueue} writes the payment into the active segment and forces it to disk before returning, so an accepted
+ * payment survives a crash. Each record carries a status byte that {@link #acknowledge} flips in place once the
+ * payment has been processed; a segment is deleted when all its records are acknowledged. On startup every record
+ * that was not acknowledged is queued again and marked as recovered. Acknowledgements are not forced, so a crash
+ * may replay a payment that had already been processed; the duplicate check on its transaction id catches that.
+ * <p>
+ * Record layout: payload length, status byte, payload, CRC32 of the payload. A zero length marks the end of a
+ * segment, and a record whose checksum does not match is treated as the torn end of the segment.
+ */
+public class PaymentQueue implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PaymentQueue.class);
+
+    private static final String PREFIX = "queue-";
+    private static final String SUFFIX = ".seg";
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+    private static final int HEADER = Integer.BYTES + 1;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int capacity;
+    private final BlockingQueue<QueuedPayment> ready = new LinkedBlockingQueue<>();
+    private final CRC32 crc = new CRC32();
+    private Segment active;
+    private long nextSegment;
+    private int outstanding;
+
+    public PaymentQueue(Path directory, int segmentSize, int capacity) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.capacity = capacity;
+        Files.createDirectories(directory);
+        recover();
+        this.active = openSegment(nextSegment++);
+    }
+
+    /**
+     * Durably queues a payment.
+     *
+     * @throws IOException if the queue is full or the payment cannot be written
+     */
+    public synchronized QueuedPayment enqueue(Transaction transaction, String transactionUuid) throws IOException {
+        if (outstanding >= capacity) {
+            throw new IOException("Payment queue is full. Please try again later.");
+        }
+        byte[] payload = encode(transaction, transactionUuid);
+        int recordSize = HEADER + payload.length + Integer.BYTES;
+        if (recordSize + Integer.BYTES > segmentSize) {
+            throw new IOException("Payment is too large for the queue.");
+        }
+        if (active.writePosition + recordSize + Integer.BYTES > segmentSize) {
+            Segment full = active;
+            full.active = false;
+            active = openSegment(nextSegment++);
+            deleteIfDone(full);
+        }
+
+        int offset = active.writePosition;
+        MappedByteBuffer buffer = active.buffer;
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        buffer.position(offset + HEADER);
+        buffer.put(payload);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(offset + Integer.BYTES, PENDING);
+        // The length goes in last: until it is written the record does not exist
+        buffer.putInt(offset, payload.length);
+        buffer.force();
+
+        active.writePosition = offset + recordSize;
+        active.outstanding++;
+        outstanding++;
+        QueuedPayment payment = new QueuedPayment(transaction, transactionUuid, false, active, offset);
+        ready.add(payment);
+        return payment;
+    }
+
+    /**
+     * Waits for the next payment to process.
+     */
+    public QueuedPayment take() throws InterruptedException {
+        return ready.take();
+    }
+
+    /**
+     * Marks a payment as processed, so it is not replayed after a restart.
+     */
+    public synchronized void acknowledge(QueuedPayment payment) {
+        Segment segment = payment.segment;
+        segment.buffer.put(payment.offset + Integer.BYTES, DONE);
+        segment.outstanding--;
+        outstanding--;
+        deleteIfDone(segment);
+    }
+
+    /**
+     * Payments queued or being processed.
+     */
+    public synchronized int size() {
+        return outstanding;
+    }
+
+    @Override
+    public synchronized void close() {
+        active.buffer.force();
+        closeChannel(active);
+    }
+
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        Collections.sort(paths);
+
+        int recovered = 0;
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            nextSegment = Math.max(nextSegment, Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())) + 1);
+            Segment segment = mapSegment(path, (int) Math.max(segmentSize, Files.size(path)));
+            segment.active = false;
+            recovered += scan(segment);
+            deleteIfDone(segment);
+        }
+        if (recovered > 0) {
+            logger.info("Recovered {} unprocessed payments from {}", recovered, directory);
+        }
+    }
+
+    private int scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        int recovered = 0;
+        while (position + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER + length + Integer.BYTES > buffer.capacity()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(position + HEADER);
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt()) {
+                logger.warn("Ignoring torn record at offset {} in {}", position, segment.path);
+                break;
+            }
+            if (buffer.get(position + Integer.BYTES) == PENDING) {
+                QueuedPayment payment = decode(payload, segment, position);
+                segment.outstanding++;
+                outstanding++;
+                ready.add(payment);
+                recovered++;
+            }
+            position += HEADER + length + Integer.BYTES;
+        }
+        segment.writePosition = position;
+        return recovered;
+    }
+
+    private Segment openSegment(long index) throws IOException {
+        return mapSegment(directory.resolve(String.format("%s%020d%s", PREFIX, index, SUFFIX)), segmentSize);
+    }
+
+    private static Segment mapSegment(Path path, int size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    private void deleteIfDone(Segment segment) {
+        if (segment.active || segment.outstanding > 0) {
+            return;
+        }
+        closeChannel(segment);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("Could not delete queue segment {}: {}", segment.path, e.getMessage());
+        }
+    }
+
+    private static void closeChannel(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            logger.warn("Could not close queue segment {}: {}", segment.path, e.getMessage());
+        }
+    }
+
+    private static byte[] encode(Transaction transaction, String transactionUuid) {
+        byte[] uuid = bytes(transactionUuid);
+        byte[] card = bytes(transaction.cardNumber);
+        byte[] bank = bytes(transaction.bank);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Short.BYTES * 3 + length(uuid) + length(card) + length(bank));
+        buffer.putInt(transaction.amount);
+        put(buffer, uuid);
+        put(buffer, card);
+        put(buffer, bank);
+        return buffer.array();
+    }
+
+    private static QueuedPayment decode(byte[] payload, Segment segment, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int amount = buffer.getInt();
+        String uuid = string(buffer);
+        String card = string(buffer);
+        String bank = string(buffer);
+        return new QueuedPayment(new Transaction(card, amount, bank), uuid, true, segment, offset);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    private static void put(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static String string(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    static class Segment {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        int outstanding;
+        boolean active = true;
+
+        Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package no.bankaxept.home.assignment.service.queue;
+
+import no.bankaxept.home.assignment.model.Transaction;
+
+/**
+ * A payment taken from the {@link PaymentQueue}, to be acknowledged once it has been processed.
+ */
+public final class QueuedPayment {
+    private final Transaction transaction;
+    private final String transactionUuid;
+    private final boolean recovered;
+    final PaymentQueue.Segment segment;
+    final int offset;
+
+    QueuedPayment(Transaction transaction, String transactionUuid, boolean recovered, PaymentQueue.Segment segment, int offset) {
+        this.transaction = transaction;
+        this.transactionUuid = transactionUuid;
+        this.recovered = recovered;
+        this.segment = segment;
+        this.offset = offset;
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public String getTransactionUuid() {
+        return transactionUuid;
+    }
+
+    /**
+     * Whether the payment was found in the queue at startup; it may already have been processed before the restart.
+     */
+    public boolean isRecovered() {
+        return recovered;
+    }
+}
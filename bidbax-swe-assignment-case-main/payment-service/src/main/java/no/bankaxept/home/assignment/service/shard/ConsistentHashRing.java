@@ -0,0 +1,117 @@
+package no.bankaxept.home.assignment.service.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Assigns card numbers to nodes by consistent hashing.
+ * <p>
+ * Each node is placed on a ring of 64-bit hashes at {@code virtualNodes} points, and a card belongs to the node at
+ * the first point at or after the card's hash. When a node joins or leaves, only the cards next to its points move,
+ * about one in every {@code nodes} cards, and the others keep their owner. Lookups read an immutable snapshot of the
+ * ring, so they never wait for a node to be added or removed.
+ */
+public class ConsistentHashRing {
+
+    private final int virtualNodes;
+    private volatile Ring ring;
+
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("A node needs at least one point on the ring: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+        this.ring = new Ring(new TreeSet<>(nodes), virtualNodes);
+    }
+
+    /**
+     * The node that owns {@code key}, or {@code null} when the ring is empty.
+     */
+    public String owner(String key) {
+        return ring.owner(hash(key));
+    }
+
+    /**
+     * Adds a node; returns {@code false} if it was already on the ring.
+     */
+    public synchronized boolean add(String node) {
+        Set<String> nodes = new TreeSet<>(ring.nodes);
+        if (!nodes.add(node)) {
+            return false;
+        }
+        ring = new Ring(nodes, virtualNodes);
+        return true;
+    }
+
+    /**
+     * Removes a node; returns {@code false} if it was not on the ring.
+     */
+    public synchronized boolean remove(String node) {
+        Set<String> nodes = new TreeSet<>(ring.nodes);
+        if (!nodes.remove(node)) {
+            return false;
+        }
+        ring = new Ring(nodes, virtualNodes);
+        return true;
+    }
+
+    public Set<String> getNodes() {
+        return ring.nodes;
+    }
+
+    // FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so similar card numbers land far apart
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Ring {
+        final Set<String> nodes;
+        // Sorted points and the node at each of them
+        final long[] points;
+        final String[] owners;
+
+        Ring(Set<String> nodes, int virtualNodes) {
+            this.nodes = Collections.unmodifiableSet(nodes);
+            long[][] placed = new long[nodes.size() * virtualNodes][];
+            String[] names = nodes.toArray(new String[0]);
+            for (int n = 0; n < names.length; n++) {
+                for (int v = 0; v < virtualNodes; v++) {
+                    placed[n * virtualNodes + v] = new long[]{hash(names[n] + '#' + v), n};
+                }
+            }
+            // Ties, which are very unlikely, go to the node that sorts first, so every node builds the same ring
+            Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+            this.points = new long[placed.length];
+            this.owners = new String[placed.length];
+            for (int i = 0; i < placed.length; i++) {
+                points[i] = placed[i][0];
+                owners[i] = names[(int) placed[i][1]];
+            }
+        }
+
+        String owner(long hash) {
+            if (points.length == 0) {
+                return null;
+            }
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return owners[index == points.length ? 0 : index];
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package no.bankaxept.home.assignment.service.velocity;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from card keys to their velocity windows, stored in two primitive arrays: the keys,
+ * and {@code stride} longs per slot holding the card's last payment time and then the buckets of every limit, one
+ * after the other. Not thread-safe: each instance is owned by one limiter stripe and only accessed under its lock.
+ * <p>
+ * Key {@code 0} marks an empty slot; {@link VelocityLimiter#cardKey(String)} never produces it.
+ */
+final class CardWindowTable {
+    private static final long EMPTY = 0L;
+
+    private final int stride;
+    private final int maxSize;
+    private long[] keys;
+    private long[] cells;
+    private int size;
+
+    /**
+     * @param stride  longs kept per card
+     * @param maxSize most cards the table may hold
+     */
+    CardWindowTable(int stride, int maxSize) {
+        this.stride = stride;
+        this.maxSize = maxSize;
+        allocate(16);
+    }
+
+    /**
+     * Returns the offset in {@link #cells()} of the card's first long, or -1 when the card has no window.
+     */
+    int find(long key) {
+        int slot = slot(keys, key);
+        return keys[slot] == key ? slot * stride : -1;
+    }
+
+    /**
+     * Adds a card with all its longs zero and returns its offset. The table must have {@link #hasRoom() room}.
+     */
+    int insert(long key) {
+        int slot = slot(keys, key);
+        keys[slot] = key;
+        size++;
+        return slot * stride;
+    }
+
+    /**
+     * Whether another card fits, within the most cards and without filling more than three quarters of the slots.
+     */
+    boolean hasRoom() {
+        return size < Math.min(maxSize, keys.length / 4 * 3);
+    }
+
+    /**
+     * Doubles the capacity, or returns {@code false} when the table can already hold its most cards.
+     */
+    boolean grow() {
+        if (keys.length / 4 * 3 >= maxSize) {
+            return false;
+        }
+        allocate(keys.length * 2);
+        return true;
+    }
+
+    /**
+     * Drops the cards whose last payment, the long at their offset, is before {@code cutoff}, and returns how many.
+     * The table is rebuilt in place of the old one, at the same capacity.
+     */
+    int retain(long cutoff) {
+        long[] oldKeys = keys;
+        long[] oldCells = cells;
+        int oldSize = size;
+        allocate(oldKeys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY && oldCells[i * stride] >= cutoff) {
+                move(oldKeys[i], oldCells, i * stride);
+            }
+        }
+        return oldSize - size;
+    }
+
+    /**
+     * Drops the {@code count} cards with the oldest last payment, cards paid in the same millisecond in slot order.
+     */
+    void evictOldest(int count) {
+        if (count <= 0 || size == 0) {
+            return;
+        }
+        long[] lastSeen = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                lastSeen[n++] = cells[i * stride];
+            }
+        }
+        Arrays.sort(lastSeen);
+        long cutoff = lastSeen[Math.min(size, count) - 1];
+        // Of the cards paid at the cutoff itself, only as many as are still needed
+        int ties = 0;
+        for (int i = Math.min(size, count) - 1; i >= 0 && lastSeen[i] == cutoff; i--) {
+            ties++;
+        }
+        long[] oldKeys = keys;
+        long[] oldCells = cells;
+        allocate(oldKeys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) {
+                continue;
+            }
+            long seen = oldCells[i * stride];
+            if (seen < cutoff || seen == cutoff && ties-- > 0) {
+                continue;
+            }
+            move(oldKeys[i], oldCells, i * stride);
+        }
+    }
+
+    long[] cells() {
+        return cells;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldCells = cells;
+        keys = new long[capacity];
+        cells = new long[capacity * stride];
+        size = 0;
+        if (oldKeys != null && capacity > oldKeys.length) {
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    move(oldKeys[i], oldCells, i * stride);
+                }
+            }
+        }
+    }
+
+    private void move(long key, long[] from, int offset) {
+        int slot = slot(keys, key);
+        keys[slot] = key;
+        System.arraycopy(from, offset, cells, slot * stride, stride);
+        size++;
+    }
+
+    // Linear probing; returns the key's slot or the empty slot where it would go
+    private static int slot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
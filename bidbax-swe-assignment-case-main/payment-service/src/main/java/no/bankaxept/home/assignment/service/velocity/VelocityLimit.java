@@ -0,0 +1,56 @@
+package no.bankaxept.home.assignment.service.velocity;
+
+/**
+ * How much one card may spend, and how many payments it may make, within a sliding window. The window is kept as
+ * {@code buckets} equal slices, so it slides a slice at a time: a one-minute window in six buckets counts the
+ * payments of the current ten seconds and the fifty before them.
+ */
+public final class VelocityLimit {
+    private final String name;
+    private final long windowMillis;
+    private final int buckets;
+    private final long maxAmount;
+    private final int maxCount;
+
+    /**
+     * @param maxAmount the most the card may spend within the window, or 0 for no limit on the amount
+     * @param maxCount  the most payments the card may make within the window, or 0 for no limit on their number
+     */
+    public VelocityLimit(String name, long windowMillis, int buckets, long maxAmount, int maxCount) {
+        if (buckets < 1 || windowMillis < buckets || windowMillis % buckets != 0) {
+            throw new IllegalArgumentException("The window of limit " + name + " must be a whole number of milliseconds per bucket");
+        }
+        if (maxAmount < 0 || maxAmount > VelocityLimiter.MAX_BUCKET_AMOUNT || maxCount < 0 || maxCount > VelocityLimiter.MAX_BUCKET_COUNT) {
+            throw new IllegalArgumentException("Limit " + name + " is out of range");
+        }
+        this.name = name;
+        this.windowMillis = windowMillis;
+        this.buckets = buckets;
+        this.maxAmount = maxAmount;
+        this.maxCount = maxCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public long getMaxAmount() {
+        return maxAmount;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    long getBucketMillis() {
+        return windowMillis / buckets;
+    }
+}
@@ -0,0 +1,259 @@
+package no.bankaxept.home.assignment.service.velocity;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.VelocityLimitException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Spending velocity limits per card, kept in memory so a payment is checked without a query over its card's
+ * recent transactions.
+ * <p>
+ * Each card has a ring of buckets per limit, each bucket holding the amount and number of payments of one slice of
+ * the window, packed into one long. A payment clears the buckets that have slid out of the window since the card's
+ * last payment, sums the ring and adds itself to the current bucket, so its cost depends on the number of buckets and
+ * not on how much the card pays. The windows are split over lock stripes by card, like the balances of the ledger.
+ * <p>
+ * Memory is bounded by {@code maxCards}. A card with no payment within the longest window has empty buckets and is
+ * dropped whenever its stripe needs room, which loses nothing. When a stripe is full of active cards, the eighth of
+ * them that paid least recently are dropped too; those cards start over with empty windows, and
+ * {@code payment.velocity.evicted} counts them.
+ * <p>
+ * The windows are only as precise as their buckets: a payment leaves the window when its bucket does, up to one
+ * bucket later than its exact time. Payments are counted when they are checked; one that fails afterwards is
+ * taken out again through {@link #release(Transaction, long)}.
+ */
+public class VelocityLimiter implements MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(VelocityLimiter.class);
+
+    private static final int COUNT_BITS = 20;
+    static final int MAX_BUCKET_COUNT = (1 << COUNT_BITS) - 1;
+    static final long MAX_BUCKET_AMOUNT = (1L << (63 - COUNT_BITS)) - 1;
+    private static final double LOSSY_EVICTION_SHARE = 0.125;
+
+    private final VelocityLimit[] limits;
+    private final long[] bucketMillis;
+    private final long longestWindowMillis;
+    private final Object[] locks;
+    private final CardWindowTable[] tables;
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder[] exceeded;
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+
+    /**
+     * @param maxCards most cards whose windows are kept at once, over all stripes
+     * @param stripes  lock stripes, a power of two
+     */
+    public VelocityLimiter(List<VelocityLimit> limits, int maxCards, int stripes) {
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two: " + stripes);
+        }
+        if (limits.isEmpty()) {
+            throw new IllegalArgumentException("At least one velocity limit is needed");
+        }
+        this.limits = limits.toArray(new VelocityLimit[0]);
+        this.bucketMillis = new long[this.limits.length];
+        this.exceeded = new LongAdder[this.limits.length];
+        long longest = 0;
+        // The last payment time, then the buckets of each limit
+        int stride = 1;
+        for (int i = 0; i < this.limits.length; i++) {
+            bucketMillis[i] = this.limits[i].getBucketMillis();
+            longest = Math.max(longest, this.limits[i].getWindowMillis());
+            stride += this.limits[i].getBuckets();
+            exceeded[i] = new LongAdder();
+            FunctionCounter.builder("payment.velocity.exceeded", exceeded[i], LongAdder::sum)
+                    .description("Payments refused for taking their card over a velocity limit")
+                    .tag("limit", this.limits[i].getName())
+                    .register(meterRegistry);
+        }
+        this.longestWindowMillis = longest;
+        int cardsPerStripe = Math.max(1, maxCards / stripes);
+        this.locks = new Object[stripes];
+        this.tables = new CardWindowTable[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+            tables[i] = new CardWindowTable(stride, cardsPerStripe);
+        }
+        Gauge.builder("payment.velocity.cards", this, VelocityLimiter::size)
+                .description("Cards whose velocity windows are kept in memory")
+                .register(meterRegistry);
+        FunctionCounter.builder("payment.velocity.evicted", evicted, LongAdder::sum)
+                .description("Cards with payments in their windows dropped to make room for other cards")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Counts the payment against every limit of its card.
+     *
+     * @param now the current time in milliseconds
+     * @return the time the payment was counted at, to hand to {@link #release(Transaction, long)}
+     * @throws VelocityLimitException if the payment would take its card over a limit; it is then not counted
+     * @throws IllegalArgumentException if the payment's amount is not positive
+     */
+    public long acquire(Transaction transaction, long now) {
+        checkAmount(transaction);
+        long key = cardKey(transaction.cardNumber);
+        int stripe = stripe(key);
+        synchronized (locks[stripe]) {
+            CardWindowTable table = tables[stripe];
+            int offset = table.find(key);
+            if (offset < 0) {
+                offset = insert(table, key, now);
+            }
+            long[] cells = table.cells();
+            // Clocks read on other threads may be a little behind the card's last payment
+            long at = Math.max(now, cells[offset]);
+            int ring = offset + 1;
+            for (int i = 0; i < limits.length; i++) {
+                advance(cells, ring, i, cells[offset], at);
+                ring += limits[i].getBuckets();
+            }
+            cells[offset] = at;
+            ring = offset + 1;
+            for (int i = 0; i < limits.length; i++) {
+                VelocityLimit limit = limits[i];
+                long amount = 0;
+                long count = 0;
+                for (int b = 0; b < limit.getBuckets(); b++) {
+                    amount += cells[ring + b] >>> COUNT_BITS;
+                    count += cells[ring + b] & MAX_BUCKET_COUNT;
+                }
+                if (limit.getMaxAmount() > 0 && amount + transaction.amount > limit.getMaxAmount()
+                        || limit.getMaxCount() > 0 && count + 1 > limit.getMaxCount()) {
+                    exceeded[i].increment();
+                    throw new VelocityLimitException(limit.getName(), transaction.bank,
+                            "The card has reached its " + limit.getName() + " spending limit.");
+                }
+                ring += limit.getBuckets();
+            }
+            ring = offset + 1;
+            for (int i = 0; i < limits.length; i++) {
+                cells[ring + bucket(i, at)] += bucketValue(transaction.amount);
+                ring += limits[i].getBuckets();
+            }
+            return at;
+        }
+    }
+
+    /**
+     * Takes a payment counted by {@link #acquire(Transaction, long)} out of its card's windows again, for a
+     * payment that failed after it was checked. Buckets that have since left a window are not touched.
+     */
+    public void release(Transaction transaction, long acquiredAt) {
+        checkAmount(transaction);
+        long key = cardKey(transaction.cardNumber);
+        int stripe = stripe(key);
+        synchronized (locks[stripe]) {
+            CardWindowTable table = tables[stripe];
+            int offset = table.find(key);
+            if (offset < 0) {
+                return;
+            }
+            long[] cells = table.cells();
+            long lastSeen = cells[offset];
+            long value = bucketValue(transaction.amount);
+            int ring = offset + 1;
+            for (int i = 0; i < limits.length; i++) {
+                long age = lastSeen / bucketMillis[i] - acquiredAt / bucketMillis[i];
+                int cell = ring + bucket(i, acquiredAt);
+                // A card dropped and seen again since has other payments in the bucket; never take out more than is there
+                if (age >= 0 && age < limits[i].getBuckets()
+                        && (cells[cell] & MAX_BUCKET_COUNT) > 0 && cells[cell] >>> COUNT_BITS >= transaction.amount) {
+                    cells[cell] -= value;
+                }
+                ring += limits[i].getBuckets();
+            }
+        }
+    }
+
+    /**
+     * Cards whose windows are kept in memory.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < locks.length; i++) {
+            synchronized (locks[i]) {
+                size += tables[i].size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        meterRegistry.add(registry);
+    }
+
+    // Makes room when the table is at its load limit: by dropping the idle cards if that frees an eighth of it,
+    // otherwise by growing the table, and once it cannot grow by dropping the least recent active cards up to an eighth
+    private int insert(CardWindowTable table, long key, long now) {
+        if (!table.hasRoom()) {
+            int cards = table.size();
+            // A card last seen a whole window ago has every bucket of every limit out of its window
+            int idle = table.retain(now - longestWindowMillis + 1);
+            if (idle < cards * LOSSY_EVICTION_SHARE && !table.grow()) {
+                int dropped = Math.max(1, (int) (cards * LOSSY_EVICTION_SHARE) - idle);
+                table.evictOldest(dropped);
+                evicted.add(dropped);
+                logger.debug("Dropped the velocity windows of {} active cards to make room", dropped);
+            }
+        }
+        return table.insert(key);
+    }
+
+    // Clears the buckets of limit i that slid out of its window between the card's last payment and now
+    private void advance(long[] cells, int ring, int i, long lastSeen, long now) {
+        long from = lastSeen / bucketMillis[i];
+        long to = now / bucketMillis[i];
+        int buckets = limits[i].getBuckets();
+        for (long epoch = Math.max(from + 1, to - buckets + 1); epoch <= to; epoch++) {
+            cells[ring + (int) (epoch % buckets)] = 0;
+        }
+    }
+
+    private int bucket(int i, long time) {
+        return (int) (time / bucketMillis[i] % limits[i].getBuckets());
+    }
+
+    // An amount of zero or less would borrow from the count bits of the packed bucket
+    private static void checkAmount(Transaction transaction) {
+        if (transaction.amount <= 0) {
+            throw new IllegalArgumentException("Payment amount must be positive: " + transaction.amount);
+        }
+    }
+
+    private static long bucketValue(int amount) {
+        return ((long) amount << COUNT_BITS) + 1;
+    }
+
+    private int stripe(long key) {
+        // The high half, since the tables place the card by the low bits of its key
+        return (int) (key >>> 32) & (locks.length - 1);
+    }
+
+    /**
+     * A 64-bit hash of the card number, never 0. Two cards with the same hash would share their windows, which at
+     * this width does not happen for any realistic number of cards.
+     */
+    static long cardKey(String cardNumber) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < cardNumber.length(); i++) {
+            h = (h ^ cardNumber.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,260 @@
+package no.bankaxept.home.assignment.service.writer;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.Deadline;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.PaymentTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Group-commit writer for payments: debits and transaction rows from concurrent payments share one database
+ * transaction, and the rows go to the database in one {@code batchUpdate}.
+ * <p>
+ * A single writer thread takes the first waiting payment, collects more until the batch is full or the flush
+ * interval has passed, and commits them together. Each payment's future completes only after that commit, so a
+ * completed payment is as durable as with one transaction per payment. A debit declined for insufficient funds
+ * writes nothing and fails only its own payment. Any other failure rolls the group back, and its payments are
+ * then written one transaction each so that one bad payment cannot fail the others. A payment whose deadline has
+ * passed while it waited is failed before the batch starts, so it never moves money.
+ */
+public class TransactionWriter implements MeterBinder, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TransactionWriter.class);
+
+    private static final String INSERT_SQL = "INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxBatchSize;
+    private final long flushIntervalNanos;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final DistributionSummary batchSizes;
+    private final Timer flushLatency;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public TransactionWriter(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, int maxBatchSize, long flushIntervalMicros) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalNanos = TimeUnit.MICROSECONDS.toNanos(flushIntervalMicros);
+
+        this.batchSizes = DistributionSummary.builder("payment.writer.batch.size")
+                .description("Payments committed together in one database transaction")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.flushLatency = Timer.builder("payment.writer.flush.latency")
+                .description("Time to debit, insert and commit one batch of payments")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("payment.writer.queue", queue, BlockingQueue::size)
+                .description("Payments waiting for the writer")
+                .register(meterRegistry);
+
+        this.writer = new Thread(this::run, "transaction-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a payment. {@code debit} runs on the writer thread inside the batch's database transaction and returns
+     * the new balance; the returned future completes with that balance once the transaction row is committed.
+     */
+    public CompletableFuture<Integer> submit(Transaction transaction, String transactionUuid, String type, IntSupplier debit) {
+        return submit(transaction, transactionUuid, type, new Timestamp(System.currentTimeMillis()), debit, null);
+    }
+
+    /**
+     * Queues a payment whose row is dated {@code date}, and which is dropped instead of written if {@code deadline}
+     * passes before its batch starts.
+     */
+    public CompletableFuture<Integer> submit(Transaction transaction, String transactionUuid, String type, Timestamp date,
+                                             IntSupplier debit, Deadline deadline) {
+        PendingWrite write = new PendingWrite(transaction, transactionUuid, type, date, debit, deadline);
+        if (!running) {
+            write.future.completeExceptionally(new IOException("Payment service is shutting down."));
+        } else {
+            queue.add(write);
+        }
+        return write.future;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        meterRegistry.add(registry);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingWrite write;
+        while ((write = queue.poll()) != null) {
+            write.future.completeExceptionally(new IOException("Payment service is shutting down."));
+        }
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < maxBatchSize) {
+                    PendingWrite next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Transaction writer failed on a batch of {} payments", batch.size(), e);
+                for (PendingWrite write : batch) {
+                    write.future.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        long start = System.nanoTime();
+        batch.removeIf(PendingWrite::expire);
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            write(batch);
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).fail(e);
+            } else {
+                logger.warn("Batch of {} payments rolled back, writing them one by one: {}", batch.size(), e.getMessage());
+                for (PendingWrite write : batch) {
+                    try {
+                        write(Collections.singletonList(write));
+                    } catch (RuntimeException single) {
+                        write.fail(single);
+                    }
+                }
+            }
+        }
+        // Recorded before the payments hear back, so whoever sees a payment finish also sees its batch counted
+        flushLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        batchSizes.record(batch.size());
+        for (PendingWrite write : batch) {
+            write.complete();
+        }
+    }
+
+    private void write(List<PendingWrite> batch) {
+        List<Object[]> rows = new ArrayList<>(batch.size());
+        transactionTemplate.execute(status -> {
+            for (PendingWrite write : batch) {
+                write.reset();
+                try {
+                    write.newBalance = write.debit.getAsInt();
+                } catch (InsufficientFundsException e) {
+                    // The conditional update matched no row, so there is nothing to undo
+                    write.failure = e;
+                    continue;
+                }
+                rows.add(write.row());
+            }
+            if (!rows.isEmpty()) {
+                jdbcTemplate.batchUpdate(INSERT_SQL, rows);
+            }
+            return null;
+        });
+    }
+
+    private static class PendingWrite {
+        final Transaction transaction;
+        final String transactionUuid;
+        final String type;
+        final Timestamp date;
+        final IntSupplier debit;
+        final Deadline deadline;
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        int newBalance;
+        RuntimeException failure;
+
+        PendingWrite(Transaction transaction, String transactionUuid, String type, Timestamp date, IntSupplier debit, Deadline deadline) {
+            this.transaction = transaction;
+            this.transactionUuid = transactionUuid;
+            this.type = type;
+            this.date = date;
+            this.debit = debit;
+            this.deadline = deadline;
+        }
+
+        // Fails the payment if its deadline has passed
+        boolean expire() {
+            try {
+                if (deadline != null) {
+                    deadline.check();
+                }
+                return false;
+            } catch (PaymentTimeoutException e) {
+                future.completeExceptionally(e);
+                return true;
+            }
+        }
+
+        Object[] row() {
+            return new Object[]{transaction.bank, transactionUuid, transaction.cardNumber, transaction.amount, date, type};
+        }
+
+        void reset() {
+            failure = null;
+        }
+
+        void fail(RuntimeException e) {
+            failure = e;
+        }
+
+        void complete() {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(newBalance);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package no.bankaxept.home.assignment.service;
+
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.bank.BankRegistry;
+import no.bankaxept.home.assignment.service.bank.BankResilience;
+import no.bankaxept.home.assignment.service.bank.ConfiguredBankAdapter;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.ledger.BalanceLedger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Pays batches against a real H2 database, with a Big Bank that approves every big payment except those of 666.
+ */
+class BatchPaymentServiceTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private DataSourceTransactionManager transactionManager;
+    private PaymentService paymentService;
+    private BatchPaymentService batchPaymentService;
+    private ExecutorService executor;
+    private final List<Integer> bankChecks = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Long, BatchPaymentResult> results = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("INSERT INTO balance (cardNumber, amount) VALUES (?, ?)", "001", 1000);
+        jdbcTemplate.update("INSERT INTO balance (cardNumber, amount) VALUES (?, ?)", "002", 100);
+
+        BankRegistry banks = new BankRegistry(Collections.singletonList(new ConfiguredBankAdapter("The Big Bank", 200, 0, 0,
+                (transaction, transactionUuid, timeoutMillis) -> {
+                    bankChecks.add(transaction.amount);
+                    CompletableFuture<Void> answer = new CompletableFuture<>();
+                    if (transaction.amount == 666) {
+                        answer.completeExceptionally(new BankValidationException("The Big Bank", "Not approved."));
+                    } else {
+                        answer.complete(null);
+                    }
+                    return answer;
+                })));
+        transactionManager = new DataSourceTransactionManager(dataSource);
+        paymentService = new PaymentService(jdbcTemplate, transactionManager, banks, new BankResilience(50, 5000, 4, 4, 60000, 1),
+                Runnable::run, Runnable::run, null, null, null, Clock.systemUTC(), 1.0, null);
+        executor = Executors.newFixedThreadPool(4);
+        batchPaymentService = new BatchPaymentService(jdbcTemplate, transactionManager, paymentService, null, null, executor, Clock.systemUTC());
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testEachCardIsPaidInOrderAndEachPaymentFailsOnItsOwn() throws Exception {
+        List<BatchPayment> batch = new ArrayList<>();
+        batch.add(payment(batch, "001", 50));
+        batch.add(payment(batch, "002", 80));
+        batch.add(payment(batch, "001", 300));
+        batch.add(payment(batch, "001", 666));
+        batch.add(payment(batch, "002", 30));
+        // Covered by the balance as read, but not once the big payments sent to the bank before it are held back
+        batch.add(payment(batch, "001", 700));
+
+        pay(batch);
+
+        assertEquals(950, results.get(0L).getResult().getBalance());
+        assertEquals(20, results.get(1L).getResult().getBalance());
+        assertEquals(650, results.get(2L).getResult().getBalance());
+        assertTrue(results.get(3L).getFailure() instanceof BankValidationException);
+        assertTrue(results.get(4L).getFailure() instanceof InsufficientFundsException);
+        assertTrue(results.get(5L).getFailure() instanceof InsufficientFundsException);
+
+        assertEquals(650, balance("001"));
+        assertEquals(20, balance("002"));
+        assertEquals(3, (int) jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transaction", Integer.class));
+        assertEquals("big", jdbcTemplate.queryForObject("SELECT type FROM transaction WHERE amount = 300", String.class));
+        assertEquals(2, bankChecks.size());
+    }
+
+    @Test
+    void testDuplicatesInTheDatabaseAndWithinTheBatchAreRefused() throws Exception {
+        jdbcTemplate.update("INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES (?, ?, ?, ?, ?, ?)",
+                "The Big Bank", "paid-before", "001", 10, new Timestamp(System.currentTimeMillis()), "small");
+        List<BatchPayment> batch = new ArrayList<>();
+        batch.add(new BatchPayment(0, "paid-before", new Transaction("001", 10, "The Big Bank")));
+        batch.add(new BatchPayment(1, "resent", new Transaction("001", 20, "The Big Bank")));
+        batch.add(new BatchPayment(2, "resent", new Transaction("001", 20, "The Big Bank")));
+
+        pay(batch);
+
+        assertTrue(results.get(0L).getFailure() instanceof IOException);
+        assertTrue(results.get(1L).isPaid());
+        assertTrue(results.get(2L).getFailure() instanceof IOException);
+        assertEquals(980, balance("001"));
+    }
+
+    @Test
+    void testBigPaymentTheCardCannotCoverIsDeclinedWithoutAskingTheBank() throws Exception {
+        List<BatchPayment> batch = new ArrayList<>();
+        batch.add(payment(batch, "002", 250));
+        batch.add(payment(batch, "002", 40));
+
+        pay(batch);
+
+        assertTrue(results.get(0L).getFailure() instanceof InsufficientFundsException);
+        assertEquals(60, results.get(1L).getResult().getBalance());
+        assertTrue(bankChecks.isEmpty());
+    }
+
+    @Test
+    void testBigPaymentsAlreadySentToTheBankAreHeldBackFromTheBalance() throws Exception {
+        List<BatchPayment> batch = new ArrayList<>();
+        batch.add(payment(batch, "001", 600));
+        batch.add(payment(batch, "001", 600));
+        batch.add(payment(batch, "001", 600));
+
+        pay(batch);
+
+        assertEquals(400, results.get(0L).getResult().getBalance());
+        assertTrue(results.get(1L).getFailure() instanceof InsufficientFundsException);
+        assertTrue(results.get(2L).getFailure() instanceof InsufficientFundsException);
+        assertEquals(Collections.singletonList(600), bankChecks);
+    }
+
+    @Test
+    void testLedgerDebitThatFailsLeavesTheOthersOfTheCardPaid() throws Exception {
+        BalanceLedger ledger = mock(BalanceLedger.class);
+        when(ledger.supports("003")).thenReturn(true);
+        when(ledger.debit(any(), anyString(), anyString(), anyLong()))
+                .thenReturn(990)
+                .thenThrow(new DataAccessResourceFailureException("Balance could not be loaded"))
+                .thenReturn(970);
+        batchPaymentService = new BatchPaymentService(jdbcTemplate, transactionManager, paymentService, ledger, null, executor, Clock.systemUTC());
+        List<BatchPayment> batch = new ArrayList<>();
+        batch.add(payment(batch, "003", 10));
+        batch.add(payment(batch, "003", 10));
+        batch.add(payment(batch, "003", 20));
+
+        pay(batch);
+
+        // The debits before and after the failure committed in the ledger, so they must be reported as paid
+        assertEquals(990, results.get(0L).getResult().getBalance());
+        assertTrue(results.get(1L).getFailure() instanceof DataAccessResourceFailureException);
+        assertEquals(970, results.get(2L).getResult().getBalance());
+    }
+
+    private void pay(List<BatchPayment> batch) throws Exception {
+        batchPaymentService.pay(batch, result -> {
+            assertNull(results.put(result.getPayment().getIndex(), result));
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals(batch.size(), results.size());
+    }
+
+    private int balance(String cardNumber) {
+        return jdbcTemplate.queryForObject("SELECT amount FROM balance WHERE cardNumber = ?", Integer.class, cardNumber);
+    }
+
+    private static BatchPayment payment(List<BatchPayment> batch, String cardNumber, int amount) {
+        return new BatchPayment(batch.size(), UUID.randomUUID().toString(), new Transaction(cardNumber, amount, "The Big Bank"));
+    }
+}
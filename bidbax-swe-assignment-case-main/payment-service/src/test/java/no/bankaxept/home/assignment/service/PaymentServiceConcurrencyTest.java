@@ -0,0 +1,119 @@
+package no.bankaxept.home.assignment.service;
+
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.bank.BankRegistry;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.writer.TransactionWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hammers a single card from many threads against a real H2 database and checks that every
+ * accepted payment was debited exactly once and the card was never overdrawn.
+ */
+class PaymentServiceConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int PAYMENTS_PER_THREAD = 250;
+    private static final int AMOUNT = 7;
+    private static final int INITIAL_BALANCE = 10000;
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private PaymentService paymentService;
+    private ExecutorService executor;
+    private TransactionWriter transactionWriter;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("INSERT INTO balance (cardNumber, amount) VALUES (?, ?)", "001", INITIAL_BALANCE);
+
+        paymentService = new PaymentService(jdbcTemplate, new DataSourceTransactionManager(dataSource), BankRegistry.of(null), null, Runnable::run, Runnable::run,
+                null, null, null, Clock.systemUTC(), 1.0, null);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+        if (transactionWriter != null) {
+            transactionWriter.close();
+        }
+    }
+
+    @Test
+    void testConcurrentDebitsOnOneCardAreExact() throws Exception {
+        runConcurrentPayments();
+    }
+
+    @Test
+    void testConcurrentDebitsThroughTheTransactionWriterAreExact() throws Exception {
+        transactionWriter = new TransactionWriter(jdbcTemplate, new DataSourceTransactionManager(dataSource), 100, 1000);
+        paymentService = new PaymentService(jdbcTemplate, new DataSourceTransactionManager(dataSource), BankRegistry.of(null), null, Runnable::run, Runnable::run,
+                null, transactionWriter, null, Clock.systemUTC(), 1.0, null);
+        runConcurrentPayments();
+    }
+
+    private void runConcurrentPayments() throws Exception {
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger declined = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            workers.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < PAYMENTS_PER_THREAD; i++) {
+                    try {
+                        paymentService.pay(new Transaction("001", AMOUNT, "The Big Bank"), UUID.randomUUID().toString()).get();
+                        accepted.incrementAndGet();
+                    } catch (InsufficientFundsException e) {
+                        declined.incrementAndGet();
+                    } catch (ExecutionException e) {
+                        // The writer reports a declined debit through the future
+                        assertTrue(e.getCause() instanceof InsufficientFundsException);
+                        declined.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+
+        int finalBalance = jdbcTemplate.queryForObject("SELECT amount FROM balance WHERE cardNumber = '001'", Integer.class);
+        int recorded = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transaction WHERE card = '001'", Integer.class);
+
+        assertEquals(THREADS * PAYMENTS_PER_THREAD, accepted.get() + declined.get());
+        assertEquals(INITIAL_BALANCE / AMOUNT, accepted.get(), "every payment the balance could cover should be accepted");
+        assertEquals(INITIAL_BALANCE - accepted.get() * AMOUNT, finalBalance);
+        assertEquals(INITIAL_BALANCE % AMOUNT, finalBalance);
+        assertEquals(accepted.get(), recorded);
+    }
+}
@@ -1,49 +1,78 @@
 package no.bankaxept.home.assignment.service;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.bankaxept.home.assignment.model.PaymentResult;
 import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.bank.BankClient;
+import no.bankaxept.home.assignment.service.bank.BankRegistry;
+import no.bankaxept.home.assignment.service.bank.BankResilience;
 import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
 import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.PaymentRejectedException;
+import no.bankaxept.home.assignment.service.exception.PaymentTimeoutException;
+import no.bankaxept.home.assignment.service.exception.VelocityLimitException;
+import no.bankaxept.home.assignment.service.executor.PaymentExecutor;
+import no.bankaxept.home.assignment.service.velocity.VelocityLimit;
+import no.bankaxept.home.assignment.service.velocity.VelocityLimiter;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
 
 import java.io.IOException;
-import java.util.Map;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
-import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class PaymentServiceTest {
 
+    private static final Instant NOW = Instant.parse("2024-05-01T12:30:00.123Z");
+
     @Mock
     private JdbcTemplate jdbcTemplate;
 
     @Mock
-    private RestTemplate restTemplate;
+    private PlatformTransactionManager transactionManager;
 
     @Mock
-    private ObjectMapper objectMapper;
+    private BankClient bankClient;
 
-    @InjectMocks
     private PaymentService paymentService;
 
     @BeforeEach
     void setUp() {
         MockitoAnnotations.initMocks(this); // Use this if you cannot upgrade Mockito
+        BankResilience bankResilience = new BankResilience(50, 5000, 4, 4, 60000, 1);
+        bankResilience.register("Loaners", 2);
+        paymentService = new PaymentService(jdbcTemplate, transactionManager, BankRegistry.of(bankClient), bankResilience, Runnable::run, Runnable::run,
+                null, null, null, Clock.fixed(NOW, ZoneOffset.UTC), 1.0, null);
     }
 
     @Test
@@ -51,33 +80,274 @@ class PaymentServiceTest {
         Transaction transaction = new Transaction("1234", 150, "The Big Bank");
         String transactionUuid = "unique-uuid";
 
-        when(jdbcTemplate.queryForObject(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(0); // transaction not processed
-        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300)); // sufficient balance
-        when(restTemplate.getForEntity(anyString(), eq(String.class)))
-                .thenReturn(new ResponseEntity<>("{\"successful\": true}", HttpStatus.OK)); // bank validation successful
-        when(objectMapper.readTree(anyString())).thenReturn(mock(JsonNode.class));
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList()); // transaction not processed
+        debitLeaves(150); // sufficient balance
 
-        CompletableFuture<Map<String, Object>> future = paymentService.pay(transaction, transactionUuid);
-        Map<String, Object> result = future.get();
+        CompletableFuture<PaymentResult> future = paymentService.pay(transaction, transactionUuid);
+        PaymentResult result = future.get();
 
         assertNotNull(result);
-        assertTrue(result.containsKey("balance"));
-        assertTrue(result.containsKey("duration"));
+        assertEquals(150, result.getBalance());
+        assertTrue(result.getDurationMillis() >= 0);
+        // The row and the response carry the same time, bound as a TIMESTAMP
+        assertEquals(NOW, result.getRecordedAt());
+        verify(jdbcTemplate).update(anyString(), eq("The Big Bank"), eq(transactionUuid), eq("1234"), eq(150), eq(Timestamp.from(NOW)), eq("small"));
+    }
+
+    @Test
+    void testPay_BigTransactionApprovedByBank() throws Exception {
+        Transaction transaction = new Transaction("1234", 250, "The Big Bank");
+        String transactionUuid = "unique-uuid";
+
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300));
+        CompletableFuture<Void> bankCheck = new CompletableFuture<>();
+        when(bankClient.validateBigBank(eq(transaction), eq(transactionUuid), anyLong())).thenReturn(bankCheck);
+        debitLeaves(50);
+
+        CompletableFuture<PaymentResult> future = paymentService.pay(transaction, transactionUuid);
+
+        // Nothing is written until the bank has answered
+        assertFalse(future.isDone());
+        verify(transactionManager, never()).getTransaction(any());
+
+        bankCheck.complete(null);
+
+        assertEquals(50, future.get().getBalance());
+    }
+
+    @Test
+    void testPay_RecordsStagesAndOutcome() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        paymentService.bindTo(registry);
+        Transaction transaction = new Transaction("1234", 250, "The Big Bank");
+
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300));
+        when(bankClient.validateBigBank(eq(transaction), eq("unique-uuid"), anyLong())).thenReturn(CompletableFuture.completedFuture(null));
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+        debitLeaves(50);
+        paymentService.pay(transaction, "unique-uuid").get();
+
+        for (String stage : new String[]{"duplicate_check", "balance_read", "funds_validation", "bank_call", "balance_update", "transaction_insert"}) {
+            assertEquals(1, registry.get("payment.stage").tags("stage", stage, "bank", "The Big Bank", "type", "big").timer().count(), stage);
+        }
+        assertEquals(1.0, registry.get("payment.outcome").tags("outcome", "paid", "type", "big").counter().count());
+
+        // Declined before the bank is asked
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(100));
+        assertThrows(InsufficientFundsException.class, () -> paymentService.pay(new Transaction("1234", 250, "Unknown Bank"), "other-uuid"));
+        assertEquals(1.0, registry.get("payment.outcome").tags("outcome", "insufficient_funds", "bank", "unknown").counter().count());
+    }
+
+    @Test
+    void testPay_LogsOneEventPerPayment() throws Exception {
+        Logger eventLogger = (Logger) LoggerFactory.getLogger(PaymentEvents.class);
+        ListAppender<ILoggingEvent> events = new ListAppender<>();
+        events.start();
+        eventLogger.addAppender(events);
+        try {
+            Transaction transaction = new Transaction("1234", 250, "The Big Bank");
+            when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+            when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300));
+            when(bankClient.validateBigBank(eq(transaction), eq("unique-uuid"), anyLong())).thenReturn(CompletableFuture.completedFuture(null));
+            debitLeaves(50);
+            paymentService.pay(transaction, "unique-uuid").get();
+
+            assertEquals(1, events.list.size());
+            ILoggingEvent paid = events.list.get(0);
+            assertEquals(Level.INFO, paid.getLevel());
+            String message = paid.getFormattedMessage();
+            assertTrue(message.startsWith("payment uuid=\"unique-uuid\" bank=\"The Big Bank\" type=big amount=250 outcome=paid balance=50 duration_ms="), message);
+            for (String stage : new String[]{"duplicate_check", "balance_read", "funds_validation", "bank_call", "balance_update", "transaction_insert"}) {
+                assertTrue(message.contains(" " + stage + "_ms="), stage);
+            }
+
+            // An expected outcome carries its reason, but no stack trace, and stops at the stage that declined it
+            when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(100));
+            assertThrows(InsufficientFundsException.class, () -> paymentService.pay(transaction, "other-uuid"));
+
+            assertEquals(2, events.list.size());
+            ILoggingEvent declined = events.list.get(1);
+            assertEquals(Level.INFO, declined.getLevel());
+            assertNull(declined.getThrowableProxy());
+            assertTrue(declined.getFormattedMessage().contains(" outcome=insufficient_funds "), declined.getFormattedMessage());
+            assertTrue(declined.getFormattedMessage().contains(" reason=\""), declined.getFormattedMessage());
+            assertFalse(declined.getFormattedMessage().contains("bank_call_ms="), declined.getFormattedMessage());
+        } finally {
+            eventLogger.detachAppender(events);
+        }
+    }
+
+    @Test
+    void testPay_BigTransactionRejectedByBank() throws Exception {
+        Transaction transaction = new Transaction("1234", 150, "Loaners");
+        String transactionUuid = "unique-uuid";
+
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300));
+        CompletableFuture<Void> bankCheck = new CompletableFuture<>();
+        bankCheck.completeExceptionally(new BankValidationException("Loaners", "Transaction not approved by Loaners."));
+        when(bankClient.validateLoaners(eq(transaction), eq(transactionUuid), anyLong())).thenReturn(bankCheck);
+
+        CompletableFuture<PaymentResult> future = paymentService.pay(transaction, transactionUuid);
+
+        ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+        assertTrue(exception.getCause() instanceof BankValidationException);
+        verify(transactionManager, never()).getTransaction(any());
     }
 
     @Test
-    void testPay_InsufficientFunds() {
+    void testPay_BulkheadAppliesToInternalBankCall() throws Exception {
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300));
+        when(bankClient.validateLoaners(any(), anyString(), anyLong())).thenReturn(new CompletableFuture<>());
+
+        // Loaners is limited to two concurrent checks in setUp
+        paymentService.pay(new Transaction("1234", 150, "Loaners"), "uuid-1");
+        paymentService.pay(new Transaction("1234", 150, "Loaners"), "uuid-2");
+        CompletableFuture<PaymentResult> rejected = paymentService.pay(new Transaction("1234", 150, "Loaners"), "uuid-3");
+
+        ExecutionException exception = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(exception.getCause() instanceof IOException);
+        verify(bankClient, times(2)).validateLoaners(any(), anyString(), anyLong());
+    }
+
+    @Test
+    void testPay_DeadlinePassedDuringBankCallFailsBeforeTheDebit() throws Exception {
+        Transaction transaction = new Transaction("1234", 250, "The Big Bank");
+        String transactionUuid = "unique-uuid";
+
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300));
+        CompletableFuture<Void> bankCheck = new CompletableFuture<>();
+        when(bankClient.validateBigBank(eq(transaction), eq(transactionUuid), longThat(budget -> budget > 0 && budget <= 200))).thenReturn(bankCheck);
+        debitLeaves(50);
+
+        CompletableFuture<PaymentResult> future = paymentService.pay(transaction, transactionUuid, Deadline.after(200));
+        TimeUnit.MILLISECONDS.sleep(300);
+        bankCheck.complete(null);
+
+        ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+        assertTrue(exception.getCause() instanceof PaymentTimeoutException);
+        verify(jdbcTemplate, never()).update(any(PreparedStatementCreator.class), any(KeyHolder.class));
+        verify(transactionManager, never()).getTransaction(any());
+    }
+
+    @Test
+    void testPay_CancelledPaymentDoesNotDebit() throws Exception {
+        Transaction transaction = new Transaction("1234", 250, "The Big Bank");
+
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300));
+        CompletableFuture<Void> bankCheck = new CompletableFuture<>();
+        when(bankClient.validateBigBank(eq(transaction), eq("unique-uuid"), anyLong())).thenReturn(bankCheck);
+        debitLeaves(50);
+
+        // The client went away while the bank was deciding
+        paymentService.pay(transaction, "unique-uuid").cancel(true);
+        bankCheck.complete(null);
+
+        verify(jdbcTemplate, never()).update(any(PreparedStatementCreator.class), any(KeyHolder.class));
+    }
+
+    @Test
+    void testPay_InsufficientFunds() throws Exception {
         Transaction transaction = new Transaction("1234", 150, "The Big Bank");
         String transactionUuid = "unique-uuid";
 
         when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(100)); // insufficient balance
         String expectedMessage = "Insufficient funds. Available: 100, Required: 150 for bank: The Big Bank";
 
-        InsufficientFundsException exception = assertThrows(
-                InsufficientFundsException.class,
-                () -> paymentService.pay(transaction, transactionUuid)
-        );
-        assertEquals("Insufficient funds", exception.getMessage());
+        // A small payment runs on the small payment executor, so the decline arrives through the future
+        CompletableFuture<PaymentResult> future = paymentService.pay(transaction, transactionUuid);
+        ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+        assertTrue(exception.getCause() instanceof InsufficientFundsException);
+        assertEquals("Insufficient funds", exception.getCause().getMessage());
+    }
+
+    @Test
+    void testPay_BigTransactionRejectedWhenExecutorIsFull() throws Exception {
+        PaymentExecutor bigPaymentExecutor = new PaymentExecutor("big", 1, 0, false);
+        try {
+            paymentService = new PaymentService(jdbcTemplate, transactionManager, BankRegistry.of(bankClient), null, Runnable::run, bigPaymentExecutor,
+                    null, null, null, Clock.systemUTC(), 1.0, null);
+            when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+            when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(300));
+            CountDownLatch release = new CountDownLatch(1);
+            bigPaymentExecutor.execute(() -> {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            assertThrows(PaymentRejectedException.class, () -> paymentService.pay(new Transaction("1234", 250, "The Big Bank"), "unique-uuid"));
+            // Refused before the bank was asked
+            verify(bankClient, never()).validateBigBank(any(), anyString(), anyLong());
+            release.countDown();
+        } finally {
+            bigPaymentExecutor.close();
+        }
+    }
+
+    @Test
+    void testPay_VelocityLimitRejectsBeforeTheBankCall() throws Exception {
+        VelocityLimiter velocityLimiter = new VelocityLimiter(Collections.singletonList(new VelocityLimit("minute", 60000, 6, 400, 0)), 1000, 1);
+        BankResilience bankResilience = new BankResilience(50, 5000, 4, 4, 60000, 1);
+        bankResilience.register("The Big Bank", 2);
+        paymentService = new PaymentService(jdbcTemplate, transactionManager, BankRegistry.of(bankClient), bankResilience, Runnable::run, Runnable::run,
+                null, null, null, Clock.fixed(NOW, ZoneOffset.UTC), 1.0, velocityLimiter);
+        Transaction transaction = new Transaction("1234", 250, "The Big Bank");
+
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(1000));
+        CompletableFuture<Void> rejectedByBank = new CompletableFuture<>();
+        rejectedByBank.completeExceptionally(new BankValidationException("The Big Bank", "Transaction not approved by The Big Bank."));
+        when(bankClient.validateBigBank(eq(transaction), anyString(), anyLong())).thenReturn(rejectedByBank, CompletableFuture.completedFuture(null));
+        debitLeaves(750);
+
+        // A payment that fails is taken out of the window again, so the next one still fits
+        ExecutionException exception = assertThrows(ExecutionException.class, paymentService.pay(transaction, "uuid-1")::get);
+        assertTrue(exception.getCause() instanceof BankValidationException);
+        assertEquals(750, paymentService.pay(transaction, "uuid-2").get().getBalance());
+
+        VelocityLimitException limited = assertThrows(VelocityLimitException.class, () -> paymentService.pay(transaction, "uuid-3"));
+        assertEquals("minute", limited.getLimit());
+        verify(bankClient, times(2)).validateBigBank(any(), anyString(), anyLong());
+    }
+
+    @Test
+    void testPay_LogsAVelocityLimitAsAnExpectedOutcome() throws Exception {
+        VelocityLimiter velocityLimiter = new VelocityLimiter(Collections.singletonList(new VelocityLimit("minute", 60000, 1, 400, 0)), 1000, 1);
+        BankResilience bankResilience = new BankResilience(50, 5000, 4, 4, 60000, 1);
+        bankResilience.register("The Big Bank", 2);
+        paymentService = new PaymentService(jdbcTemplate, transactionManager, BankRegistry.of(bankClient), bankResilience, Runnable::run, Runnable::run,
+                null, null, null, Clock.fixed(NOW, ZoneOffset.UTC), 1.0, velocityLimiter);
+        Transaction transaction = new Transaction("1234", 250, "The Big Bank");
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(1000));
+        when(bankClient.validateBigBank(eq(transaction), anyString(), anyLong())).thenReturn(CompletableFuture.completedFuture(null));
+        debitLeaves(750);
+        paymentService.pay(transaction, "uuid-1").get();
+
+        Logger eventLogger = (Logger) LoggerFactory.getLogger(PaymentEvents.class);
+        ListAppender<ILoggingEvent> events = new ListAppender<>();
+        events.start();
+        eventLogger.addAppender(events);
+        try {
+            assertThrows(VelocityLimitException.class, () -> paymentService.pay(transaction, "uuid-2"));
+
+            assertEquals(1, events.list.size());
+            ILoggingEvent limited = events.list.get(0);
+            assertEquals(Level.INFO, limited.getLevel());
+            assertNull(limited.getThrowableProxy());
+            assertTrue(limited.getFormattedMessage().contains(" outcome=velocity_limit "), limited.getFormattedMessage());
+            assertTrue(limited.getFormattedMessage().contains(" velocity_check_ms="), limited.getFormattedMessage());
+        } finally {
+            eventLogger.detachAppender(events);
+        }
     }
 
     @Test
@@ -85,13 +355,11 @@ class PaymentServiceTest {
         Transaction transaction = new Transaction("1234", 150, "The Big Bank");
         String transactionUuid = "unique-uuid";
 
-        when(jdbcTemplate.queryForObject(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(1); // transaction already processed
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.singletonList(1)); // transaction already processed
 
-        IOException exception = assertThrows(
-                IOException.class,
-                () -> paymentService.pay(transaction, transactionUuid)
-        );
-        assertEquals("Duplicate transaction detected.", exception.getMessage());
+        ExecutionException exception = assertThrows(ExecutionException.class, paymentService.pay(transaction, transactionUuid)::get);
+        assertTrue(exception.getCause() instanceof DuplicateTransactionException);
+        assertEquals("Duplicate transaction detected.", exception.getCause().getMessage());
     }
 
     @Test
@@ -100,7 +368,7 @@ class PaymentServiceTest {
         unsupportedTransaction.setBank("Unsupported Bank");
 
         BankValidationException exception = assertThrows(BankValidationException.class, () -> {
-            paymentService.validateBigTransactionWithBank(unsupportedTransaction, UUID.randomUUID().toString());
+            paymentService.validateBigTransactionWithBank(unsupportedTransaction, UUID.randomUUID().toString(), Deadline.after(1000));
         });
 
         assertEquals("Unsupported bank.", exception.getMessage());
@@ -110,7 +378,7 @@ class PaymentServiceTest {
     void testIsTransactionProcessed_True() {
         String transactionUuid = "uuid-123";
 
-        when(jdbcTemplate.queryForObject(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(1);
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.singletonList(1));
 
         boolean result = paymentService.isTransactionProcessed(transactionUuid);
         assertTrue(result);
@@ -120,23 +388,40 @@ class PaymentServiceTest {
     void testIsTransactionProcessed_False() {
         String transactionUuid = "uuid-123";
 
-        when(jdbcTemplate.queryForObject(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(0);
+        when(jdbcTemplate.queryForList(anyString(), any(Object[].class), eq(Integer.class))).thenReturn(Collections.emptyList());
 
         boolean result = paymentService.isTransactionProcessed(transactionUuid);
         assertFalse(result);
     }
 
     @Test
-    void testUpdateBalance() {
+    void testDebitBalance() {
         Transaction transaction = new Transaction("1234", 100, "The Big Bank");
-        int currentBalance = 300;
 
-        when(jdbcTemplate.update(anyString(), anyInt(), anyString())).thenReturn(1);
+        debitLeaves(200);
 
-        int newBalance = paymentService.updateBalance(transaction, currentBalance);
+        int newBalance = paymentService.debitBalance(transaction);
 
         assertEquals(200, newBalance);
     }
 
+    @Test
+    void testDebitBalance_InsufficientFunds() {
+        Transaction transaction = new Transaction("1234", 100, "The Big Bank");
+
+        when(jdbcTemplate.update(any(PreparedStatementCreator.class), any(KeyHolder.class))).thenReturn(0); // no row matched
+        when(jdbcTemplate.query(anyString(), (Object[]) any(Object[].class), (ResultSetExtractor<Object>) any())).thenReturn(Optional.of(60));
+
+        InsufficientFundsException exception = assertThrows(InsufficientFundsException.class, () -> paymentService.debitBalance(transaction));
+        assertEquals(60, exception.currentBalance);
+    }
 
+    // Stubs the conditional debit to succeed, handing back the balance left on the card
+    private void debitLeaves(int newBalance) {
+        when(jdbcTemplate.update(any(PreparedStatementCreator.class), any(KeyHolder.class))).thenAnswer(invocation -> {
+            KeyHolder keyHolder = invocation.getArgument(1);
+            keyHolder.getKeyList().add(Collections.singletonMap("AMOUNT", newBalance));
+            return 1;
+        });
+    }
 }
@@ -0,0 +1,131 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BankClientTest {
+
+    private static final long BANK_DELAY_MS = 200;
+
+    private StubBankServer bank;
+    private CloseableHttpAsyncClient httpClient;
+    private BankClient bankClient;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        bank = new StubBankServer(BANK_DELAY_MS);
+        httpClient = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(1000).setSocketTimeout(1000).build())
+                .setMaxConnTotal(100)
+                .setMaxConnPerRoute(100)
+                .build();
+        httpClient.start();
+        bankClient = new BankClient(httpClient, new ObjectMapper(), bank.getUrl(), bank.getUrl(), bank.getUrl());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        httpClient.close();
+        bank.close();
+    }
+
+    @Test
+    void testValidateBigBank_Approved() throws Exception {
+        bankClient.validateBigBank(new Transaction("001", 250, "The Big Bank"), "uuid-1").get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, bank.getRequestCount());
+    }
+
+    @Test
+    void testValidateBigBank_Rejected() {
+        bank.setApproving(false);
+
+        CompletableFuture<Void> future = bankClient.validateBigBank(new Transaction("001", 250, "The Big Bank"), "uuid-1");
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof BankValidationException);
+        assertEquals("Transaction not approved by Big Bank.", exception.getCause().getMessage());
+    }
+
+    @Test
+    void testValidateCashiers_Rejected() {
+        bank.setApproving(false);
+
+        CompletableFuture<Void> future = bankClient.validateCashiers(new Transaction("002", 150, "The Cashiers"), "uuid-2");
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof BankValidationException);
+    }
+
+    @Test
+    void testValidateLoaners_ApprovedAndRejected() throws Exception {
+        Transaction transaction = new Transaction("003", 150, "Loaners");
+        bankClient.validateLoaners(transaction, "uuid-3").get(5, TimeUnit.SECONDS);
+
+        bank.setApproving(false);
+        ExecutionException exception = assertThrows(ExecutionException.class,
+                () -> bankClient.validateLoaners(transaction, "uuid-4").get(5, TimeUnit.SECONDS));
+        assertEquals("Transaction not approved by Loaners.", exception.getCause().getMessage());
+    }
+
+    @Test
+    void testSlowBankSurfacesAsIOException() {
+        bank.setDelayMillis(3000);
+
+        CompletableFuture<Void> future = bankClient.validateLoaners(new Transaction("003", 150, "Loaners"), "uuid-5");
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof IOException);
+        assertEquals("Loaners service is currently unavailable. Please try again later.", exception.getCause().getMessage());
+    }
+
+    @Test
+    void testCallIsAbortedWhenItsBudgetRunsOut() {
+        bank.setDelayMillis(3000);
+        long start = System.nanoTime();
+
+        CompletableFuture<Void> future = bankClient.validateBigBank(new Transaction("001", 250, "The Big Bank"), "uuid-6", 300);
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        long failedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(exception.getCause() instanceof IOException);
+        assertTrue(exception.getCause().getCause() instanceof TimeoutException);
+        // Well before both the bank's answer and the client's one second read timeout
+        assertTrue(failedMs < 900, "failing took " + failedMs + " ms");
+    }
+
+    @Test
+    void testConcurrentChecksDoNotHoldTheCaller() throws Exception {
+        int requests = 50;
+        long start = System.nanoTime();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(bankClient.validateLoaners(new Transaction("003", 150, "Loaners"), "uuid-" + i));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        long completedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // A blocking client would need one thread per in-flight call, or requests * delay on a single thread
+        assertTrue(completedMs < requests * BANK_DELAY_MS / 4, "completing took " + completedMs + " ms");
+        assertEquals(requests, bank.getRequestCount());
+    }
+}
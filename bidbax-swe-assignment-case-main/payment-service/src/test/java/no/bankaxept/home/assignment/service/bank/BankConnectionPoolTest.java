@@ -0,0 +1,93 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.bankaxept.home.assignment.model.Transaction;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.pool.PoolStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BankConnectionPoolTest {
+
+    private static final long IDLE_TIMEOUT_MS = 1000;
+
+    private StubBankServer bank;
+    private BankConnectionPool pool;
+    private CloseableHttpAsyncClient httpClient;
+    private BankClient bankClient;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        bank = new StubBankServer(300);
+        pool = new BankConnectionPool(20, 10, 60000, IDLE_TIMEOUT_MS, 50);
+        pool.registerRoute("Loaners", bank.getUrl(), 2);
+        httpClient = HttpAsyncClients.custom().setConnectionManager(pool.getConnectionManager()).build();
+        httpClient.start();
+        bankClient = new BankClient(httpClient, new ObjectMapper(), bank.getUrl(), bank.getUrl(), bank.getUrl());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        httpClient.close();
+        pool.close();
+        bank.close();
+    }
+
+    @Test
+    void testRouteMaximumQueuesExcessRequests() throws Exception {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(bankClient.validateLoaners(new Transaction("003", 150, "Loaners"), "uuid-" + i));
+        }
+
+        awaitTrue(() -> pool.getStats("Loaners").getLeased() == 2);
+        PoolStats inFlight = pool.getStats("Loaners");
+        assertEquals(2, inFlight.getMax());
+        assertEquals(3, inFlight.getPending());
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        awaitTrue(() -> pool.getStats("Loaners").getLeased() == 0);
+        assertEquals(2, pool.getStats("Loaners").getAvailable(), "connections should be kept alive for reuse");
+    }
+
+    @Test
+    void testIdleConnectionsAreEvicted() throws Exception {
+        bank.setDelayMillis(0);
+        bankClient.validateLoaners(new Transaction("003", 150, "Loaners"), "uuid-1").get(5, TimeUnit.SECONDS);
+        awaitTrue(() -> pool.getStats("Loaners").getAvailable() == 1);
+
+        awaitTrue(() -> pool.getStats("Loaners").getAvailable() == 0);
+    }
+
+    @Test
+    void testStatisticsAreExposedAsGauges() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        pool.bindTo(registry);
+
+        bankClient.validateLoaners(new Transaction("003", 150, "Loaners"), "uuid-1").get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, registry.get("bank.http.pool.max").tag("bank", "Loaners").gauge().value());
+        assertEquals(0, registry.get("bank.http.pool.pending").tag("bank", "Loaners").gauge().value());
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met within 5 seconds");
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BankResilienceTest {
+
+    private static final String BANK = "Loaners";
+
+    private BankResilience resilience;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        resilience = new BankResilience(50, 5000, 4, 4, 200, 1);
+        resilience.register(BANK, 2);
+        resilience.register("The Big Bank", 2);
+        registry = new SimpleMeterRegistry();
+        resilience.bindTo(registry);
+    }
+
+    @Test
+    void testBulkheadRejectsCallsAboveTheLimit() {
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> second = new CompletableFuture<>();
+        resilience.execute(BANK, () -> first);
+        resilience.execute(BANK, () -> second);
+
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Void> rejected = resilience.execute(BANK, () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+
+        assertUnavailable(rejected);
+        assertEquals(0, calls.get());
+        assertEquals(1, registry.get("bank.bulkhead.rejections").tag("bank", BANK).counter().count());
+
+        // Other banks keep their own capacity
+        assertDoesNotThrow(() -> resilience.execute("The Big Bank", () -> CompletableFuture.completedFuture(null)).get());
+
+        first.complete(null);
+        assertDoesNotThrow(() -> resilience.execute(BANK, () -> CompletableFuture.<Void>completedFuture(null)).get());
+    }
+
+    @Test
+    void testCircuitOpensOnFailuresAndRecoversAfterProbe() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Loaners service is currently unavailable."));
+            resilience.execute(BANK, () -> failed);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, resilience.getState(BANK));
+
+        AtomicInteger calls = new AtomicInteger();
+        assertUnavailable(resilience.execute(BANK, () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }));
+        assertEquals(0, calls.get());
+        assertEquals(1, registry.get("bank.circuitbreaker.rejections").tag("bank", BANK).counter().count());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (resilience.getState(BANK) != CircuitBreaker.State.HALF_OPEN) {
+            assertTrue(System.currentTimeMillis() < deadline, "circuit did not move to half-open");
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+
+        resilience.execute(BANK, () -> CompletableFuture.<Void>completedFuture(null)).get();
+
+        assertEquals(CircuitBreaker.State.CLOSED, resilience.getState(BANK));
+        assertEquals(1, registry.get("bank.circuitbreaker.transitions").tags("bank", BANK, "from", "CLOSED", "to", "OPEN").counter().count());
+        assertEquals(1, registry.get("bank.circuitbreaker.transitions").tags("bank", BANK, "from", "HALF_OPEN", "to", "CLOSED").counter().count());
+    }
+
+    @Test
+    void testBankRejectionsDoNotOpenTheCircuit() {
+        for (int i = 0; i < 10; i++) {
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new BankValidationException(BANK, "Transaction not approved by Loaners."));
+
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> resilience.execute(BANK, () -> rejected).get());
+            assertTrue(exception.getCause() instanceof BankValidationException);
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, resilience.getState(BANK));
+    }
+
+    private static void assertUnavailable(CompletableFuture<Void> future) {
+        assertTrue(future.isDone(), "rejection should be immediate");
+        ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+        assertTrue(exception.getCause() instanceof IOException);
+        assertEquals(BANK + " is temporarily unavailable. Please try again later.", exception.getCause().getMessage());
+    }
+}
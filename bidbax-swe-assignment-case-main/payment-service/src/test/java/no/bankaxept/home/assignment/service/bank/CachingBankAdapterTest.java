@@ -0,0 +1,115 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingBankAdapterTest {
+
+    private final List<CompletableFuture<Void>> calls = new ArrayList<>();
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void testConcurrentChecksShareOneCallAndLaterOnesAreAnsweredFromTheCache() throws Exception {
+        CachingBankAdapter cache = cache(60000, 100);
+
+        CompletableFuture<Void> first = cache.validate(payment("1111", 250), "uuid-1", 1000);
+        CompletableFuture<Void> second = cache.validate(payment("2222", 250), "uuid-2", 1000);
+        assertEquals(1, calls.size());
+        assertFalse(second.isDone());
+
+        calls.get(0).complete(null);
+        assertNull(first.get());
+        assertNull(second.get());
+        assertNull(cache.validate(payment("3333", 250), "uuid-3", 1000).get());
+        // Another amount is another question
+        cache.validate(payment("1111", 300), "uuid-4", 1000);
+
+        assertEquals(2, calls.size());
+        assertEquals(2.0, requests("miss"));
+        assertEquals(1.0, requests("coalesced"));
+        assertEquals(1.0, requests("hit"));
+    }
+
+    @Test
+    void testRejectionIsCachedButAnUnreachableBankIsNot() {
+        CachingBankAdapter cache = cache(60000, 100);
+
+        cache.validate(payment("1111", 250), "uuid-1", 1000);
+        calls.get(0).completeExceptionally(new CompletionException(new BankValidationException("The Big Bank", "Not approved.")));
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> cache.validate(payment("2222", 250), "uuid-2", 1000).get());
+        assertTrue(rejected.getCause() instanceof BankValidationException);
+        assertEquals(1, calls.size());
+
+        cache.validate(payment("1111", 300), "uuid-3", 1000);
+        calls.get(1).completeExceptionally(new IOException("Connection refused"));
+        cache.validate(payment("2222", 300), "uuid-4", 1000);
+        assertEquals(3, calls.size());
+    }
+
+    @Test
+    void testAnswersExpireAndCancellingOneCheckLeavesTheSharedCall() throws Exception {
+        CachingBankAdapter cache = cache(1, 100);
+
+        CompletableFuture<Void> cancelled = cache.validate(payment("1111", 250), "uuid-1", 1000);
+        CompletableFuture<Void> waiting = cache.validate(payment("2222", 250), "uuid-2", 1000);
+        cancelled.cancel(true);
+        assertFalse(calls.get(0).isCancelled());
+        calls.get(0).complete(null);
+        assertNull(waiting.get());
+
+        Thread.sleep(5);
+        cache.validate(payment("3333", 250), "uuid-3", 1000);
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    void testFullCacheEvictsASettledAnswer() {
+        CachingBankAdapter cache = cache(60000, 2);
+
+        cache.validate(payment("1111", 250), "uuid-1", 1000);
+        cache.validate(payment("1111", 300), "uuid-2", 1000);
+        calls.get(0).complete(null);
+        cache.validate(payment("1111", 350), "uuid-3", 1000);
+
+        assertEquals(2, cache.size());
+        // The settled answer for 250 made room; the call for 300 is still in flight and kept
+        cache.validate(payment("2222", 300), "uuid-4", 1000);
+        assertEquals(3, calls.size());
+    }
+
+    private CachingBankAdapter cache(long ttlMs, int maxEntries) {
+        BankAdapter bank = new ConfiguredBankAdapter("The Big Bank", 200, 0, 0, (transaction, transactionUuid, timeoutMillis) -> {
+            CompletableFuture<Void> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        });
+        CachingBankAdapter cache = new CachingBankAdapter(bank, BankProtocol.BIG_BANK.cacheKey(), ttlMs, maxEntries);
+        cache.bindTo(registry);
+        return cache;
+    }
+
+    private double requests(String outcome) {
+        return registry.get("bank.cache.requests").tags("bank", "The Big Bank", "outcome", outcome).functionCounter().count();
+    }
+
+    private static Transaction payment(String cardNumber, int amount) {
+        return new Transaction(cardNumber, amount, "The Big Bank");
+    }
+}
@@ -0,0 +1,91 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConfiguredBankAdapterTest {
+
+    private final Transaction transaction = new Transaction("1234", 250, "Test Bank");
+    private final List<Long> budgets = new ArrayList<>();
+
+    @Test
+    void testCheckThatCouldNotReachTheBankIsRetried() throws Exception {
+        ConfiguredBankAdapter adapter = new ConfiguredBankAdapter("Test Bank", 100, 0, 2, failingTimes(2, new IOException("Connection refused")));
+
+        assertNull(adapter.validate(transaction, "uuid", 0).get());
+        assertEquals(3, budgets.size());
+    }
+
+    @Test
+    void testRejectionIsNotRetried() {
+        ConfiguredBankAdapter adapter = new ConfiguredBankAdapter("Test Bank", 100, 0, 2,
+                failingTimes(1, new CompletionException(new BankValidationException("Test Bank", "Not approved."))));
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> adapter.validate(transaction, "uuid", 0).get());
+        assertTrue(exception.getCause() instanceof BankValidationException);
+        assertEquals(1, budgets.size());
+    }
+
+    @Test
+    void testRetriesGiveUpWithTheLastFailure() {
+        ConfiguredBankAdapter adapter = new ConfiguredBankAdapter("Test Bank", 100, 0, 1, failingTimes(5, new IOException("Connection refused")));
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> adapter.validate(transaction, "uuid", 0).get());
+        assertTrue(exception.getCause() instanceof IOException);
+        assertEquals(2, budgets.size());
+    }
+
+    @Test
+    void testCheckGetsTheShorterOfTheAdapterTimeoutAndThePaymentBudget() {
+        ConfiguredBankAdapter adapter = new ConfiguredBankAdapter("Test Bank", 100, 500, 0, failingTimes(0, null));
+
+        adapter.validate(transaction, "uuid", 2000);
+        adapter.validate(transaction, "uuid", 200);
+        adapter.validate(transaction, "uuid", 0);
+
+        assertEquals(Arrays.asList(500L, 200L, 500L), budgets);
+    }
+
+    @Test
+    void testRegistryUsesEachBanksThreshold() {
+        BankRegistry registry = new BankRegistry(Arrays.asList(
+                new ConfiguredBankAdapter("Strict Bank", 50, 0, 0, failingTimes(0, null)),
+                new ConfiguredBankAdapter("Lenient Bank", 500, 0, 0, failingTimes(0, null))));
+
+        assertTrue(registry.isBigTransaction(new Transaction("1234", 100, "Strict Bank")));
+        assertFalse(registry.isBigTransaction(new Transaction("1234", 100, "Lenient Bank")));
+        // A bank nobody registered falls back to the default threshold
+        assertFalse(registry.isBigTransaction(new Transaction("1234", 100, "Unknown Bank")));
+        assertTrue(registry.isBigTransaction(new Transaction("1234", 101, "Unknown Bank")));
+        assertNull(registry.get("Unknown Bank"));
+
+        assertThrows(IllegalArgumentException.class, () -> new BankRegistry(Arrays.asList(
+                new ConfiguredBankAdapter("Strict Bank", 50, 0, 0, failingTimes(0, null)),
+                new ConfiguredBankAdapter("Strict Bank", 60, 0, 0, failingTimes(0, null)))));
+    }
+
+    // A check that fails the first few calls, then approves; records the budget of every call
+    private ConfiguredBankAdapter.Check failingTimes(int failures, Throwable failure) {
+        return (transaction, transactionUuid, timeoutMillis) -> {
+            budgets.add(timeoutMillis);
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            if (budgets.size() <= failures) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(null);
+            }
+            return result;
+        };
+    }
+}
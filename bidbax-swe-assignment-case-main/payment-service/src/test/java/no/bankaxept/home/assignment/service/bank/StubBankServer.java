@@ -0,0 +1,105 @@
+package no.bankaxept.home.assignment.service.bank;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the three bank APIs, listening on an ephemeral localhost port.
+ * Every response is held back by a configurable delay, plus a random jitter, to simulate a slow bank,
+ * and a configurable share of requests fails with {@code 503 Service Unavailable}.
+ */
+public class StubBankServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private volatile long delayMillis;
+    private volatile long jitterMillis;
+    private volatile double errorRate;
+    private volatile boolean approving = true;
+
+    public StubBankServer(long delayMillis) throws IOException {
+        this.delayMillis = delayMillis;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/check/", exchange ->
+                respond(exchange, 200, "application/json", "{\"successful\": " + approving + "}"));
+        server.createContext("/payment/check", exchange -> respond(exchange, 200, "application/json", approving
+                ? "{\"responseCode\":1,\"status\":\"Approved\"}"
+                : "{\"responseCode\":2,\"status\":\"Rejected\",\"errorReason\":\"Declined by stub\"}"));
+        server.createContext("/payment/", exchange -> {
+            String card = exchange.getRequestURI().getPath().substring("/payment/".length());
+            respond(exchange, approving ? 200 : 402, "application/xml",
+                    "<Response><card>" + card + "</card><amount>" + exchange.getRequestURI().getQuery() + "</amount></Response>");
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Adds a uniformly distributed extra delay of up to {@code jitterMillis} to every response.
+     */
+    public void setJitterMillis(long jitterMillis) {
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Share of requests, between 0 and 1, answered with {@code 503 Service Unavailable}.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setApproving(boolean approving) {
+        this.approving = approving;
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    private void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        requestCount.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            TimeUnit.MILLISECONDS.sleep(delayMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            status = 503;
+            contentType = "text/plain";
+            body = "Service Unavailable";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,35 @@
+package no.bankaxept.home.assignment.service.clock;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachedClockTest {
+
+    @Test
+    void testFollowsTheSystemClock() throws Exception {
+        try (CachedClock clock = new CachedClock(1)) {
+            long before = clock.millis();
+            TimeUnit.MILLISECONDS.sleep(50);
+
+            long after = clock.millis();
+            assertTrue(after - before >= 40, "clock moved " + (after - before) + " ms");
+            assertTrue(Math.abs(System.currentTimeMillis() - after) < 100);
+            assertEquals(after, clock.instant().toEpochMilli(), 5);
+        }
+    }
+
+    @Test
+    void testOtherZoneSharesTheTime() {
+        try (CachedClock clock = new CachedClock(1)) {
+            Clock oslo = clock.withZone(ZoneId.of("Europe/Oslo"));
+
+            assertEquals(ZoneId.of("Europe/Oslo"), oslo.getZone());
+            assertEquals(clock.millis(), oslo.millis(), 5);
+        }
+    }
+}
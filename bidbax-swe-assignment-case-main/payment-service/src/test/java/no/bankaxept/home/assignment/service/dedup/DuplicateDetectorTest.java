@@ -0,0 +1,93 @@
+package no.bankaxept.home.assignment.service.dedup;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DuplicateDetectorTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        registry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void testIdsInTheTableAreFoundAfterLoad() {
+        jdbcTemplate.update("INSERT INTO transaction (bank, uuid, card, amount, type) VALUES ('Loaners', 'existing', '001', 10, 'small')");
+        DuplicateDetector detector = new DuplicateDetector(jdbcTemplate, 1000, 0.01, 100);
+        detector.bindTo(registry);
+        detector.load();
+
+        assertTrue(detector.isProcessed("existing"));
+        assertTrue(detector.isProcessed("existing"));
+        assertFalse(detector.isProcessed("unseen"));
+
+        assertEquals(1, lookups("duplicate"));
+        assertEquals(1, lookups("recent"), "a confirmed duplicate should be answered from the LRU next time");
+        assertEquals(1, lookups("new") + lookups("false_positive"));
+    }
+
+    @Test
+    void testRecordedIdsAreDuplicatesWithoutAQuery() {
+        DuplicateDetector detector = new DuplicateDetector(jdbcTemplate, 1000, 0.01, 100);
+        detector.bindTo(registry);
+
+        detector.recordProcessed("uuid-1");
+
+        assertTrue(detector.isProcessed("uuid-1"));
+        assertEquals(1, lookups("recent"));
+    }
+
+    @Test
+    void testFalsePositiveRateAndMemoryAreReported() {
+        DuplicateDetector detector = new DuplicateDetector(jdbcTemplate, 1000, 0.01, 10);
+        detector.bindTo(registry);
+        // Five times the initial capacity, so the filter has to grow
+        for (int i = 0; i < 5000; i++) {
+            detector.recordProcessed("seen-" + i);
+        }
+        for (int i = 0; i < 20000; i++) {
+            assertFalse(detector.isProcessed("unseen-" + i));
+        }
+
+        double observed = detector.getObservedFalsePositiveRate();
+        assertTrue(observed < 0.02, "observed false-positive rate " + observed + " is far above the 1% target");
+        assertEquals(observed, registry.get("payment.dedup.filter.observed.fpp").gauge().value(), 1e-9);
+        assertTrue(registry.get("payment.dedup.filter.expected.fpp").gauge().value() < 0.01);
+        assertTrue(detector.getMemoryBytes() > 0);
+        assertEquals((double) detector.getMemoryBytes(), registry.get("payment.dedup.filter.memory").gauge().value());
+        assertEquals(20000, lookups("new") + lookups("false_positive"));
+    }
+
+    @Test
+    void testFilterHasNoFalseNegativesAcrossStages() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("id-" + i);
+        }
+
+        assertTrue(filter.getStageCount() > 1);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("id-" + i));
+        }
+    }
+
+    private double lookups(String result) {
+        return registry.get("payment.dedup.lookups").tag("result", result).functionCounter().count();
+    }
+}
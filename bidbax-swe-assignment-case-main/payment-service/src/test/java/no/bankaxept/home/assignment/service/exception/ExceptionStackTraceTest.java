@@ -0,0 +1,23 @@
+package no.bankaxept.home.assignment.service.exception;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExceptionStackTraceTest {
+
+    @Test
+    void testRoutineOutcomesCarryNoStackTrace() {
+        assertEquals(0, new InsufficientFundsException(100, 250, "Loaners").getStackTrace().length);
+        assertEquals(0, new BankValidationException("Loaners", "Bank validation failed").getStackTrace().length);
+        assertEquals(0, new PaymentRejectedException("big", true, "Too many payments in progress").getStackTrace().length);
+    }
+
+    @Test
+    void testMessagesSurviveWithoutTheStackTrace() {
+        BankValidationException rejected = new BankValidationException("Loaners", "Bank validation failed");
+
+        assertEquals("Bank validation failed", rejected.getMessage());
+        assertEquals("Loaners", rejected.getBankName());
+    }
+}
@@ -0,0 +1,87 @@
+package no.bankaxept.home.assignment.service.executor;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.bankaxept.home.assignment.service.exception.PaymentRejectedException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaymentExecutorTest {
+
+    private PaymentExecutor executor;
+
+    @AfterEach
+    void tearDown() {
+        executor.close();
+    }
+
+    @Test
+    void testFullExecutorRejectsAndRecovers() throws Exception {
+        executor = new PaymentExecutor("test", 1, 1, false);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        executor.bindTo(registry);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            started.countDown();
+            await(release);
+        });
+        executor.execute(() -> await(release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        PaymentRejectedException rejection = assertThrows(PaymentRejectedException.class, () -> executor.execute(() -> { }));
+        assertTrue(rejection.isOverloaded());
+        assertThrows(PaymentRejectedException.class, executor::checkCapacity);
+        assertEquals(1.0, registry.get("payment.executor.active").tag("executor", "test").gauge().value());
+        assertEquals(1.0, registry.get("payment.executor.queued").tag("executor", "test").gauge().value());
+        assertEquals(2.0, registry.get("payment.executor.rejected").tag("executor", "test").functionCounter().count());
+
+        release.countDown();
+        CountDownLatch ran = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.getCount() > 0) {
+            try {
+                executor.execute(ran::countDown);
+                assertTrue(ran.await(5, TimeUnit.SECONDS));
+            } catch (PaymentRejectedException e) {
+                assertTrue(System.currentTimeMillis() < deadline, "executor did not free up");
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        }
+        assertEquals(3, registry.get("payment.executor.execution").tag("executor", "test").timer().count());
+    }
+
+    @Test
+    void testShutDownExecutorIsUnavailable() {
+        executor = new PaymentExecutor("test", 1, 1, false);
+        executor.close();
+
+        PaymentRejectedException rejection = assertThrows(PaymentRejectedException.class, () -> executor.execute(() -> { }));
+        assertFalse(rejection.isOverloaded());
+    }
+
+    @Test
+    void testVirtualThreadsAreLimitedToo() throws Exception {
+        // Falls back to a thread pool on JVMs without virtual threads
+        executor = new PaymentExecutor("test", 1, 1, true);
+        CountDownLatch release = new CountDownLatch(1);
+
+        executor.execute(() -> await(release));
+        executor.execute(() -> await(release));
+        assertThrows(PaymentRejectedException.class, () -> executor.execute(() -> { }));
+        release.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package no.bankaxept.home.assignment.service.history;
+
+import no.bankaxept.home.assignment.service.exception.TooManyExportsException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionHistoryTest {
+
+    private static final Instant START = Instant.parse("2024-05-01T12:00:00Z");
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionHistory history;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        history = new TransactionHistory(jdbcTemplate, 100, 10, 1);
+        // Ten payments of card 001 a minute apart, the last three in the same millisecond, and one of another card
+        for (int i = 0; i < 10; i++) {
+            insert("uuid-" + i, "001", i < 7 ? START.plusSeconds(60 * i) : START.plusSeconds(60 * 7), i % 2 == 0 ? "small" : "big");
+        }
+        insert("other", "002", START, "small");
+    }
+
+    @Test
+    void testPagesFollowEachOtherWithoutGapsOrRepeats() {
+        HistoryQuery query = new HistoryQuery("001", null, null, null);
+        List<String> read = new ArrayList<>();
+        HistoryCursor cursor = null;
+        int pages = 0;
+        do {
+            HistoryPage page = history.page(query, cursor == null ? null : HistoryCursor.decode(cursor.encode()), 3);
+            page.getTransactions().forEach(transaction -> read.add(transaction.getUuid()));
+            cursor = page.getNext();
+            pages++;
+            // Written while the pages are read; newer than the first page, so it is not part of this read
+            insert("late-" + pages, "001", START.plusSeconds(3600), "small");
+        } while (cursor != null);
+
+        assertEquals(4, pages);
+        List<String> expected = new ArrayList<>();
+        for (int i = 9; i >= 0; i--) {
+            expected.add("uuid-" + i);
+        }
+        assertEquals(expected, read, "newest first, ties broken by the later id");
+    }
+
+    @Test
+    void testFiltersNarrowTheHistory() {
+        HistoryPage page = history.page(new HistoryQuery("001", START.plusSeconds(60), START.plusSeconds(60 * 5), "big"), null, 100);
+
+        List<String> uuids = new ArrayList<>();
+        page.getTransactions().forEach(transaction -> uuids.add(transaction.getUuid()));
+        assertEquals(Arrays.asList("uuid-3", "uuid-1"), uuids);
+        assertNull(page.getNext());
+        TransactionRecord newest = page.getTransactions().get(0);
+        assertEquals("001", newest.getCardNumber());
+        assertEquals(START.plusSeconds(180), newest.getDate());
+        assertEquals(10, newest.getAmount());
+        assertEquals("Loaners", newest.getBank());
+    }
+
+    @Test
+    void testExportReadsEveryMatchingTransactionInOrder() throws Exception {
+        List<String> exported = new ArrayList<>();
+        long rows = history.export(new HistoryQuery("001", null, null, "small"), transaction -> exported.add(transaction.getUuid()));
+
+        assertEquals(5, rows);
+        assertEquals(Arrays.asList("uuid-8", "uuid-6", "uuid-4", "uuid-2", "uuid-0"), exported);
+
+        IOException gone = new IOException("Client went away");
+        assertSame(gone, assertThrows(IOException.class, () -> history.export(new HistoryQuery("001", null, null, null), transaction -> {
+            throw gone;
+        })));
+    }
+
+    @Test
+    void testExportsBeyondTheLimitAreRefused() throws Exception {
+        HistoryQuery query = new HistoryQuery("001", null, null, null);
+        List<String> read = new ArrayList<>();
+
+        // The limit is one export, and the first still holds its connection while its sink runs
+        history.export(query, transaction -> {
+            if (read.isEmpty()) {
+                assertThrows(TooManyExportsException.class, () -> history.export(query, other -> fail("refused export read " + other.getUuid())));
+            }
+            read.add(transaction.getUuid());
+        });
+        assertEquals(10, read.size());
+
+        // Finished exports give their place back, failed ones too
+        assertThrows(IOException.class, () -> history.export(query, transaction -> {
+            throw new IOException("Client went away");
+        }));
+        assertEquals(10, history.export(query, transaction -> { }));
+    }
+
+    @Test
+    void testMalformedCursorsAndPageSizesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> HistoryCursor.decode("not a cursor"));
+        assertThrows(IllegalArgumentException.class, () -> HistoryCursor.decode("bm90LWEtY3Vyc29y"));
+        assertThrows(IllegalArgumentException.class, () -> history.page(new HistoryQuery("001", null, null, null), null, 101));
+    }
+
+    private void insert(String uuid, String card, Instant date, String type) {
+        jdbcTemplate.update("INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES ('Loaners', ?, ?, 10, ?, ?)",
+                uuid, card, Timestamp.from(date), type);
+    }
+}
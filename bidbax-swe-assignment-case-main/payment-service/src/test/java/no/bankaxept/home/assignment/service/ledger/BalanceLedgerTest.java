@@ -0,0 +1,280 @@
+package no.bankaxept.home.assignment.service.ledger;
+
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BalanceLedgerTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private Path journalDirectory;
+    private final List<BalanceLedger> ledgers = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("INSERT INTO balance (cardNumber, amount) VALUES ('001', 1000), ('002', 1000), ('1', 50)");
+        journalDirectory = Files.createTempDirectory("ledger");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (BalanceLedger ledger : ledgers) {
+            ledger.close();
+        }
+        try (Stream<Path> paths = Files.walk(journalDirectory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void testDebitsAreServedFromMemoryAndWrittenBehind() throws Exception {
+        BalanceLedger ledger = openLedger();
+
+        assertEquals(900, ledger.debit(new Transaction("001", 100, "Loaners"), "uuid-1", "small"));
+        assertEquals(850, ledger.debit(new Transaction("001", 50, "Loaners"), "uuid-2", "small"));
+        assertEquals(40, ledger.debit(new Transaction("1", 10, "Loaners"), "uuid-3", "small"));
+
+        assertEquals(850, ledger.balance("001").getAsInt());
+        assertEquals(1000, balanceInTable("001"), "the table is only written by the flusher");
+        assertTrue(ledger.isPending("uuid-1"));
+
+        ledger.flush();
+
+        assertEquals(850, balanceInTable("001"));
+        assertEquals(40, balanceInTable("1"));
+        assertEquals(3, transactionRows());
+        assertFalse(ledger.isPending("uuid-1"));
+        assertEquals(0, ledger.getPendingCount());
+    }
+
+    @Test
+    void testRejectedDebitsLeaveTheBalanceUntouched() throws Exception {
+        BalanceLedger ledger = openLedger();
+        ledger.debit(new Transaction("002", 600, "Loaners"), "uuid-1", "big");
+
+        InsufficientFundsException insufficient = assertThrows(InsufficientFundsException.class,
+                () -> ledger.debit(new Transaction("002", 600, "Loaners"), "uuid-2", "big"));
+        assertEquals(400, insufficient.currentBalance);
+
+        IOException duplicate = assertThrows(DuplicateTransactionException.class,
+                () -> ledger.debit(new Transaction("002", 1, "Loaners"), "uuid-1", "small"));
+        assertEquals("Duplicate transaction detected.", duplicate.getMessage());
+
+        assertFalse(ledger.isPending("uuid-2"), "a declined debit must not hold on to its id");
+        assertFalse(ledger.balance("404").isPresent());
+        assertEquals(400, ledger.balance("002").getAsInt());
+        assertFalse(ledger.supports("1234-5678"));
+        assertFalse(ledger.supports("1234567890123456789"));
+    }
+
+    @Test
+    void testDebitThatCannotBeForcedHasAnUnknownOutcomeAndIsNotRetryable() throws Exception {
+        BalanceJournal failingJournal = new BalanceJournal(journalDirectory, 1024 * 1024) {
+            @Override
+            public void awaitDurable(long sequence) throws IOException {
+                throw new IOException("Disk failed");
+            }
+        };
+        BalanceLedger ledger = new BalanceLedger(jdbcTemplate, new DataSourceTransactionManager(dataSource), failingJournal, 4, 100, NEVER);
+        ledgers.add(ledger);
+        ledger.recover();
+
+        IOException unknown = assertThrows(IOException.class, () -> ledger.debit(new Transaction("001", 100, "Loaners"), "uuid-1", "small"));
+        assertTrue(unknown.getMessage().startsWith("Payment outcome unknown"));
+
+        // The debit stands, and a retry under the same id cannot pay it a second time
+        assertEquals(900, ledger.balance("001").getAsInt());
+        assertTrue(ledger.isPending("uuid-1"));
+        IOException duplicate = assertThrows(DuplicateTransactionException.class, () -> ledger.debit(new Transaction("001", 100, "Loaners"), "uuid-1", "small"));
+        assertEquals("Duplicate transaction detected.", duplicate.getMessage());
+
+        ledger.flush();
+        assertEquals(900, balanceInTable("001"));
+        assertEquals(1, transactionRows());
+    }
+
+    @Test
+    void testDebitsWrittenOneByOneAreNotWrittenAgainAfterAFailure() throws Exception {
+        AtomicBoolean connectionLost = new AtomicBoolean(true);
+        JdbcTemplate failingTemplate = new JdbcTemplate(dataSource) {
+            @Override
+            public int[] batchUpdate(String sql, List<Object[]> batchArgs) throws DataAccessException {
+                if (connectionLost.get() && batchArgs.size() == 1 && "uuid-3".equals(batchArgs.get(0)[1])) {
+                    throw new DataAccessResourceFailureException("Connection lost");
+                }
+                return super.batchUpdate(sql, batchArgs);
+            }
+        };
+        BalanceLedger ledger = new BalanceLedger(failingTemplate, new DataSourceTransactionManager(dataSource),
+                new BalanceJournal(journalDirectory, 1024 * 1024), 4, 100, NEVER);
+        ledgers.add(ledger);
+        ledger.recover();
+        ledger.debit(new Transaction("001", 100, "Loaners"), "uuid-1", "small");
+        ledger.debit(new Transaction("001", 100, "Loaners"), "uuid-2", "small");
+        ledger.debit(new Transaction("001", 100, "Loaners"), "uuid-3", "small");
+        // uuid-1 was written before, by a try whose outcome was lost, so the batch falls back to single writes
+        jdbcTemplate.update("INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES ('Loaners', 'uuid-1', '001', 100, CURRENT_TIMESTAMP, 'small')");
+        jdbcTemplate.update("UPDATE balance SET amount = amount - 100 WHERE cardNumber = '001'");
+
+        assertThrows(DataAccessResourceFailureException.class, ledger::flush);
+        assertEquals(800, balanceInTable("001"));
+        assertFalse(ledger.isPending("uuid-2"));
+        assertTrue(ledger.isPending("uuid-3"));
+
+        connectionLost.set(false);
+        ledger.flush();
+
+        // Neither the recorded debit nor the one written before the failure is credited back
+        assertEquals(700, ledger.balance("001").getAsInt());
+        assertEquals(700, balanceInTable("001"));
+        assertEquals(3, transactionRows());
+        assertEquals(0, ledger.getPendingCount());
+    }
+
+    @Test
+    void testRecoveryReplaysOnlyDebitsMissingFromTheTable() throws Exception {
+        BalanceLedger crashed = new BalanceLedger(jdbcTemplate, new DataSourceTransactionManager(dataSource),
+                new BalanceJournal(journalDirectory, 1024 * 1024), 4, 100, NEVER);
+        crashed.recover();
+        crashed.debit(new Transaction("001", 100, "Loaners"), "uuid-1", "small");
+        crashed.flush();
+        crashed.debit(new Transaction("001", 200, "Loaners"), "uuid-2", "big");
+        crashed.debit(new Transaction("002", 300, "Loaners"), "uuid-3", "big");
+        // The process dies here: two debits are in the journal but not in the database
+
+        BalanceLedger recovered = openLedger();
+
+        assertEquals(700, recovered.balance("001").getAsInt());
+        assertEquals(700, recovered.balance("002").getAsInt());
+        assertEquals(700, balanceInTable("001"));
+        assertEquals(700, balanceInTable("002"));
+        assertEquals(3, transactionRows());
+    }
+
+    @Test
+    void testTornJournalTailIsIgnoredOnRecovery() throws Exception {
+        BalanceLedger crashed = new BalanceLedger(jdbcTemplate, new DataSourceTransactionManager(dataSource),
+                new BalanceJournal(journalDirectory, 1024 * 1024), 4, 100, NEVER);
+        crashed.recover();
+        crashed.debit(new Transaction("001", 100, "Loaners"), "uuid-1", "small");
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(journalDirectory)) {
+            for (Path segment : segments) {
+                Files.write(segment, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+            }
+        }
+
+        BalanceLedger recovered = openLedger();
+
+        assertEquals(900, recovered.balance("001").getAsInt());
+        assertEquals(1, transactionRows());
+    }
+
+    @Test
+    void testSegmentsAreDeletedOnceWritten() throws Exception {
+        BalanceLedger ledger = new BalanceLedger(jdbcTemplate, new DataSourceTransactionManager(dataSource),
+                new BalanceJournal(journalDirectory, 256), 4, 100, NEVER);
+        ledgers.add(ledger);
+        ledger.recover();
+        for (int i = 0; i < 20; i++) {
+            ledger.debit(new Transaction("001", 1, "Loaners"), "uuid-" + i, "small");
+        }
+        assertTrue(segmentCount() > 1);
+
+        ledger.flush();
+
+        assertEquals(1, segmentCount(), "only the active segment should remain");
+    }
+
+    @Test
+    void testConcurrentDebitsAreExact() throws Exception {
+        BalanceLedger ledger = new BalanceLedger(jdbcTemplate, new DataSourceTransactionManager(dataSource),
+                new BalanceJournal(journalDirectory, 64 * 1024), 4, 50, 5);
+        ledgers.add(ledger);
+        ledger.recover();
+
+        AtomicInteger accepted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String card = t % 2 == 0 ? "001" : "002";
+            workers.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    try {
+                        ledger.debit(new Transaction(card, 3, "Loaners"), UUID.randomUUID().toString(), "small");
+                        accepted.incrementAndGet();
+                    } catch (InsufficientFundsException e) {
+                        // expected once the card runs dry
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        ledger.flush();
+
+        assertEquals(2 * (1000 / 3), accepted.get());
+        assertEquals(1000 % 3, balanceInTable("001"));
+        assertEquals(1000 % 3, balanceInTable("002"));
+        assertEquals(accepted.get(), transactionRows());
+    }
+
+    private BalanceLedger openLedger() throws IOException {
+        BalanceLedger ledger = new BalanceLedger(jdbcTemplate, new DataSourceTransactionManager(dataSource),
+                new BalanceJournal(journalDirectory, 1024 * 1024), 4, 100, NEVER);
+        ledgers.add(ledger);
+        ledger.recover();
+        return ledger;
+    }
+
+    private int balanceInTable(String cardNumber) {
+        return jdbcTemplate.queryForObject("SELECT amount FROM balance WHERE cardNumber = ?", new Object[]{cardNumber}, Integer.class);
+    }
+
+    private int transactionRows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transaction", Integer.class);
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> segments = Files.list(journalDirectory)) {
+            return segments.count();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package no.bankaxept.home.assignment.service.queue;
+
+import no.bankaxept.home.assignment.model.Transaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaymentQueueTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private Path directory;
+    private final List<PaymentQueue> queues = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("queue");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        queues.forEach(PaymentQueue::close);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void testPaymentsAreTakenInOrder() throws Exception {
+        PaymentQueue queue = open(100);
+        queue.enqueue(new Transaction("001", 100, "Cashiers"), "uuid-1");
+        queue.enqueue(new Transaction("002", 200, "Loaners"), "uuid-2");
+
+        QueuedPayment first = queue.take();
+        assertEquals("uuid-1", first.getTransactionUuid());
+        assertEquals("001", first.getTransaction().cardNumber);
+        assertEquals(100, first.getTransaction().amount);
+        assertEquals("Cashiers", first.getTransaction().bank);
+        assertFalse(first.isRecovered());
+        assertEquals("uuid-2", queue.take().getTransactionUuid());
+        assertEquals(2, queue.size());
+
+        queue.acknowledge(first);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void testUnacknowledgedPaymentsAreRecoveredAfterRestart() throws Exception {
+        PaymentQueue queue = open(100);
+        queue.enqueue(new Transaction("001", 100, "Cashiers"), "uuid-1");
+        queue.enqueue(new Transaction("002", 200, "Loaners"), "uuid-2");
+        queue.acknowledge(queue.take());
+        queue.close();
+        queues.remove(queue);
+
+        PaymentQueue reopened = open(100);
+        assertEquals(1, reopened.size());
+        QueuedPayment recovered = reopened.take();
+        assertEquals("uuid-2", recovered.getTransactionUuid());
+        assertEquals(200, recovered.getTransaction().amount);
+        assertTrue(recovered.isRecovered());
+    }
+
+    @Test
+    void testAcknowledgedSegmentsAreDeleted() throws Exception {
+        PaymentQueue queue = open(1000);
+        for (int i = 0; i < 200; i++) {
+            queue.enqueue(new Transaction("001", i, "Cashiers"), "uuid-" + i);
+        }
+        assertTrue(segments().size() > 1);
+
+        for (int i = 0; i < 200; i++) {
+            queue.acknowledge(queue.take());
+        }
+        // Only the active segment is left
+        assertEquals(1, segments().size());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void testFullQueueRefusesPayments() throws Exception {
+        PaymentQueue queue = open(1);
+        queue.enqueue(new Transaction("001", 100, "Cashiers"), "uuid-1");
+
+        IOException e = assertThrows(IOException.class, () -> queue.enqueue(new Transaction("001", 100, "Cashiers"), "uuid-2"));
+        assertEquals("Payment queue is full. Please try again later.", e.getMessage());
+
+        queue.acknowledge(queue.take());
+        queue.enqueue(new Transaction("001", 100, "Cashiers"), "uuid-2");
+    }
+
+    @Test
+    void testTornRecordIsIgnored() throws Exception {
+        PaymentQueue queue = open(100);
+        queue.enqueue(new Transaction("001", 100, "Cashiers"), "uuid-1");
+        queue.enqueue(new Transaction("002", 200, "Loaners"), "uuid-2");
+        queue.close();
+        queues.remove(queue);
+
+        // Flip the checksum of the second record, as if the crash happened while it was written
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int second = Integer.BYTES + 1 + readInt(channel, 0) + Integer.BYTES;
+            int checksum = second + Integer.BYTES + 1 + readInt(channel, second);
+            ByteBuffer flipped = ByteBuffer.allocate(Integer.BYTES).putInt(0, ~readInt(channel, checksum));
+            channel.write(flipped, checksum);
+        }
+
+        PaymentQueue reopened = open(100);
+        assertEquals(1, reopened.size());
+        assertEquals("uuid-1", reopened.take().getTransactionUuid());
+    }
+
+    private PaymentQueue open(int capacity) throws IOException {
+        PaymentQueue queue = new PaymentQueue(directory, SEGMENT_SIZE, capacity);
+        queues.add(queue);
+        return queue;
+    }
+
+    private static int readInt(FileChannel channel, int position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        channel.read(buffer, position);
+        return buffer.getInt(0);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "queue-*.seg")) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(Comparator.naturalOrder());
+        return segments;
+    }
+}
@@ -0,0 +1,72 @@
+package no.bankaxept.home.assignment.service.shard;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConsistentHashRingTest {
+
+    private static final int CARDS = 20000;
+
+    @Test
+    void testCardsAreSpreadEvenlyAndEveryNodeAgrees() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("http://a", "http://b", "http://c"), 128);
+        // Built from the nodes in another order, as another node would
+        ConsistentHashRing other = new ConsistentHashRing(Arrays.asList("http://c", "http://a", "http://b"), 128);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < CARDS; i++) {
+            String card = card(i);
+            assertEquals(ring.owner(card), other.owner(card));
+            counts.merge(ring.owner(card), 1, Integer::sum);
+        }
+
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(Math.abs(count - CARDS / 3) < CARDS / 3 * 0.2, "uneven share: " + counts);
+        }
+    }
+
+    @Test
+    void testOnlyTheCardsOfANodeThatLeavesMove() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("http://a", "http://b", "http://c"), 128);
+        String[] before = new String[CARDS];
+        for (int i = 0; i < CARDS; i++) {
+            before[i] = ring.owner(card(i));
+        }
+
+        assertTrue(ring.remove("http://b"));
+        assertFalse(ring.remove("http://b"));
+        for (int i = 0; i < CARDS; i++) {
+            String owner = ring.owner(card(i));
+            assertNotEquals("http://b", owner);
+            if (!before[i].equals("http://b")) {
+                assertEquals(before[i], owner);
+            }
+        }
+
+        // Joining again gives it back the same cards
+        assertTrue(ring.add("http://b"));
+        for (int i = 0; i < CARDS; i++) {
+            assertEquals(before[i], ring.owner(card(i)));
+        }
+    }
+
+    @Test
+    void testEmptyRingHasNoOwner() {
+        ConsistentHashRing ring = new ConsistentHashRing(Collections.emptyList(), 16);
+
+        assertNull(ring.owner("1234567812345678"));
+        ring.add("http://a");
+        assertEquals("http://a", ring.owner("1234567812345678"));
+    }
+
+    private static String card(int i) {
+        return String.format("4000%012d", i);
+    }
+}
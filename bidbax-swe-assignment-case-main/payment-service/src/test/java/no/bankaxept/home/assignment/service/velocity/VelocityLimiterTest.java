@@ -0,0 +1,117 @@
+package no.bankaxept.home.assignment.service.velocity;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.VelocityLimitException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VelocityLimiterTest {
+
+    private static final long START = 1_714_566_600_000L;
+
+    @Test
+    void testWindowSlidesOneBucketAtATime() {
+        // 100 a minute, in buckets of 10 seconds
+        VelocityLimiter limiter = limiter(new VelocityLimit("minute", 60000, 6, 100, 0));
+
+        limiter.acquire(payment("001", 60), START);
+        limiter.acquire(payment("001", 40), START + 25000);
+        assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("001", 1), START + 59999));
+        // Other cards have their own windows
+        limiter.acquire(payment("002", 100), START + 59999);
+
+        // The first payment's bucket leaves the window at the start of the bucket a minute after it
+        limiter.acquire(payment("001", 60), START + 60000);
+        assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("001", 1), START + 79999));
+        limiter.acquire(payment("001", 40), START + 80000);
+    }
+
+    @Test
+    void testEveryLimitIsChecked() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        VelocityLimiter limiter = limiter(new VelocityLimit("minute", 60000, 6, 0, 2), new VelocityLimit("hour", 3600000, 12, 300, 0));
+        limiter.bindTo(registry);
+
+        limiter.acquire(payment("001", 100), START);
+        limiter.acquire(payment("001", 100), START + 1000);
+        VelocityLimitException exception = assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("001", 10), START + 2000));
+        assertEquals("minute", exception.getLimit());
+        assertEquals("Loaners", exception.getBankName());
+
+        limiter.acquire(payment("001", 100), START + 120000);
+        exception = assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("001", 1), START + 180000));
+        assertEquals("hour", exception.getLimit());
+
+        assertEquals(1.0, registry.get("payment.velocity.exceeded").tag("limit", "minute").functionCounter().count());
+        assertEquals(1.0, registry.get("payment.velocity.exceeded").tag("limit", "hour").functionCounter().count());
+        assertEquals(1.0, registry.get("payment.velocity.cards").gauge().value());
+    }
+
+    @Test
+    void testAmountThatIsNotPositiveIsRejected() {
+        VelocityLimiter limiter = limiter(new VelocityLimit("minute", 60000, 6, 100, 2));
+
+        assertThrows(IllegalArgumentException.class, () -> limiter.acquire(payment("001", 0), START));
+        assertThrows(IllegalArgumentException.class, () -> limiter.acquire(payment("001", -50), START));
+        assertThrows(IllegalArgumentException.class, () -> limiter.release(payment("001", -50), START));
+
+        // Nothing was counted, so the card still has its whole window
+        limiter.acquire(payment("001", 50), START + 1000);
+        limiter.acquire(payment("001", 50), START + 2000);
+        assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("001", 1), START + 3000));
+    }
+
+    @Test
+    void testReleasedPaymentNoLongerCounts() {
+        VelocityLimiter limiter = limiter(new VelocityLimit("minute", 60000, 6, 100, 1));
+
+        long acquiredAt = limiter.acquire(payment("001", 100), START);
+        limiter.release(payment("001", 100), acquiredAt);
+        limiter.acquire(payment("001", 100), START + 1000);
+        assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("001", 100), START + 2000));
+
+        // A payment released after its bucket left the window takes nothing from the newer ones
+        long late = limiter.acquire(payment("002", 100), START);
+        limiter.acquire(payment("002", 100), START + 60000);
+        limiter.release(payment("002", 100), late);
+        assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("002", 1), START + 61000));
+    }
+
+    @Test
+    void testIdleCardsMakeRoomBeforeActiveOnes() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        VelocityLimiter limiter = new VelocityLimiter(Collections.singletonList(new VelocityLimit("minute", 60000, 6, 100, 0)), 1000, 1);
+        limiter.bindTo(registry);
+
+        for (int card = 0; card < 1000; card++) {
+            limiter.acquire(payment("idle-" + card, 100), START);
+        }
+        // A minute later the idle cards have nothing in their windows and are dropped for the new ones
+        for (int card = 0; card < 1000; card++) {
+            limiter.acquire(payment("active-" + card, 100), START + 60000 + card);
+        }
+        assertEquals(1000, limiter.size());
+        assertEquals(0.0, registry.get("payment.velocity.evicted").functionCounter().count());
+        assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("active-999", 1), START + 61000));
+
+        // Once every card is active, the eighth that paid least recently are dropped and counted
+        limiter.acquire(payment("newest", 100), START + 61000);
+        assertEquals(1000 - 125 + 1, limiter.size());
+        assertEquals(125.0, registry.get("payment.velocity.evicted").functionCounter().count());
+        assertThrows(VelocityLimitException.class, () -> limiter.acquire(payment("active-999", 1), START + 61000));
+        limiter.acquire(payment("active-0", 100), START + 61000);
+    }
+
+    private static VelocityLimiter limiter(VelocityLimit... limits) {
+        return new VelocityLimiter(Arrays.asList(limits), 1000, 4);
+    }
+
+    private static Transaction payment(String cardNumber, int amount) {
+        return new Transaction(cardNumber, amount, "Loaners");
+    }
+}
@@ -0,0 +1,137 @@
+package no.bankaxept.home.assignment.service.writer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.Deadline;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.PaymentTimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransactionWriterTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionWriter writer;
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("INSERT INTO balance (cardNumber, amount) VALUES ('001', 100)");
+
+        // A long flush interval so that everything submitted below lands in one batch
+        writer = new TransactionWriter(jdbcTemplate, new DataSourceTransactionManager(dataSource), 100, 200_000);
+        registry = new SimpleMeterRegistry();
+        writer.bindTo(registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.close();
+    }
+
+    @Test
+    void testConcurrentPaymentsShareOneCommit() throws Exception {
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(submit(10, "uuid-" + i));
+        }
+
+        for (CompletableFuture<Integer> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(50, balance());
+        assertEquals(5, rows());
+        assertEquals(1, registry.get("payment.writer.batch.size").summary().count());
+        assertEquals(5, registry.get("payment.writer.batch.size").summary().totalAmount());
+        assertEquals(1, registry.get("payment.writer.flush.latency").timer().count());
+    }
+
+    @Test
+    void testDeclinedDebitFailsOnlyItsOwnPayment() throws Exception {
+        CompletableFuture<Integer> first = submit(60, "uuid-1");
+        CompletableFuture<Integer> declined = submit(60, "uuid-2");
+        CompletableFuture<Integer> third = submit(40, "uuid-3");
+
+        assertEquals(40, (int) first.get(5, TimeUnit.SECONDS));
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> declined.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof InsufficientFundsException);
+        assertEquals(0, (int) third.get(5, TimeUnit.SECONDS));
+        assertEquals(2, rows());
+    }
+
+    @Test
+    void testFailingRowIsIsolatedFromTheRestOfTheBatch() throws Exception {
+        jdbcTemplate.update("INSERT INTO transaction (bank, uuid, card, amount, type) VALUES ('Loaners', 'taken', '001', 1, 'small')");
+
+        CompletableFuture<Integer> first = submit(10, "uuid-1");
+        CompletableFuture<Integer> duplicate = submit(10, "taken");
+        CompletableFuture<Integer> third = submit(10, "uuid-3");
+
+        assertEquals(90, (int) first.get(5, TimeUnit.SECONDS));
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> duplicate.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof DuplicateKeyException);
+        assertEquals(80, (int) third.get(5, TimeUnit.SECONDS));
+        assertEquals(80, balance(), "the rejected payment's debit must be rolled back");
+        assertEquals(3, rows());
+    }
+
+    @Test
+    void testPaymentPastItsDeadlineIsNotWritten() throws Exception {
+        CompletableFuture<Integer> first = submit(10, "uuid-1");
+        // Expires while the batch is still collecting payments
+        CompletableFuture<Integer> late = submit(10, "uuid-2", Deadline.after(50));
+
+        assertEquals(90, (int) first.get(5, TimeUnit.SECONDS));
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> late.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof PaymentTimeoutException);
+        assertEquals(90, balance());
+        assertEquals(1, rows());
+    }
+
+    private CompletableFuture<Integer> submit(int amount, String uuid) {
+        return submit(amount, uuid, null);
+    }
+
+    private CompletableFuture<Integer> submit(int amount, String uuid, Deadline deadline) {
+        Transaction transaction = new Transaction("001", amount, "Loaners");
+        IntSupplier debit = () -> {
+            int updated = jdbcTemplate.update("UPDATE balance SET amount = amount - ? WHERE cardNumber = '001' AND amount >= ?", amount, amount);
+            if (updated == 0) {
+                throw new InsufficientFundsException(balance(), amount, transaction.bank);
+            }
+            return balance();
+        };
+        return writer.submit(transaction, uuid, "small", new Timestamp(System.currentTimeMillis()), debit, deadline);
+    }
+
+    private int balance() {
+        return jdbcTemplate.queryForObject("SELECT amount FROM balance WHERE cardNumber = '001'", Integer.class);
+    }
+
+    private int rows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM transaction", Integer.class);
+    }
+}
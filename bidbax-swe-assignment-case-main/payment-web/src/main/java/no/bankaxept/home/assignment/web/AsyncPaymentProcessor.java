@@ -0,0 +1,198 @@
+package no.bankaxept.home.assignment.web;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.bankaxept.home.assignment.model.PaymentResult;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.PaymentService;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
+import no.bankaxept.home.assignment.service.exception.PaymentRejectedException;
+import no.bankaxept.home.assignment.service.queue.PaymentQueue;
+import no.bankaxept.home.assignment.service.queue.QueuedPayment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts payments into the durable {@link PaymentQueue} and processes them with a fixed pool of workers, so the
+ * HTTP thread only waits for the payment to reach the disk.
+ * <p>
+ * Each worker takes a payment, runs it through {@link PaymentService}, records the response body in the payment's
+ * {@link PaymentStatus} and acknowledges it in the queue. Finished statuses are kept for {@code statusTtlMs}.
+ * Statuses live in memory: after a restart the payments recovered from the queue are processed again and get a
+ * new status, while the outcome of payments that had already finished is no longer available here.
+ */
+public class AsyncPaymentProcessor implements MeterBinder, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncPaymentProcessor.class);
+
+    private static final long REJECTED_RETRY_DELAY_MS = 50;
+
+    private final PaymentQueue queue;
+    private final PaymentService paymentService;
+    private final long statusTtlMs;
+    private final Map<String, PaymentStatus> statuses = new ConcurrentHashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledExecutorService sweeper;
+    private volatile boolean running = true;
+
+    public AsyncPaymentProcessor(PaymentQueue queue, PaymentService paymentService, int workerCount, long statusTtlMs) {
+        this.queue = queue;
+        this.paymentService = paymentService;
+        this.statusTtlMs = statusTtlMs;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "payment-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-status-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepInterval = Math.max(100, statusTtlMs / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the payment, or returns its status if the same payment with this id is already known.
+     *
+     * @throws IdempotencyKeyException if the id is known for a payment with another card, bank or amount
+     * @throws IOException             if the queue is full or the payment cannot be written
+     */
+    public PaymentStatus submit(Transaction transaction, String transactionUuid) throws IOException {
+        PaymentStatus status = new PaymentStatus(transactionUuid, PaymentController.fingerprint(transaction));
+        PaymentStatus existing = statuses.putIfAbsent(transactionUuid, status);
+        if (existing != null) {
+            if (!existing.getFingerprint().equals(status.getFingerprint())) {
+                throw new IdempotencyKeyException("Idempotency key was already used for a different payment.");
+            }
+            return existing;
+        }
+        try {
+            queue.enqueue(transaction, transactionUuid);
+        } catch (IOException e) {
+            statuses.remove(transactionUuid, status);
+            throw e;
+        }
+        return status;
+    }
+
+    /**
+     * Status of a queued payment, or {@code null} if it is unknown or has expired.
+     */
+    public PaymentStatus getStatus(String transactionUuid) {
+        return statuses.get(transactionUuid);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("payment.queue.size", queue, PaymentQueue::size)
+                .description("Queued payments not yet processed")
+                .register(registry);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        sweeper.shutdownNow();
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void work() {
+        while (running) {
+            QueuedPayment payment;
+            try {
+                payment = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            process(payment);
+        }
+    }
+
+    private void process(QueuedPayment payment) {
+        Transaction transaction = payment.getTransaction();
+        String transactionUuid = payment.getTransactionUuid();
+        PaymentStatus status = statuses.computeIfAbsent(transactionUuid,
+                uuid -> new PaymentStatus(uuid, PaymentController.fingerprint(transaction)));
+        PaymentStatus.State state;
+        String response;
+        try {
+            PaymentResult result = payWhenAdmitted(transaction, transactionUuid);
+            state = PaymentStatus.State.COMPLETED;
+            response = PaymentResponses.success(transaction, result);
+        } catch (InterruptedException e) {
+            // Not acknowledged, so the payment is processed again after a restart
+            Thread.currentThread().interrupt();
+            return;
+        } catch (PaymentRejectedException e) {
+            // Shutting down; not acknowledged either
+            return;
+        } catch (ExecutionException | RuntimeException e) {
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            if (payment.isRecovered() && isDuplicate(cause)) {
+                // Processed before the restart, but not yet acknowledged
+                state = PaymentStatus.State.COMPLETED;
+                response = null;
+            } else {
+                state = PaymentStatus.State.FAILED;
+                response = failureResponse(transaction, cause);
+            }
+        }
+        queue.acknowledge(payment);
+        status.finish(state, response);
+    }
+
+    // A queued payment has already been accepted, so a full executor delays it instead of failing it
+    private PaymentResult payWhenAdmitted(Transaction transaction, String transactionUuid) throws InterruptedException, ExecutionException {
+        while (true) {
+            try {
+                return paymentService.pay(transaction, transactionUuid).get();
+            } catch (PaymentRejectedException e) {
+                backOff(e);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof PaymentRejectedException)) {
+                    throw e;
+                }
+                backOff((PaymentRejectedException) e.getCause());
+            }
+        }
+    }
+
+    private void backOff(PaymentRejectedException rejection) throws InterruptedException {
+        if (!rejection.isOverloaded() || !running) {
+            throw rejection;
+        }
+        TimeUnit.MILLISECONDS.sleep(REJECTED_RETRY_DELAY_MS);
+    }
+
+    private static String failureResponse(Transaction transaction, Throwable cause) {
+        try {
+            return PaymentResponses.error(transaction, cause);
+        } catch (RuntimeException unexpected) {
+            logger.error("Queued payment failed unexpectedly", unexpected);
+            return PaymentResponses.error(transaction.bank, "Execution error", unexpected.toString());
+        }
+    }
+
+    private static boolean isDuplicate(Throwable cause) {
+        return cause instanceof DuplicateTransactionException;
+    }
+
+    private void sweep() {
+        long expiredBefore = System.currentTimeMillis() - statusTtlMs;
+        statuses.values().removeIf(status -> status.getState() != PaymentStatus.State.PENDING && status.getCompletedAt() < expiredBefore);
+    }
+}
@@ -0,0 +1,224 @@
+package no.bankaxept.home.assignment.web;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.BatchPayment;
+import no.bankaxept.home.assignment.service.BatchPaymentResult;
+import no.bankaxept.home.assignment.service.BatchPaymentService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Reads a JSON array of payments from a request and writes one JSON line per payment as it finishes.
+ * <p>
+ * The array is parsed as it arrives and paid {@code chunkSize} payments at a time, so neither the request nor the
+ * results are held in memory whole. Each element is {@code {"id", "cardNumber", "bank", "amount"}}; the optional
+ * {@code id} becomes the transaction id, so a resent batch is caught by the duplicate check. Each line is
+ * {@code {"index", "uuid", "status", "result"}} with the same result body a single payment answers with. Lines
+ * come in the order payments finish, and {@code index} gives the payment's position in the request.
+ */
+public class BatchPaymentStream {
+    private static final Logger logger = LoggerFactory.getLogger(BatchPaymentStream.class);
+
+    private static final JsonWriter.Name INDEX = JsonWriter.Name.of("index");
+    private static final JsonWriter.Name UUID_FIELD = JsonWriter.Name.of("uuid");
+    private static final JsonWriter.Name STATUS = JsonWriter.Name.of("status");
+    private static final JsonWriter.Name RESULT = JsonWriter.Name.of("result");
+    // Same limit as the transaction.uuid column the id is stored in
+    private static final int MAX_ID_LENGTH = 250;
+
+    private final ObjectMapper objectMapper;
+    private final BatchPaymentService batchPaymentService;
+    private final int chunkSize;
+
+    public BatchPaymentStream(ObjectMapper objectMapper, BatchPaymentService batchPaymentService, int chunkSize) {
+        this.objectMapper = objectMapper;
+        this.batchPaymentService = batchPaymentService;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Pays the payments read from {@code in} and writes their lines to {@code out}. A request that is not a JSON
+     * array of objects ends the output with a line holding only an error body; the payments before the point
+     * where it went wrong have been paid and reported.
+     *
+     * @throws IOException if the output cannot be written, after the payments already read have finished
+     */
+    public void process(InputStream in, OutputStream out) throws IOException {
+        Lines lines = new Lines(out);
+        try (JsonParser parser = objectMapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                lines.write(PaymentResponses.error(null, "Invalid request", "Expected a JSON array of payments."));
+                return;
+            }
+            List<BatchPayment> chunk = new ArrayList<>(chunkSize);
+            long index = 0;
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new JsonProcessingException("Expected a payment object", parser.getCurrentLocation()) {
+                    };
+                }
+                JsonNode element = parser.readValueAsTree();
+                BatchPayment payment = toPayment(index++, element);
+                String invalid = validate(payment, element);
+                if (invalid != null) {
+                    lines.write(line(payment, false, PaymentResponses.error(payment.getTransaction().bank, "Invalid payment", invalid)));
+                    continue;
+                }
+                chunk.add(payment);
+                if (chunk.size() == chunkSize) {
+                    pay(chunk, lines);
+                    chunk.clear();
+                }
+            }
+            pay(chunk, lines);
+        } catch (JsonProcessingException e) {
+            lines.write(PaymentResponses.error(null, "Invalid request", e.getOriginalMessage()));
+        }
+        lines.rethrow();
+    }
+
+    private void pay(List<BatchPayment> chunk, Lines lines) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        try {
+            batchPaymentService.pay(chunk, result -> lines.write(line(result))).join();
+        } catch (CompletionException e) {
+            // Only a listener that throws fails the batch, and the payments have finished regardless
+            logger.error("Batch payment results could not all be reported", e.getCause());
+        } catch (RuntimeException e) {
+            // The duplicate check failed before any payment of the chunk was reported
+            for (BatchPayment payment : chunk) {
+                lines.write(line(BatchPaymentResult.failed(payment, e)));
+            }
+        }
+        lines.flush();
+    }
+
+    private static BatchPayment toPayment(long index, JsonNode element) {
+        Transaction transaction = new Transaction(text(element, "cardNumber"), amount(element), text(element, "bank"));
+        String id = text(element, "id");
+        return new BatchPayment(index, id != null ? id : UUID.randomUUID().toString(), transaction);
+    }
+
+    private static String validate(BatchPayment payment, JsonNode element) {
+        Transaction transaction = payment.getTransaction();
+        if (transaction.cardNumber == null || transaction.bank == null || !element.hasNonNull("amount")) {
+            return "A payment needs a cardNumber, a bank and an amount.";
+        }
+        if (transaction.amount <= 0) {
+            return "The amount must be a positive whole number.";
+        }
+        String id = payment.getTransactionUuid();
+        if (id.trim().isEmpty() || id.length() > MAX_ID_LENGTH) {
+            return "The id must be between 1 and " + MAX_ID_LENGTH + " characters.";
+        }
+        return null;
+    }
+
+    // Whole numbers, also written as strings the way amounts are answered; anything else is 0 and fails validation
+    private static int amount(JsonNode element) {
+        JsonNode value = element.path("amount");
+        if (value.isIntegralNumber() && value.canConvertToInt()) {
+            return value.intValue();
+        }
+        if (value.isTextual()) {
+            try {
+                return Integer.parseInt(value.textValue().trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static String text(JsonNode element, String field) {
+        JsonNode value = element.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    private static String line(BatchPaymentResult result) {
+        BatchPayment payment = result.getPayment();
+        return result.isPaid()
+                ? line(payment, true, PaymentResponses.success(payment.getTransaction(), result.getResult()))
+                : line(payment, false, failureResponse(payment.getTransaction(), result.getFailure()));
+    }
+
+    // The result body is written first, since both bodies use the thread's JsonWriter
+    private static String line(BatchPayment payment, boolean paid, String result) {
+        return JsonWriter.get()
+                .beginObject()
+                .field(INDEX, payment.getIndex())
+                .field(UUID_FIELD, payment.getTransactionUuid())
+                .field(STATUS, paid ? "COMPLETED" : "FAILED")
+                .rawField(RESULT, result)
+                .endObject()
+                .toString();
+    }
+
+    private static String failureResponse(Transaction transaction, Throwable cause) {
+        try {
+            return PaymentResponses.error(transaction, cause);
+        } catch (RuntimeException unexpected) {
+            logger.error("Batch payment failed unexpectedly", unexpected);
+            return PaymentResponses.error(transaction.bank, "Execution error", unexpected.toString());
+        }
+    }
+
+    /**
+     * The response, written one whole line at a time from the threads that finish the payments. Once a write has
+     * failed, usually because the client went away, later lines are dropped and the payments still run to the end.
+     */
+    private static final class Lines {
+        private final OutputStream out;
+        private IOException failure;
+
+        Lines(OutputStream out) {
+            this.out = out;
+        }
+
+        synchronized void write(String line) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        synchronized void flush() {
+            if (failure != null) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        synchronized void rethrow() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package no.bankaxept.home.assignment.web;
 
 import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.PaymentRejectedException;
+import no.bankaxept.home.assignment.service.exception.TooManyExportsException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -10,16 +14,51 @@ import org.springframework.web.bind.annotation.ResponseBody;
 @ControllerAdvice
 public class GlobalExceptionHandler {
 
+    // An expected outcome, already logged with the payment's event, so there is no stack trace to print
     @ExceptionHandler(InsufficientFundsException.class)
     @ResponseBody
     public ResponseEntity<String> handleInsufficientFundsException(InsufficientFundsException exception) {
-        exception.printStackTrace();
-        String response = "{" +
-                "\"error\":\"Insufficient funds.\"," +
-                "\"bank\":\"" + exception.bankName + "\"," +
-                "\"reason\":\" You tried to pay '" + exception.amount + "\"', but have only '" + exception.currentBalance + "' available.\"" +
-                "}";
+        String response = PaymentResponses.insufficientFunds(exception);
 
         return new ResponseEntity<>(response, HttpStatus.OK);
     }
+
+    @ExceptionHandler(IdempotencyKeyException.class)
+    @ResponseBody
+    public ResponseEntity<String> handleIdempotencyKeyException(IdempotencyKeyException exception) {
+        String response = PaymentResponses.error(null, "Invalid idempotency key.", exception.getMessage());
+
+        return new ResponseEntity<>(response, HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+
+    @ExceptionHandler(HistoryQueryException.class)
+    @ResponseBody
+    public ResponseEntity<String> handleHistoryQueryException(HistoryQueryException exception) {
+        String response = PaymentResponses.error(null, "Invalid history query.", exception.getMessage());
+
+        return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
+    }
+
+    // Thrown before any row is written; the export has set its own content type by then, hence the explicit one
+    @ExceptionHandler(TooManyExportsException.class)
+    @ResponseBody
+    public ResponseEntity<String> handleTooManyExportsException(TooManyExportsException exception) {
+        String response = PaymentResponses.error(null, "Export rejected.", exception.getMessage());
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "1");
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new ResponseEntity<>(response, headers, HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    // A full executor asks the client to back off briefly; one that is shutting down is unavailable
+    @ExceptionHandler(PaymentRejectedException.class)
+    @ResponseBody
+    public ResponseEntity<String> handlePaymentRejectedException(PaymentRejectedException exception) {
+        String response = PaymentResponses.error(null, "Payment rejected.", exception.getMessage());
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "1");
+        return new ResponseEntity<>(response, headers, exception.isOverloaded() ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE);
+    }
 }
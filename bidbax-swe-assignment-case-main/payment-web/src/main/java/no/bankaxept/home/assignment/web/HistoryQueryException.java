@@ -0,0 +1,8 @@
+package no.bankaxept.home.assignment.web;
+
+public class HistoryQueryException extends RuntimeException {
+
+    public HistoryQueryException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,8 @@
+package no.bankaxept.home.assignment.web;
+
+public class IdempotencyKeyException extends RuntimeException {
+
+    public IdempotencyKeyException(String message) {
+        super(message);
+    }
+}
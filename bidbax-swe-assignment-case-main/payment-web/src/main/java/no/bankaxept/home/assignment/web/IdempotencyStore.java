@@ -0,0 +1,165 @@
+package no.bankaxept.home.assignment.web;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the outcome of each request made with an idempotency key.
+ * <p>
+ * The first request with a key runs; a concurrent request with the same key gets the same future and waits for
+ * the first one to finish, and a later one gets the stored outcome, until the record expires after the TTL.
+ * Outcomes that are worth retrying, such as an unavailable bank, are not stored, so a retry runs again. A key
+ * reused with a different request is refused. Expired records are swept periodically. When the store is full,
+ * new keys still run but are not recorded.
+ */
+public class IdempotencyStore<T> implements MeterBinder, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    private final Map<String, Entry<T>> entries = new ConcurrentHashMap<>();
+    private final long ttlMs;
+    private final int maxEntries;
+    private final Predicate<Throwable> retryable;
+    private final ScheduledExecutorService sweeper;
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+
+    public IdempotencyStore(long ttlMs, int maxEntries, Predicate<Throwable> retryable) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+        this.retryable = retryable;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepInterval = Math.max(100, ttlMs / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+
+        Gauge.builder("payment.idempotency.entries", entries, Map::size)
+                .description("Idempotency keys currently remembered")
+                .register(meterRegistry);
+        registerRequests("joined", joined);
+        registerRequests("replayed", replayed);
+        registerRequests("unrecorded", overflowed);
+    }
+
+    /**
+     * Runs {@code action} for the first request with this key, or returns the outcome of the request that did.
+     *
+     * @param fingerprint identifies the request, so the key cannot be reused for a different one
+     * @throws IdempotencyKeyException if the key was used for a different request
+     */
+    public CompletableFuture<T> execute(String key, String fingerprint, Supplier<CompletableFuture<T>> action) {
+        while (true) {
+            Entry<T> existing = entries.get(key);
+            if (existing == null) {
+                if (entries.size() >= maxEntries) {
+                    overflowed.increment();
+                    logger.warn("Idempotency store is full with {} keys; key {} is not recorded", entries.size(), key);
+                    return action.get();
+                }
+                Entry<T> entry = new Entry<>(fingerprint);
+                if (entries.putIfAbsent(key, entry) == null) {
+                    run(key, entry, action);
+                    return entry.result;
+                }
+                continue;
+            }
+            if (existing.isExpired(System.currentTimeMillis())) {
+                entries.remove(key, existing);
+                continue;
+            }
+            if (!existing.fingerprint.equals(fingerprint)) {
+                throw new IdempotencyKeyException("Idempotency key was already used for a different payment.");
+            }
+            (existing.result.isDone() ? replayed : joined).increment();
+            return existing.result;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        meterRegistry.add(registry);
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private void run(String key, Entry<T> entry, Supplier<CompletableFuture<T>> action) {
+        CompletableFuture<T> outcome;
+        try {
+            outcome = action.get();
+        } catch (RuntimeException e) {
+            outcome = new CompletableFuture<>();
+            outcome.completeExceptionally(e);
+        }
+        outcome.whenComplete((value, throwable) -> {
+            if (throwable != null && retryable.test(unwrap(throwable))) {
+                entries.remove(key, entry);
+            } else {
+                entry.expiresAt = System.currentTimeMillis() + ttlMs;
+            }
+            if (throwable != null) {
+                entry.result.completeExceptionally(throwable);
+            } else {
+                entry.result.complete(value);
+            }
+        });
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.isExpired(now));
+    }
+
+    private void registerRequests(String outcome, LongAdder count) {
+        FunctionCounter.builder("payment.idempotency.requests", count, LongAdder::sum)
+                .description("Requests answered from an earlier request with the same idempotency key")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    private static class Entry<T> {
+        final String fingerprint;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        // Still running until set
+        volatile long expiresAt = Long.MAX_VALUE;
+
+        Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package no.bankaxept.home.assignment.web;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Streaming writer for the small JSON bodies of the payment endpoints.
+ * <p>
+ * Each thread reuses one writer and its buffer, field names are encoded once up front as {@link Name}s, and
+ * string values are escaped as they are copied in, so writing a body allocates little beyond the resulting string.
+ */
+final class JsonWriter {
+    private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Larger buffers are not kept, so one huge body cannot pin its memory to the thread
+    private static final int MAX_RETAINED_CAPACITY = 8192;
+
+    private StringBuilder buffer = new StringBuilder(256);
+    private boolean first;
+    // Date and time of the last second written, so most timestamps only need their milliseconds formatted
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedSecondText;
+
+    private JsonWriter() {
+    }
+
+    /**
+     * The calling thread's writer, emptied and ready for a new body.
+     */
+    static JsonWriter get() {
+        JsonWriter writer = WRITERS.get();
+        if (writer.buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            writer.buffer = new StringBuilder(256);
+        }
+        writer.buffer.setLength(0);
+        writer.first = true;
+        return writer;
+    }
+
+    /**
+     * Begins an object, as the body or as the next element of an array.
+     */
+    JsonWriter beginObject() {
+        if (!first) {
+            buffer.append(',');
+        }
+        buffer.append('{');
+        first = true;
+        return this;
+    }
+
+    JsonWriter endObject() {
+        buffer.append('}');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Begins an array field, whose elements are written with {@link #beginObject()}.
+     */
+    JsonWriter beginArray(Name name) {
+        name(name);
+        buffer.append('[');
+        first = true;
+        return this;
+    }
+
+    JsonWriter endArray() {
+        buffer.append(']');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Writes a string field; a {@code null} value is written as JSON {@code null}.
+     */
+    JsonWriter field(Name name, String value) {
+        name(name);
+        if (value == null) {
+            buffer.append("null");
+        } else {
+            buffer.append('"');
+            escape(value);
+            buffer.append('"');
+        }
+        return this;
+    }
+
+    /**
+     * Writes a number as a string field, the way the payment endpoints have always reported amounts.
+     */
+    JsonWriter field(Name name, long value) {
+        name(name);
+        buffer.append('"').append(value).append('"');
+        return this;
+    }
+
+    /**
+     * Writes an ISO-8601 timestamp in UTC with millisecond precision, such as {@code 2024-05-01T12:30:00.123Z}.
+     */
+    JsonWriter field(Name name, Instant value) {
+        name(name);
+        long second = value.getEpochSecond();
+        if (second != cachedSecond) {
+            cachedSecondText = DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC));
+            cachedSecond = second;
+        }
+        int millis = value.getNano() / 1_000_000;
+        buffer.append('"').append(cachedSecondText).append('.')
+                .append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10))
+                .append("Z\"");
+        return this;
+    }
+
+    /**
+     * Writes a field whose value is already a JSON document.
+     */
+    JsonWriter rawField(Name name, String json) {
+        name(name);
+        buffer.append(json);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+
+    private void name(Name name) {
+        if (!first) {
+            buffer.append(',');
+        }
+        first = false;
+        buffer.append(name.encoded);
+    }
+
+    private void escape(String value) {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            buffer.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    buffer.append("\\\"");
+                    break;
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                default:
+                    // Other control characters, and the line separators JavaScript does not allow in strings
+                    buffer.append("\\u").append(HEX[c >> 12 & 0xF]).append(HEX[c >> 8 & 0xF]).append(HEX[c >> 4 & 0xF]).append(HEX[c & 0xF]);
+            }
+        }
+        buffer.append(value, start, length);
+    }
+
+    /**
+     * A field name, quoted and escaped once.
+     */
+    static final class Name {
+        private final String encoded;
+
+        private Name(String encoded) {
+            this.encoded = encoded;
+        }
+
+        static Name of(String name) {
+            JsonWriter writer = new JsonWriter();
+            writer.buffer.append('"');
+            writer.escape(name);
+            writer.buffer.append("\":");
+            return new Name(writer.buffer.toString());
+        }
+    }
+}
@@ -3,12 +3,10 @@ package no.bankaxept.home.assignment.web;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
-import org.springframework.retry.annotation.EnableRetry;
 import org.springframework.scheduling.annotation.EnableAsync;
 
 @SpringBootApplication
 @EnableAsync
-@EnableRetry
 @ComponentScan("no.bankaxept.home.assignment")
 public class PaymentApplication {
 
@@ -1,66 +1,304 @@
 package no.bankaxept.home.assignment.web;
 
+import no.bankaxept.home.assignment.model.PaymentResult;
 import no.bankaxept.home.assignment.model.Transaction;
 import no.bankaxept.home.assignment.service.PaymentService;
-import no.bankaxept.home.assignment.service.exception.BankValidationException;
-import org.springframework.dao.DataAccessException;
+import no.bankaxept.home.assignment.service.history.HistoryCursor;
+import no.bankaxept.home.assignment.service.history.HistoryQuery;
+import no.bankaxept.home.assignment.service.history.TransactionHistory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.util.Date;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @RestController
 @RequestMapping("/payment")
 public class PaymentController {
 
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    // Same limit as the transaction.uuid column the key is stored in
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 250;
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
     private final PaymentService paymentService;
+    private final IdempotencyStore<PaymentResult> idempotencyStore;
+    private final AsyncPaymentProcessor asyncPaymentProcessor;
+    private final BatchPaymentStream batchPaymentStream;
+    private final TransactionHistory transactionHistory;
+    private final ShardRouter shardRouter;
 
-    public PaymentController(PaymentService paymentService) {
+    /**
+     * @param shardRouter present when the cards are sharded between nodes
+     */
+    public PaymentController(PaymentService paymentService, IdempotencyStore<PaymentResult> idempotencyStore,
+                             AsyncPaymentProcessor asyncPaymentProcessor, BatchPaymentStream batchPaymentStream,
+                             TransactionHistory transactionHistory, ObjectProvider<ShardRouter> shardRouter) {
         this.paymentService = paymentService;
+        this.idempotencyStore = idempotencyStore;
+        this.asyncPaymentProcessor = asyncPaymentProcessor;
+        this.batchPaymentStream = batchPaymentStream;
+        this.transactionHistory = transactionHistory;
+        this.shardRouter = shardRouter.getIfAvailable();
     }
 
+    /**
+     * Returning the future releases the servlet thread while a big payment waits for its bank. With an
+     * {@code Idempotency-Key} header, retries of the same payment share one execution and the key becomes the
+     * transaction id, so even a retry after the key has expired is caught by the duplicate check.
+     * <p>
+     * A payment without a key is cancelled when its request times out or fails, so it stops before moving money
+     * nobody will hear about. A payment with a key runs on, since a retry with the same key picks up its outcome.
+     * <p>
+     * When the cards are sharded, a payment for a card another node owns is forwarded there, see {@link ShardRouter}.
+     */
     @PostMapping(path = "/pay")
-    @ResponseBody
-    public String pay(@RequestBody Transaction transaction) {
-        Map<String, Object> payment = null;
+    public DeferredResult<ResponseEntity<String>> pay(@RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                                      @RequestHeader(value = ShardRouter.FORWARDED_HEADER, required = false) String forwardedBy,
+                                                      @RequestBody Transaction transaction) {
+        if (idempotencyKey != null) {
+            validateIdempotencyKey(idempotencyKey);
+        }
+        DeferredResult<ResponseEntity<String>> response = new DeferredResult<>();
+        String owner = shardRouter == null || forwardedBy != null ? null : shardRouter.remoteOwner(transaction.cardNumber);
+        CompletableFuture<ResponseEntity<String>> answer = owner == null
+                ? payHere(transaction, idempotencyKey, response)
+                : shardRouter.forward(owner, transaction, idempotencyKey, () -> payHere(transaction, idempotencyKey, response))
+                        .exceptionally(failure -> forwardFailed(transaction, unwrap(failure)));
+        answer.whenComplete((body, failure) -> {
+            if (failure == null) {
+                response.setResult(body);
+            } else {
+                // Unwrapped so the exception handlers see the exception thrown by the payment
+                response.setErrorResult(unwrap(failure));
+            }
+        });
+        return response;
+    }
+
+    private CompletableFuture<ResponseEntity<String>> payHere(Transaction transaction, String idempotencyKey,
+                                                              DeferredResult<ResponseEntity<String>> response) {
+        CompletableFuture<PaymentResult> payment;
+        if (idempotencyKey == null) {
+            CompletableFuture<PaymentResult> unshared = startPayment(transaction, UUID.randomUUID().toString());
+            response.onTimeout(() -> unshared.cancel(true));
+            response.onError(error -> unshared.cancel(true));
+            payment = unshared;
+        } else {
+            payment = idempotencyStore.execute(idempotencyKey, fingerprint(transaction), () -> startPayment(transaction, idempotencyKey));
+        }
+
+        return payment.handle((result, throwable) -> ResponseEntity.ok(throwable == null
+                ? PaymentResponses.success(transaction, result)
+                : PaymentResponses.error(transaction, throwable)));
+    }
+
+    /**
+     * Accepts the payment into the durable queue and answers {@code 202 Accepted} once it is on disk. The outcome is
+     * polled from the {@code Location} returned, or pushed by {@code /payment/{uuid}/events}. With an
+     * {@code Idempotency-Key} header the key is the transaction id, so a retried submission reports the same payment;
+     * like on {@code /pay}, a key reused for another payment is refused with {@code 422}.
+     */
+    @PostMapping(path = "/async")
+    public ResponseEntity<String> payAsync(@RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                           @RequestBody Transaction transaction) {
+        if (idempotencyKey != null) {
+            validateIdempotencyKey(idempotencyKey);
+        }
+        String transactionUuid = idempotencyKey == null ? UUID.randomUUID().toString() : idempotencyKey;
+
+        PaymentStatus status;
         try {
-            payment = paymentService.pay(transaction, UUID.randomUUID().toString()).get();
-        } catch (DataAccessException e) {
-            return createErrorResponse(transaction.bank, "Database error", e.toString());
+            status = asyncPaymentProcessor.submit(transaction, transactionUuid);
         } catch (IOException e) {
-            return createErrorResponse(transaction.bank, "IO error", e.toString());
-        } catch (URISyntaxException e) {
-            return createErrorResponse(transaction.bank, "URI error", e.toString());
-        } catch (BankValidationException e) {
-            e.printStackTrace();
-            return createErrorResponse(e.getBankName(), "Bank validation failed", e.message);
-        } catch (ExecutionException e) {
-            return createErrorResponse(transaction.bank, "Execution error", e.toString());
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return createErrorResponse(transaction.bank, "Payment interrupted", e.toString());
-        }
-
-        return "{" +
-                "\"cardNumber\":\"" + transaction.cardNumber + "\"," +
-                "\"bank\":\"" + transaction.bank + "\"," +
-                "\"amount\":\"" + transaction.amount + "\"," +
-                "\"transactionTimestamp\":\"" + new Date() + "\"," +
-                "\"currentAccountBalance\":\"" + payment.get("balance") + "\"" +
-                "\"duration\":\"" + payment.get("duration") + "\"" +
-                "}";
-    }
-    // Helper method to create error response in JSON format
-    private String createErrorResponse(String bank, String errorType, String reason) {
-        return "{" +
-                "\"bank\":\"" + bank + "\"," +
-                "\"error\":\"" + errorType + "\"," +
-                "\"reason\":\"" + reason + "\"" +
-                "}";
+            return new ResponseEntity<>(PaymentResponses.error(transaction.bank, "IO error", e.getMessage()), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        return ResponseEntity.accepted()
+                .location(URI.create("/payment/" + transactionUuid))
+                .body(status.toJson());
+    }
+
+    /**
+     * Pays a JSON array of payments and streams one JSON line per payment back as each finishes, see
+     * {@link BatchPaymentStream}. The request is read while the response is written on the request thread, like an
+     * export, so a batch of thousands of payments is not cut short by the async request timeout and takes no
+     * thread beyond the servlet container's own.
+     */
+    @PostMapping(path = "/batch")
+    public void payBatch(InputStream body, HttpServletResponse response) throws IOException {
+        response.setContentType(NDJSON.toString());
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        batchPaymentStream.process(body, response.getOutputStream());
+    }
+
+    /**
+     * A page of the card's transactions, newest first: optionally only those dated from {@code from} and before
+     * {@code to}, both ISO-8601 instants, or of one {@code type}. The page's {@code next} token, sent back as
+     * {@code after} with the same filters, reads the page that follows it.
+     */
+    @GetMapping(path = "/cards/{card}/transactions")
+    public ResponseEntity<String> history(@PathVariable("card") String card,
+                                          @RequestParam(value = "from", required = false) String from,
+                                          @RequestParam(value = "to", required = false) String to,
+                                          @RequestParam(value = "type", required = false) String type,
+                                          @RequestParam(value = "after", required = false) String after,
+                                          @RequestParam(value = "limit", defaultValue = "50") String limit) {
+        HistoryQuery query = historyQuery(card, from, to, type);
+        HistoryCursor cursor = null;
+        if (after != null) {
+            try {
+                cursor = HistoryCursor.decode(after);
+            } catch (IllegalArgumentException e) {
+                throw new HistoryQueryException("after must be the next token of a previous page.");
+            }
+        }
+        return ResponseEntity.ok(TransactionHistoryResponses.page(card, transactionHistory.page(query, cursor, pageSize(limit))));
+    }
+
+    /**
+     * Every transaction of the card the filters match, newest first, as JSON lines or, with {@code format=csv}, as
+     * CSV with a header row. Rows are written as they are read, on the request thread, so an export of any length
+     * is not cut short by the async request timeout; a failure part-way through ends the response early. Each export
+     * holds a database connection, so one beyond {@code payment.history.maxConcurrentExports} is answered {@code 429}.
+     */
+    @GetMapping(path = "/cards/{card}/transactions/export")
+    public void exportHistory(@PathVariable("card") String card,
+                              @RequestParam(value = "from", required = false) String from,
+                              @RequestParam(value = "to", required = false) String to,
+                              @RequestParam(value = "type", required = false) String type,
+                              @RequestParam(value = "format", defaultValue = "ndjson") String format,
+                              HttpServletResponse response) throws IOException {
+        HistoryQuery query = historyQuery(card, from, to, type);
+        if (!format.equals("ndjson") && !format.equals("csv")) {
+            throw new HistoryQueryException("format must be ndjson or csv.");
+        }
+        boolean csv = format.equals("csv");
+        // CSV lines end in CRLF, as RFC 4180 has it
+        String newline = csv ? "\r\n" : "\n";
+        response.setContentType(csv ? "text/csv" : NDJSON.toString());
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        if (csv) {
+            out.write(TransactionHistoryResponses.CSV_HEADER);
+            out.write(newline);
+        }
+        transactionHistory.export(query, transaction -> {
+            out.write(csv ? TransactionHistoryResponses.csvLine(transaction) : TransactionHistoryResponses.jsonLine(transaction));
+            out.write(newline);
+        });
+        out.flush();
+    }
+
+    @GetMapping(path = "/{uuid}")
+    public ResponseEntity<String> getPayment(@PathVariable("uuid") String transactionUuid) {
+        PaymentStatus status = asyncPaymentProcessor.getStatus(transactionUuid);
+        if (status == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(status.toJson());
+    }
+
+    /**
+     * Server-sent events stream that sends the payment status once, when the payment has finished.
+     */
+    @GetMapping(path = "/{uuid}/events")
+    public ResponseEntity<SseEmitter> paymentEvents(@PathVariable("uuid") String transactionUuid) {
+        PaymentStatus status = asyncPaymentProcessor.getStatus(transactionUuid);
+        if (status == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        SseEmitter emitter = new SseEmitter();
+        status.onFinished(finished -> {
+            try {
+                emitter.send(SseEmitter.event().name("payment").data(finished.toJson()));
+                emitter.complete();
+            } catch (IOException e) {
+                emitter.completeWithError(e);
+            }
+        });
+        return ResponseEntity.ok(emitter);
+    }
+
+    private static void validateIdempotencyKey(String idempotencyKey) {
+        if (idempotencyKey.trim().isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            throw new IdempotencyKeyException("Idempotency key must be between 1 and " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters.");
+        }
+    }
+
+    private static HistoryQuery historyQuery(String card, String from, String to, String type) {
+        if (type != null && !type.equals("big") && !type.equals("small")) {
+            throw new HistoryQueryException("type must be big or small.");
+        }
+        return new HistoryQuery(card, instant("from", from), instant("to", to), type);
+    }
+
+    private static Instant instant(String name, String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new HistoryQueryException(name + " must be an ISO-8601 instant, such as 2024-05-01T12:30:00Z.");
+        }
+    }
+
+    private int pageSize(String limit) {
+        int max = transactionHistory.getMaxPageSize();
+        try {
+            int size = Integer.parseInt(limit);
+            if (size >= 1 && size <= max) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new HistoryQueryException("limit must be a whole number from 1 to " + max + ".");
+    }
+
+    private CompletableFuture<PaymentResult> startPayment(Transaction transaction, String transactionUuid) {
+        try {
+            return paymentService.pay(transaction, transactionUuid);
+        } catch (RuntimeException e) {
+            CompletableFuture<PaymentResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    // Only the forward itself fails with an IOException; failures of a payment made here go to the exception handlers
+    private static ResponseEntity<String> forwardFailed(Transaction transaction, Throwable failure) {
+        if (!(failure instanceof IOException)) {
+            throw new CompletionException(failure);
+        }
+        return ResponseEntity.ok(PaymentResponses.error(transaction.bank, "IO error",
+                "The node that owns the card could not be reached: " + failure.getMessage()));
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * What a payment's idempotency key is tied to: a key reused with another card, bank or amount is refused.
+     */
+    static String fingerprint(Transaction transaction) {
+        return transaction.cardNumber + '|' + transaction.bank + '|' + transaction.amount;
     }
 }
@@ -0,0 +1,35 @@
+package no.bankaxept.home.assignment.web;
+
+/**
+ * Response body of a payment or request that failed.
+ */
+final class PaymentError {
+    private static final JsonWriter.Name BANK = JsonWriter.Name.of("bank");
+    private static final JsonWriter.Name ERROR = JsonWriter.Name.of("error");
+    private static final JsonWriter.Name REASON = JsonWriter.Name.of("reason");
+
+    final String bank;
+    final String error;
+    final String reason;
+
+    /**
+     * @param bank the bank involved, or {@code null} when the failure has nothing to do with a bank
+     */
+    PaymentError(String bank, String error, String reason) {
+        this.bank = bank;
+        this.error = error;
+        this.reason = reason;
+    }
+
+    String toJson() {
+        JsonWriter writer = JsonWriter.get().beginObject();
+        if (bank != null) {
+            writer.field(BANK, bank);
+        }
+        return writer
+                .field(ERROR, error)
+                .field(REASON, reason)
+                .endObject()
+                .toString();
+    }
+}
@@ -0,0 +1,47 @@
+package no.bankaxept.home.assignment.web;
+
+import no.bankaxept.home.assignment.model.PaymentResult;
+import no.bankaxept.home.assignment.model.Transaction;
+
+import java.time.Instant;
+
+/**
+ * Response body of a completed payment.
+ */
+final class PaymentReceipt {
+    private static final JsonWriter.Name CARD_NUMBER = JsonWriter.Name.of("cardNumber");
+    private static final JsonWriter.Name BANK = JsonWriter.Name.of("bank");
+    private static final JsonWriter.Name AMOUNT = JsonWriter.Name.of("amount");
+    private static final JsonWriter.Name TRANSACTION_TIMESTAMP = JsonWriter.Name.of("transactionTimestamp");
+    private static final JsonWriter.Name CURRENT_ACCOUNT_BALANCE = JsonWriter.Name.of("currentAccountBalance");
+    private static final JsonWriter.Name DURATION = JsonWriter.Name.of("duration");
+
+    final String cardNumber;
+    final String bank;
+    final int amount;
+    final Instant transactionTimestamp;
+    final int currentAccountBalance;
+    final long duration;
+
+    PaymentReceipt(Transaction transaction, PaymentResult result) {
+        this.cardNumber = transaction.cardNumber;
+        this.bank = transaction.bank;
+        this.amount = transaction.amount;
+        this.transactionTimestamp = result.getRecordedAt();
+        this.currentAccountBalance = result.getBalance();
+        this.duration = result.getDurationMillis();
+    }
+
+    String toJson() {
+        return JsonWriter.get()
+                .beginObject()
+                .field(CARD_NUMBER, cardNumber)
+                .field(BANK, bank)
+                .field(AMOUNT, amount)
+                .field(TRANSACTION_TIMESTAMP, transactionTimestamp)
+                .field(CURRENT_ACCOUNT_BALANCE, currentAccountBalance)
+                .field(DURATION, duration)
+                .endObject()
+                .toString();
+    }
+}
@@ -0,0 +1,58 @@
+package no.bankaxept.home.assignment.web;
+
+import no.bankaxept.home.assignment.model.PaymentResult;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.VelocityLimitException;
+import org.springframework.dao.DataAccessException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+
+/**
+ * JSON bodies for payment outcomes, shared by the synchronous and the queued payment endpoints and the
+ * exception handlers. Bodies are written by {@link JsonWriter}, which escapes every value.
+ */
+final class PaymentResponses {
+
+    private PaymentResponses() {
+    }
+
+    static String success(Transaction transaction, PaymentResult result) {
+        return new PaymentReceipt(transaction, result).toJson();
+    }
+
+    /**
+     * Maps a failed payment to its error body. Unexpected runtime exceptions are rethrown.
+     */
+    static String error(Transaction transaction, Throwable throwable) {
+        Throwable e = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+        if (e instanceof DataAccessException) {
+            return error(transaction.bank, "Database error", e.getMessage());
+        } else if (e instanceof IOException) {
+            return error(transaction.bank, "IO error", e.getMessage());
+        } else if (e instanceof BankValidationException) {
+            return error(((BankValidationException) e).getBankName(), "Bank validation failed", e.getMessage());
+        } else if (e instanceof InsufficientFundsException) {
+            return insufficientFunds((InsufficientFundsException) e);
+        } else if (e instanceof VelocityLimitException) {
+            return error(((VelocityLimitException) e).getBankName(), "Velocity limit exceeded.", e.getMessage());
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        return error(transaction.bank, "Execution error", e.toString());
+    }
+
+    static String insufficientFunds(InsufficientFundsException exception) {
+        return error(exception.bankName, "Insufficient funds.",
+                "You tried to pay '" + exception.amount + "', but have only '" + exception.currentBalance + "' available.");
+    }
+
+    /**
+     * @param bank the bank involved, or {@code null} to leave the field out
+     */
+    static String error(String bank, String errorType, String reason) {
+        return new PaymentError(bank, errorType, reason).toJson();
+    }
+}
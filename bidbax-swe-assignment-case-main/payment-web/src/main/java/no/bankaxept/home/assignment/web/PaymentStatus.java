@@ -0,0 +1,97 @@
+package no.bankaxept.home.assignment.web;
+
+import no.bankaxept.home.assignment.model.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Progress of a queued payment, as reported by {@code GET /payment/{uuid}}.
+ */
+public class PaymentStatus {
+    private static final JsonWriter.Name UUID = JsonWriter.Name.of("uuid");
+    private static final JsonWriter.Name STATUS = JsonWriter.Name.of("status");
+    private static final JsonWriter.Name RESULT = JsonWriter.Name.of("result");
+
+    public enum State {
+        PENDING, COMPLETED, FAILED
+    }
+
+    private final String transactionUuid;
+    private final String fingerprint;
+    private final List<Consumer<PaymentStatus>> listeners = new ArrayList<>();
+    private volatile State state = State.PENDING;
+    private volatile String response;
+    private volatile long completedAt;
+
+    /**
+     * @param fingerprint the {@link PaymentController#fingerprint(Transaction) fingerprint} of the payment
+     */
+    PaymentStatus(String transactionUuid, String fingerprint) {
+        this.transactionUuid = transactionUuid;
+        this.fingerprint = fingerprint;
+    }
+
+    public String getTransactionUuid() {
+        return transactionUuid;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * The payment response body once the payment has finished, otherwise {@code null}.
+     */
+    public String getResponse() {
+        return response;
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    long getCompletedAt() {
+        return completedAt;
+    }
+
+    /**
+     * Calls {@code listener} once the payment has finished, right away if it already has.
+     */
+    void onFinished(Consumer<PaymentStatus> listener) {
+        synchronized (listeners) {
+            if (state == State.PENDING) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.accept(this);
+    }
+
+    void finish(State finalState, String finalResponse) {
+        List<Consumer<PaymentStatus>> toNotify;
+        synchronized (listeners) {
+            response = finalResponse;
+            completedAt = System.currentTimeMillis();
+            state = finalState;
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        toNotify.forEach(listener -> listener.accept(this));
+    }
+
+    String toJson() {
+        // The response is set before the state, so it is visible once the state says the payment has finished
+        State current = state;
+        String finalResponse = response;
+        JsonWriter writer = JsonWriter.get()
+                .beginObject()
+                .field(UUID, transactionUuid)
+                .field(STATUS, current.name());
+        if (finalResponse != null) {
+            writer.rawField(RESULT, finalResponse);
+        }
+        return writer.endObject().toString();
+    }
+}
@@ -0,0 +1,260 @@
+package no.bankaxept.home.assignment.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.shard.ConsistentHashRing;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Splits the cards between the payment nodes, so each card is debited by one node only.
+ * <p>
+ * Every node is configured with the same list of nodes, and a {@link ConsistentHashRing} gives each card an owner.
+ * A payment that arrives at another node is forwarded to its owner over HTTP, where it is paid like any other; the
+ * owner's answer, status and all, is passed back. The owner's {@link no.bankaxept.home.assignment.service.writer.TransactionWriter}
+ * then serialises and batches the card's debits without competing with other nodes for its balance row.
+ * <p>
+ * Each node probes the health endpoint of the others and takes a node off its ring when it does not answer, and
+ * back on when it does again; a forward that cannot connect takes the owner off at once and goes to the card's new
+ * owner. Only a forward that never reached its owner is sent elsewhere, so no payment is made twice. Nodes see a
+ * change at their own probe, so for up to one probe interval two nodes may both take payments for a card; the
+ * conditional debit in the database keeps the balance exact then. A {@link no.bankaxept.home.assignment.service.ledger.BalanceLedger}
+ * would not, since it debits from a balance it remembers, so sharding cannot be enabled together with the ledger.
+ */
+public class ShardRouter implements MeterBinder, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ShardRouter.class);
+
+    /**
+     * Marks a forwarded payment, which its receiver pays itself whoever it thinks the owner is, so a payment is
+     * never forwarded twice while two nodes disagree about the ring.
+     */
+    public static final String FORWARDED_HEADER = "X-Payment-Forwarded-By";
+
+    private final String self;
+    private final List<String> peers = new ArrayList<>();
+    private final ConsistentHashRing ring;
+    private final ObjectMapper objectMapper;
+    private final CloseableHttpAsyncClient client;
+    private final RequestConfig probeConfig;
+    private final ScheduledExecutorService prober;
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder rebalances = new LongAdder();
+
+    /**
+     * @param self          this node's URL, as it appears in {@code nodes}
+     * @param nodes         the URLs of all nodes, this one included
+     * @param forwardTimeout how long a forwarded payment may take; longer than the payment deadline, so the owner's
+     *                      timeout answer comes back
+     */
+    public ShardRouter(String self, Collection<String> nodes, int virtualNodes, ObjectMapper objectMapper,
+                       int connectTimeout, int forwardTimeout, int maxConnections, long probeIntervalMs) {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("This node, " + self + ", is not one of the shard nodes " + nodes);
+        }
+        this.self = self;
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                peers.add(node);
+            }
+        }
+        this.ring = new ConsistentHashRing(nodes, virtualNodes);
+        this.objectMapper = objectMapper;
+        this.client = HttpAsyncClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(connectTimeout).setSocketTimeout(forwardTimeout).build())
+                .setMaxConnTotal(maxConnections * Math.max(1, peers.size()))
+                .setMaxConnPerRoute(maxConnections)
+                .build();
+        client.start();
+        int probeTimeout = (int) Math.min(connectTimeout, probeIntervalMs);
+        this.probeConfig = RequestConfig.custom().setConnectTimeout(probeTimeout).setSocketTimeout(probeTimeout).build();
+        this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(this::probe, probeIntervalMs, probeIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The node that owns the card, or {@code null} when it is this one.
+     */
+    public String remoteOwner(String cardNumber) {
+        String owner = cardNumber == null ? null : ring.owner(cardNumber);
+        return owner == null || owner.equals(self) ? null : owner;
+    }
+
+    /**
+     * Sends the payment to {@code owner} and completes with its answer. If the owner cannot be reached the payment
+     * goes to the card's next owner, or to {@code local} once that is this node.
+     *
+     * @param idempotencyKey passed on, so the owner shares retries the way it would for its own clients; may be {@code null}
+     */
+    public CompletableFuture<ResponseEntity<String>> forward(String owner, Transaction transaction, String idempotencyKey,
+                                                             Supplier<CompletableFuture<ResponseEntity<String>>> local) {
+        CompletableFuture<ResponseEntity<String>> answer = new CompletableFuture<>();
+        HttpPost request = new HttpPost(owner + "/payment/pay");
+        request.setHeader(FORWARDED_HEADER, self);
+        if (idempotencyKey != null) {
+            request.setHeader("Idempotency-Key", idempotencyKey);
+        }
+        try {
+            request.setEntity(new StringEntity(objectMapper.writeValueAsString(transaction), ContentType.APPLICATION_JSON));
+        } catch (JsonProcessingException e) {
+            answer.completeExceptionally(e);
+            return answer;
+        }
+        forwarded.increment();
+        client.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    answer.complete(toResponseEntity(response));
+                } catch (IOException e) {
+                    answer.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                if (!(e instanceof ConnectException)) {
+                    // The owner may have the payment; sending it elsewhere could pay it twice
+                    answer.completeExceptionally(e);
+                    return;
+                }
+                logger.warn("Could not reach {}, which owns card {}: {}", owner, transaction.cardNumber, e.getMessage());
+                leave(owner);
+                String next = remoteOwner(transaction.cardNumber);
+                CompletableFuture<ResponseEntity<String>> retry;
+                try {
+                    retry = next == null ? local.get() : forward(next, transaction, idempotencyKey, local);
+                } catch (RuntimeException failure) {
+                    answer.completeExceptionally(failure);
+                    return;
+                }
+                retry.whenComplete((response, failure) -> {
+                    if (failure != null) {
+                        answer.completeExceptionally(failure);
+                    } else {
+                        answer.complete(response);
+                    }
+                });
+            }
+
+            @Override
+            public void cancelled() {
+                answer.cancel(false);
+            }
+        });
+        return answer;
+    }
+
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("payment.shard.nodes", ring, r -> r.getNodes().size())
+                .description("Nodes this node currently shares the cards with, itself included")
+                .register(registry);
+        FunctionCounter.builder("payment.shard.forwarded", forwarded, LongAdder::sum)
+                .description("Payments forwarded to the node that owns their card")
+                .register(registry);
+        FunctionCounter.builder("payment.shard.rebalances", rebalances, LongAdder::sum)
+                .description("Times a node joined or left this node's ring")
+                .register(registry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        prober.shutdownNow();
+        client.close();
+    }
+
+    private void probe() {
+        for (String peer : peers) {
+            HttpGet request = new HttpGet(peer + "/actuator/health");
+            request.setConfig(probeConfig);
+            client.execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    if (response.getStatusLine().getStatusCode() == 200) {
+                        join(peer);
+                    } else {
+                        leave(peer);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    leave(peer);
+                }
+
+                @Override
+                public void cancelled() {
+                }
+            });
+        }
+    }
+
+    private void join(String node) {
+        if (ring.add(node)) {
+            logger.info("Node {} joined; {} nodes share the cards", node, ring.getNodes().size());
+            rebalanced();
+        }
+    }
+
+    private void leave(String node) {
+        if (ring.remove(node)) {
+            logger.warn("Node {} left; {} nodes share the cards", node, ring.getNodes().size());
+            rebalanced();
+        }
+    }
+
+    private void rebalanced() {
+        rebalances.increment();
+    }
+
+    private static ResponseEntity<String> toResponseEntity(HttpResponse response) throws IOException {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(response.getStatusLine().getStatusCode());
+        for (String name : new String[]{HttpHeaders.CONTENT_TYPE, HttpHeaders.RETRY_AFTER}) {
+            Header header = response.getFirstHeader(name);
+            if (header != null) {
+                builder.header(name, header.getValue());
+            }
+        }
+        return builder.body(response.getEntity() == null ? null : EntityUtils.toString(response.getEntity()));
+    }
+}
@@ -0,0 +1,79 @@
+package no.bankaxept.home.assignment.web;
+
+import no.bankaxept.home.assignment.service.history.HistoryPage;
+import no.bankaxept.home.assignment.service.history.TransactionRecord;
+
+/**
+ * Bodies of the transaction history endpoints: a page as one JSON document, and an export as one JSON line or
+ * CSV row per transaction. Amounts and ids are written as strings in JSON, like the payment bodies.
+ */
+final class TransactionHistoryResponses {
+    private static final JsonWriter.Name CARD_NUMBER = JsonWriter.Name.of("cardNumber");
+    private static final JsonWriter.Name TRANSACTIONS = JsonWriter.Name.of("transactions");
+    private static final JsonWriter.Name NEXT = JsonWriter.Name.of("next");
+    private static final JsonWriter.Name ID = JsonWriter.Name.of("id");
+    private static final JsonWriter.Name UUID = JsonWriter.Name.of("uuid");
+    private static final JsonWriter.Name BANK = JsonWriter.Name.of("bank");
+    private static final JsonWriter.Name AMOUNT = JsonWriter.Name.of("amount");
+    private static final JsonWriter.Name DATE = JsonWriter.Name.of("date");
+    private static final JsonWriter.Name TYPE = JsonWriter.Name.of("type");
+
+    static final String CSV_HEADER = "id,uuid,cardNumber,bank,amount,date,type";
+
+    private TransactionHistoryResponses() {
+    }
+
+    /**
+     * {@code next} is the token that reads the following page, or {@code null} on the last page.
+     */
+    static String page(String cardNumber, HistoryPage page) {
+        JsonWriter writer = JsonWriter.get()
+                .beginObject()
+                .field(CARD_NUMBER, cardNumber)
+                .beginArray(TRANSACTIONS);
+        for (TransactionRecord transaction : page.getTransactions()) {
+            fields(writer.beginObject(), transaction).endObject();
+        }
+        return writer.endArray()
+                .field(NEXT, page.getNext() == null ? null : page.getNext().encode())
+                .endObject()
+                .toString();
+    }
+
+    static String jsonLine(TransactionRecord transaction) {
+        JsonWriter writer = JsonWriter.get().beginObject().field(CARD_NUMBER, transaction.getCardNumber());
+        return fields(writer, transaction).endObject().toString();
+    }
+
+    static String csvLine(TransactionRecord transaction) {
+        StringBuilder line = new StringBuilder(128)
+                .append(transaction.getId()).append(',');
+        csv(line, transaction.getUuid()).append(',');
+        csv(line, transaction.getCardNumber()).append(',');
+        csv(line, transaction.getBank()).append(',')
+                .append(transaction.getAmount()).append(',')
+                .append(transaction.getDate()).append(',');
+        return csv(line, transaction.getType()).toString();
+    }
+
+    private static JsonWriter fields(JsonWriter writer, TransactionRecord transaction) {
+        return writer
+                .field(ID, transaction.getId())
+                .field(UUID, transaction.getUuid())
+                .field(BANK, transaction.getBank())
+                .field(AMOUNT, transaction.getAmount())
+                .field(DATE, transaction.getDate())
+                .field(TYPE, transaction.getType());
+    }
+
+    // Quoted only when it has to be, with quotes doubled, as RFC 4180 has it; the uuid may be any client text
+    private static StringBuilder csv(StringBuilder line, String value) {
+        if (value == null) {
+            return line;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return line.append(value);
+        }
+        return line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+}
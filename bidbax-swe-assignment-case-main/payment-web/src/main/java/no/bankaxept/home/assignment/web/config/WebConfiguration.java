@@ -0,0 +1,144 @@
+package no.bankaxept.home.assignment.web.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.bankaxept.home.assignment.model.PaymentResult;
+import no.bankaxept.home.assignment.service.BatchPaymentService;
+import no.bankaxept.home.assignment.service.PaymentService;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
+import no.bankaxept.home.assignment.service.ledger.BalanceLedger;
+import no.bankaxept.home.assignment.service.queue.PaymentQueue;
+import no.bankaxept.home.assignment.web.AsyncPaymentProcessor;
+import no.bankaxept.home.assignment.web.BatchPaymentStream;
+import no.bankaxept.home.assignment.web.IdempotencyStore;
+import no.bankaxept.home.assignment.web.ShardRouter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+@Configuration
+public class WebConfiguration implements WebMvcConfigurer {
+
+    @Value("${payment.idempotency.ttl}")
+    private long idempotencyTtl;
+
+    @Value("${payment.idempotency.maxEntries}")
+    private int idempotencyMaxEntries;
+
+    @Value("${payment.queue.directory}")
+    private String queueDirectory;
+
+    @Value("${payment.queue.segmentSize}")
+    private int queueSegmentSize;
+
+    @Value("${payment.queue.capacity}")
+    private int queueCapacity;
+
+    @Value("${payment.queue.workers}")
+    private int queueWorkers;
+
+    @Value("${payment.queue.statusTtl}")
+    private long queueStatusTtl;
+
+    @Value("${payment.batch.chunkSize}")
+    private int batchChunkSize;
+
+    @Value("${payment.web.async.threads}")
+    private int asyncThreads;
+
+    @Value("${payment.web.async.queueCapacity}")
+    private int asyncQueueCapacity;
+
+    @Value("${payment.shard.self}")
+    private String shardSelf;
+
+    @Value("${payment.shard.nodes}")
+    private String[] shardNodes;
+
+    @Value("${payment.shard.virtualNodes}")
+    private int shardVirtualNodes;
+
+    @Value("${payment.shard.probeInterval}")
+    private long shardProbeInterval;
+
+    @Value("${payment.shard.connectTimeout}")
+    private int shardConnectTimeout;
+
+    @Value("${payment.shard.forwardTimeout}")
+    private int shardForwardTimeout;
+
+    @Value("${payment.shard.maxConnections}")
+    private int shardMaxConnections;
+
+    /**
+     * Runs the handlers that return a {@code Callable} or a streaming body. Without it Spring MVC starts a new
+     * thread for each such request; this one has a fixed number of threads and refuses work once its queue is full.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor mvcAsyncExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("mvc-async-");
+        executor.setCorePoolSize(asyncThreads);
+        executor.setMaxPoolSize(asyncThreads);
+        executor.setQueueCapacity(asyncQueueCapacity);
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(mvcAsyncExecutor());
+    }
+
+    // An unavailable bank or database, or a full executor, is worth retrying, so those outcomes are not replayed;
+    // a duplicate is an IOException too, but the final answer for its key
+    @Bean(destroyMethod = "close")
+    public IdempotencyStore<PaymentResult> idempotencyStore() {
+        return new IdempotencyStore<>(idempotencyTtl, idempotencyMaxEntries,
+                throwable -> (throwable instanceof IOException && !(throwable instanceof DuplicateTransactionException))
+                        || throwable instanceof RejectedExecutionException
+                        || (throwable instanceof DataAccessException && !(throwable instanceof DuplicateKeyException)));
+    }
+
+    @Bean(destroyMethod = "close")
+    public PaymentQueue paymentQueue() throws IOException {
+        return new PaymentQueue(Paths.get(queueDirectory), queueSegmentSize, queueCapacity);
+    }
+
+    @Bean(destroyMethod = "close")
+    public AsyncPaymentProcessor asyncPaymentProcessor(PaymentQueue paymentQueue, PaymentService paymentService) {
+        return new AsyncPaymentProcessor(paymentQueue, paymentService, queueWorkers, queueStatusTtl);
+    }
+
+    @Bean
+    public BatchPaymentStream batchPaymentStream(ObjectMapper objectMapper, BatchPaymentService batchPaymentService) {
+        return new BatchPaymentStream(objectMapper, batchPaymentService, batchChunkSize);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "payment.shard.enabled", havingValue = "true")
+    public ShardRouter shardRouter(ObjectMapper objectMapper, ObjectProvider<BalanceLedger> balanceLedger) {
+        // The ledger debits from balances it remembers, which another node may have debited since it last owned the card
+        if (balanceLedger.getIfAvailable() != null) {
+            throw new IllegalStateException("payment.shard.enabled and ledger.enabled cannot both be set: "
+                    + "a ledger's balances go stale when its cards move to another node");
+        }
+        List<String> nodes = new ArrayList<>();
+        for (String node : shardNodes) {
+            nodes.add(node.trim());
+        }
+        return new ShardRouter(shardSelf.trim(), nodes, shardVirtualNodes, objectMapper,
+                shardConnectTimeout, shardForwardTimeout, shardMaxConnections, shardProbeInterval);
+    }
+}
@@ -1,17 +1,23 @@
+-- uuid stays a string: it is a random UUID or the client's idempotency key, which may be any text up to 250
+-- characters, and H2 stores a VARCHAR at the length of its value, not the declared one
 CREATE TABLE transaction (
-  id INT AUTO_INCREMENT  PRIMARY KEY,
-  uuid VARCHAR(250) NOT NULL UNIQUE,
+  id BIGINT AUTO_INCREMENT  PRIMARY KEY,
+  uuid VARCHAR(250) NOT NULL,
   card VARCHAR(250) NOT NULL,
   bank VARCHAR(250) DEFAULT NULL,
   amount INT DEFAULT NULL,
-  date TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-  type VARCHAR(250) DEFAULT NULL
+  date TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,
+  type VARCHAR(250) DEFAULT NULL,
+  CONSTRAINT uk_transaction_uuid UNIQUE (uuid)
 );
 
+-- A card's history newest first, ties broken by id, read in index order without a scan or a sort; descending,
+-- since H2 does not read an index backwards
+CREATE INDEX idx_transaction_card_date ON transaction (card, date DESC, id DESC);
+
 CREATE TABLE balance (
   id INT AUTO_INCREMENT  PRIMARY KEY,
   cardNumber VARCHAR(250) NOT NULL,
-  amount INT DEFAULT NULL
+  amount INT DEFAULT NULL,
+  CONSTRAINT uk_balance_card UNIQUE (cardNumber)
 );
-
-CREATE INDEX idx_cardNumber ON balance (cardNumber);
\ No newline at end of file
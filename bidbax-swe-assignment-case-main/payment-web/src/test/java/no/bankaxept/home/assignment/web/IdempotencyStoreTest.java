@@ -0,0 +1,108 @@
+package no.bankaxept.home.assignment.web;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyStoreTest {
+
+    private IdempotencyStore<String> store;
+    private SimpleMeterRegistry registry;
+    private AtomicInteger runs;
+
+    @BeforeEach
+    void setUp() {
+        store = new IdempotencyStore<>(200, 100, throwable -> throwable instanceof IOException);
+        registry = new SimpleMeterRegistry();
+        store.bindTo(registry);
+        runs = new AtomicInteger();
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void testConcurrentDuplicateWaitsForTheOriginal() throws Exception {
+        CompletableFuture<String> original = new CompletableFuture<>();
+
+        CompletableFuture<String> first = store.execute("key", "request", () -> counted(original));
+        CompletableFuture<String> second = store.execute("key", "request", () -> counted(CompletableFuture.completedFuture("again")));
+
+        assertFalse(second.isDone());
+        original.complete("paid");
+        assertEquals("paid", first.get());
+        assertEquals("paid", second.get());
+        assertEquals(1, runs.get());
+        assertEquals(1, requests("joined"));
+    }
+
+    @Test
+    void testCompletedOutcomeIsReplayedUntilItExpires() throws Exception {
+        store.execute("key", "request", () -> counted(CompletableFuture.completedFuture("paid"))).get();
+
+        assertEquals("paid", store.execute("key", "request", () -> counted(CompletableFuture.completedFuture("again"))).get());
+        assertEquals(1, runs.get());
+        assertEquals(1, requests("replayed"));
+
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertEquals("again", store.execute("key", "request", () -> counted(CompletableFuture.completedFuture("again"))).get());
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    void testRetryableFailuresAreNotStored() throws Exception {
+        CompletableFuture<String> unavailable = new CompletableFuture<>();
+        unavailable.completeExceptionally(new IOException("Bank unavailable"));
+        CompletableFuture<String> declined = new CompletableFuture<>();
+        declined.completeExceptionally(new IllegalStateException("Declined"));
+
+        assertThrows(ExecutionException.class, () -> store.execute("retry", "request", () -> counted(unavailable)).get());
+        assertEquals("paid", store.execute("retry", "request", () -> counted(CompletableFuture.completedFuture("paid"))).get());
+
+        assertThrows(ExecutionException.class, () -> store.execute("final", "request", () -> counted(declined)).get());
+        assertThrows(ExecutionException.class, () -> store.execute("final", "request", () -> counted(CompletableFuture.completedFuture("paid"))).get());
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    void testKeyCannotBeReusedForADifferentRequest() {
+        store.execute("key", "request", () -> counted(new CompletableFuture<>()));
+
+        assertThrows(IdempotencyKeyException.class, () -> store.execute("key", "other request", () -> counted(new CompletableFuture<>())));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void testExpiredKeysAreSwept() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store.execute("key-" + i, "request", () -> CompletableFuture.completedFuture("paid"));
+        }
+        assertEquals(10, store.size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.size() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "expired keys were not swept");
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+    }
+
+    private CompletableFuture<String> counted(CompletableFuture<String> outcome) {
+        runs.incrementAndGet();
+        return outcome;
+    }
+
+    private double requests(String outcome) {
+        return registry.get("payment.idempotency.requests").tag("outcome", outcome).functionCounter().count();
+    }
+}
@@ -1,42 +1,74 @@
 package no.bankaxept.home.assignment.web;
 
+import no.bankaxept.home.assignment.model.PaymentResult;
 import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.BatchPayment;
+import no.bankaxept.home.assignment.service.BatchPaymentResult;
+import no.bankaxept.home.assignment.service.BatchPaymentService;
 import no.bankaxept.home.assignment.service.PaymentService;
 import no.bankaxept.home.assignment.service.exception.BankValidationException;
+import no.bankaxept.home.assignment.service.exception.DuplicateTransactionException;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import no.bankaxept.home.assignment.service.exception.PaymentRejectedException;
+import no.bankaxept.home.assignment.service.exception.TooManyExportsException;
+import no.bankaxept.home.assignment.service.history.TransactionHistory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.Map;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 
-@SpringBootTest
+@SpringBootTest(properties = "payment.queue.directory=target/test-queue")
+@AutoConfigureMockMvc
 public class PaymentControllerTest {
 
     @Autowired
     private MockMvc mockMvc;
 
-    @Mock
+    @MockBean
     private PaymentService paymentService;
 
-    @InjectMocks
-    private PaymentController paymentController;
+    @MockBean
+    private BatchPaymentService batchPaymentService;
+
+    @SpyBean
+    private TransactionHistory transactionHistory;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
 
     private Transaction transaction;
 
@@ -52,31 +84,29 @@ public class PaymentControllerTest {
     public void testPay_Success() throws Exception {
         // Mock the service response
 
-        Map<String, Object> mockedPaymentResponse = new HashMap<>();
-        mockedPaymentResponse.put("balance", 900);
-        mockedPaymentResponse.put("duration", "3ms");
+        PaymentResult mockedPaymentResponse = new PaymentResult(900, 3, Instant.parse("2024-05-01T12:30:00.123Z"));
 
         when(paymentService.pay(Mockito.any(), Mockito.anyString()))
-                .thenReturn(java.util.concurrent.CompletableFuture.completedFuture(mockedPaymentResponse));
+                .thenReturn(CompletableFuture.completedFuture(mockedPaymentResponse));
 
         // Perform the POST request and verify the response
-        mockMvc.perform(post("/payment/pay")
+        mockMvc.perform(dispatch(post("/payment/pay")
                         .contentType(MediaType.APPLICATION_JSON)
-                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}"))
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}")))
                 .andExpect(status().isOk())
-                .andExpect(content().json("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":\"100\",\"transactionTimestamp\":\"2024-11-10T12:00:00.000+00:00\",\"currentAccountBalance\":\"900.0\",\"duration\":\"3ms\"}"));
+                .andExpect(content().json("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":\"100\",\"currentAccountBalance\":\"900\",\"duration\":\"3\"}"));
     }
 
     @Test
     public void testPay_DatabaseError() throws Exception {
         // Simulate a DataAccessException
         when(paymentService.pay(Mockito.any(), Mockito.anyString()))
-                .thenThrow(new RuntimeException("Database error"));
+                .thenThrow(new DataAccessResourceFailureException("Database error"));
 
         // Perform the POST request and verify the response
-        mockMvc.perform(post("/payment/pay")
+        mockMvc.perform(dispatch(post("/payment/pay")
                         .contentType(MediaType.APPLICATION_JSON)
-                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100.0}"))
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100.0}")))
                 .andExpect(status().isOk())
                 .andExpect(content().json("{\"bank\":\"TestBank\",\"error\":\"Database error\",\"reason\":\"Database error\"}"));
     }
@@ -88,38 +118,285 @@ public class PaymentControllerTest {
                 .thenThrow(new BankValidationException("TestBank", "Bank validation failed"));
 
         // Perform the POST request and verify the response
-        mockMvc.perform(post("/payment/pay")
+        mockMvc.perform(dispatch(post("/payment/pay")
                         .contentType(MediaType.APPLICATION_JSON)
-                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100.0}"))
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100.0}")))
                 .andExpect(status().isOk())
                 .andExpect(content().json("{\"bank\":\"TestBank\",\"error\":\"Bank validation failed\",\"reason\":\"Bank validation failed\"}"));
     }
 
     @Test
     public void testPay_IOError() throws Exception {
-        // Simulate an IOException
-        when(paymentService.pay(Mockito.any(), Mockito.anyString()))
-                .thenThrow(new IOException("IO error"));
+        // Simulate an IOException, such as a journal that cannot be written
+        CompletableFuture<PaymentResult> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException("IO error"));
+        when(paymentService.pay(Mockito.any(), Mockito.anyString())).thenReturn(failed);
 
         // Perform the POST request and verify the response
-        mockMvc.perform(post("/payment/pay")
+        mockMvc.perform(dispatch(post("/payment/pay")
                         .contentType(MediaType.APPLICATION_JSON)
-                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100.0}"))
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100.0}")))
                 .andExpect(status().isOk())
                 .andExpect(content().json("{\"bank\":\"TestBank\",\"error\":\"IO error\",\"reason\":\"IO error\"}"));
     }
 
     @Test
-    public void testPay_URISyntaxException() throws Exception {
-        // Simulate a URISyntaxException
+    public void testPay_BankRejectsAsynchronously() throws Exception {
+        // Simulate a bank rejection arriving after the request thread has been released
+        CompletableFuture<PaymentResult> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(new BankValidationException("Loaners", "Transaction not approved by Loaners."));
+        when(paymentService.pay(Mockito.any(), Mockito.anyString())).thenReturn(rejected);
+
+        mockMvc.perform(dispatch(post("/payment/pay")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"Loaners\",\"amount\":150}")))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"bank\":\"Loaners\",\"error\":\"Bank validation failed\",\"reason\":\"Transaction not approved by Loaners.\"}"));
+    }
+
+    @Test
+    public void testPay_ExecutorFull() throws Exception {
         when(paymentService.pay(Mockito.any(), Mockito.anyString()))
-                .thenThrow(new URISyntaxException("uri", "URI error"));
+                .thenThrow(new PaymentRejectedException("small", true, "Too many payments in progress. Please try again later."));
 
-        // Perform the POST request and verify the response
+        mockMvc.perform(dispatch(post("/payment/pay")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}")))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "1"))
+                .andExpect(content().json("{\"error\":\"Payment rejected.\"}"));
+    }
+
+    @Test
+    public void testPay_RetryWithIdempotencyKeyReplaysTheResponse() throws Exception {
+        PaymentResult mockedPaymentResponse = new PaymentResult(900, 3, Instant.parse("2024-05-01T12:30:00.123Z"));
+        when(paymentService.pay(Mockito.any(), Mockito.eq("retry-key-1")))
+                .thenReturn(CompletableFuture.completedFuture(mockedPaymentResponse));
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            mockMvc.perform(dispatch(post("/payment/pay")
+                            .header("Idempotency-Key", "retry-key-1")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}")))
+                    .andExpect(status().isOk())
+                    .andExpect(content().json("{\"currentAccountBalance\":\"900\"}"));
+        }
+
+        // The key is used as the transaction id, and the retry never reaches the service
+        verify(paymentService, times(1)).pay(Mockito.any(), Mockito.eq("retry-key-1"));
+    }
+
+    @Test
+    public void testPay_DuplicateIsTheFinalAnswerForItsKey() throws Exception {
+        CompletableFuture<PaymentResult> duplicate = new CompletableFuture<>();
+        duplicate.completeExceptionally(new DuplicateTransactionException());
+        when(paymentService.pay(Mockito.any(), Mockito.eq("duplicate-key"))).thenReturn(duplicate);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            mockMvc.perform(dispatch(post("/payment/pay")
+                            .header("Idempotency-Key", "duplicate-key")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}")))
+                    .andExpect(status().isOk())
+                    .andExpect(content().json("{\"error\":\"IO error\",\"reason\":\"Duplicate transaction detected.\"}"));
+        }
+
+        // Unlike an IOException of an unavailable bank, the retry is answered without asking the service again
+        verify(paymentService, times(1)).pay(Mockito.any(), Mockito.eq("duplicate-key"));
+    }
+
+    @Test
+    public void testPay_IdempotencyKeyReusedForAnotherPayment() throws Exception {
+        when(paymentService.pay(Mockito.any(), Mockito.anyString())).thenReturn(new CompletableFuture<>());
         mockMvc.perform(post("/payment/pay")
+                .header("Idempotency-Key", "reused-key")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}"));
+
+        mockMvc.perform(post("/payment/pay")
+                        .header("Idempotency-Key", "reused-key")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":200}"))
+                .andExpect(status().isUnprocessableEntity())
+                .andExpect(content().json("{\"error\":\"Invalid idempotency key.\"}"));
+    }
+
+    @Test
+    public void testPayAsync_AcceptedAndPolled() throws Exception {
+        PaymentResult mockedPaymentResponse = new PaymentResult(900, 3, Instant.parse("2024-05-01T12:30:00.123Z"));
+        CompletableFuture<PaymentResult> payment = new CompletableFuture<>();
+        when(paymentService.pay(Mockito.any(), Mockito.eq("async-key-1"))).thenReturn(payment);
+
+        mockMvc.perform(post("/payment/async")
+                        .header("Idempotency-Key", "async-key-1")
                         .contentType(MediaType.APPLICATION_JSON)
-                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100.0}"))
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}"))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string("Location", "/payment/async-key-1"))
+                .andExpect(content().json("{\"uuid\":\"async-key-1\",\"status\":\"PENDING\"}"));
+        mockMvc.perform(get("/payment/async-key-1"))
                 .andExpect(status().isOk())
-                .andExpect(content().json("{\"bank\":\"TestBank\",\"error\":\"URI error\",\"reason\":\"URI error\"}"));
+                .andExpect(content().json("{\"status\":\"PENDING\"}"));
+
+        payment.complete(mockedPaymentResponse);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mockMvc.perform(get("/payment/async-key-1")).andReturn().getResponse().getContentAsString().contains("COMPLETED")) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("queued payment was not processed");
+            }
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        mockMvc.perform(get("/payment/async-key-1"))
+                .andExpect(content().json("{\"status\":\"COMPLETED\",\"result\":{\"currentAccountBalance\":\"900\"}}"));
+        mockMvc.perform(get("/payment/unknown-payment"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testPayAsync_IdempotencyKeyReusedForAnotherPayment() throws Exception {
+        // A fresh key, since the queue directory outlives the test run
+        String key = "async-reused-" + UUID.randomUUID();
+        CompletableFuture<PaymentResult> payment = new CompletableFuture<>();
+        when(paymentService.pay(Mockito.any(), Mockito.eq(key))).thenReturn(payment);
+        mockMvc.perform(post("/payment/async")
+                        .header("Idempotency-Key", key)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}"))
+                .andExpect(status().isAccepted());
+
+        mockMvc.perform(post("/payment/async")
+                        .header("Idempotency-Key", key)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":200}"))
+                .andExpect(status().isUnprocessableEntity())
+                .andExpect(content().json("{\"error\":\"Invalid idempotency key.\"}"));
+        // The same payment again still reports the first submission
+        mockMvc.perform(post("/payment/async")
+                        .header("Idempotency-Key", key)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100}"))
+                .andExpect(status().isAccepted())
+                .andExpect(content().json("{\"uuid\":\"" + key + "\",\"status\":\"PENDING\"}"));
+        payment.complete(new PaymentResult(900, 3, Instant.parse("2024-05-01T12:30:00.123Z")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPayBatch_StreamsOneLinePerPayment() throws Exception {
+        when(batchPaymentService.pay(Mockito.anyList(), Mockito.any())).thenAnswer(invocation -> {
+            List<BatchPayment> payments = invocation.getArgument(0);
+            Consumer<BatchPaymentResult> listener = invocation.getArgument(1);
+            listener.accept(BatchPaymentResult.failed(payments.get(1), new InsufficientFundsException(50, 300, "TestBank")));
+            listener.accept(BatchPaymentResult.paid(payments.get(0), new PaymentResult(900, 3, Instant.parse("2024-05-01T12:30:00.123Z"))));
+            return CompletableFuture.completedFuture(null);
+        });
+
+        String body = mockMvc.perform(post("/payment/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"id\":\"batch-1\",\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":100},"
+                                + "{\"cardNumber\":\"8765432187654321\",\"bank\":\"TestBank\",\"amount\":\"300\"},"
+                                + "{\"cardNumber\":\"1234567812345678\",\"bank\":\"TestBank\",\"amount\":-5}]"))
+                .andExpect(request().asyncNotStarted())
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", containsString("application/x-ndjson")))
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = body.split("\n");
+        assertEquals(3, lines.length);
+        // The invalid payment is answered while reading, before the valid ones are paid
+        assertTrue(lines[0].startsWith("{\"index\":\"2\","));
+        assertTrue(lines[0].contains("\"status\":\"FAILED\",\"result\":{\"bank\":\"TestBank\",\"error\":\"Invalid payment\""));
+        assertTrue(lines[1].startsWith("{\"index\":\"1\","));
+        assertTrue(lines[1].contains("\"error\":\"Insufficient funds.\""));
+        assertTrue(lines[2].startsWith("{\"index\":\"0\",\"uuid\":\"batch-1\",\"status\":\"COMPLETED\""));
+        assertTrue(lines[2].contains("\"currentAccountBalance\":\"900\""));
+    }
+
+    @Test
+    public void testPayBatch_RequestThatIsNotAnArray() throws Exception {
+        mockMvc.perform(post("/payment/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"cardNumber\":\"1234567812345678\"}"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("{\"error\":\"Invalid request\",\"reason\":\"Expected a JSON array of payments.\"}\n"));
+    }
+
+    @Test
+    public void testPrometheusEndpoint() throws Exception {
+        mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("payment_executor_rejected_total")));
+    }
+
+    // The endpoint completes asynchronously, so the result is only available after the async dispatch
+    @Test
+    public void testHistory_PagesNewestFirst() throws Exception {
+        insertHistory("history-1", "2024-05-01T12:00:00Z", "small");
+        insertHistory("history-2", "2024-05-01T12:01:00Z", "big");
+        insertHistory("history-3", "2024-05-01T12:02:00Z", "small");
+
+        MvcResult first = mockMvc.perform(get("/payment/cards/5555000011112222/transactions").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"cardNumber\":\"5555000011112222\",\"transactions\":["
+                        + "{\"uuid\":\"history-3\",\"bank\":\"Loaners\",\"amount\":\"10\",\"date\":\"2024-05-01T12:02:00.000Z\",\"type\":\"small\"},"
+                        + "{\"uuid\":\"history-2\",\"type\":\"big\"}]}"))
+                .andReturn();
+        String next = first.getResponse().getContentAsString().replaceAll(".*\"next\":\"([^\"]+)\".*", "$1");
+
+        mockMvc.perform(get("/payment/cards/5555000011112222/transactions").param("limit", "2").param("after", next))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"transactions\":[{\"uuid\":\"history-1\"}],\"next\":null}"));
+
+        mockMvc.perform(get("/payment/cards/5555000011112222/transactions").param("type", "medium"))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().json("{\"error\":\"Invalid history query.\",\"reason\":\"type must be big or small.\"}"));
+        mockMvc.perform(get("/payment/cards/5555000011112222/transactions").param("after", "garbage"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testHistoryExport_Csv() throws Exception {
+        insertHistory("export-1", "2024-05-01T12:00:00Z", "small");
+        insertHistory("export,2", "2024-05-01T12:01:00Z", "big");
+
+        String csv = mockMvc.perform(get("/payment/cards/5555000033334444/transactions/export")
+                        .param("format", "csv").param("from", "2024-05-01T00:00:00Z"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", containsString("text/csv")))
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = csv.split("\r\n");
+        assertEquals(3, lines.length);
+        assertEquals("id,uuid,cardNumber,bank,amount,date,type", lines[0]);
+        assertTrue(lines[1].endsWith(",\"export,2\",5555000033334444,Loaners,10,2024-05-01T12:01:00Z,big"), lines[1]);
+        assertTrue(lines[2].endsWith(",export-1,5555000033334444,Loaners,10,2024-05-01T12:00:00Z,small"), lines[2]);
+
+        mockMvc.perform(get("/payment/cards/5555000033334444/transactions/export").param("format", "xml"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testHistoryExport_TooManyRunning() throws Exception {
+        doThrow(new TooManyExportsException("Too many history exports are running; try again shortly."))
+                .when(transactionHistory).export(Mockito.any(), Mockito.any());
+
+        mockMvc.perform(get("/payment/cards/5555000033334444/transactions/export").param("format", "csv"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "1"))
+                .andExpect(header().string("Content-Type", containsString("application/json")))
+                .andExpect(content().json("{\"error\":\"Export rejected.\"}"));
+    }
+
+    private void insertHistory(String uuid, String date, String type) {
+        String card = uuid.startsWith("export") ? "5555000033334444" : "5555000011112222";
+        jdbcTemplate.update("INSERT INTO transaction (bank, uuid, card, amount, date, type) VALUES ('Loaners', ?, ?, 10, ?, ?)",
+                uuid, card, Timestamp.from(Instant.parse(date)), type);
+    }
+
+    private RequestBuilder dispatch(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return asyncDispatch(result);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,55 @@
+package no.bankaxept.home.assignment.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.bankaxept.home.assignment.model.PaymentResult;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.exception.InsufficientFundsException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaymentResponsesTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void testSuccessBodyHasAnIsoTimestamp() throws Exception {
+        PaymentResult result = new PaymentResult(750, 12, Instant.parse("2024-05-01T12:30:00.007Z"));
+        JsonNode body = objectMapper.readTree(PaymentResponses.success(new Transaction("001", 250, "The Big Bank"), result));
+
+        assertEquals("001", body.path("cardNumber").asText());
+        assertEquals("250", body.path("amount").asText());
+        assertEquals("750", body.path("currentAccountBalance").asText());
+        assertEquals("12", body.path("duration").asText());
+        assertEquals("2024-05-01T12:30:00.007Z", body.path("transactionTimestamp").asText());
+    }
+
+    @Test
+    void testValuesAreEscaped() throws Exception {
+        String reason = "Bank said \"no\"\\\n\ttwice\u0001\u2028";
+
+        JsonNode body = objectMapper.readTree(PaymentResponses.error("The \"Big\" Bank", "IO error", reason));
+
+        assertEquals("The \"Big\" Bank", body.path("bank").asText());
+        assertEquals(reason, body.path("reason").asText());
+    }
+
+    @Test
+    void testInsufficientFundsBodyIsValidJson() throws Exception {
+        JsonNode body = objectMapper.readTree(PaymentResponses.insufficientFunds(new InsufficientFundsException(100, 250, "Loaners")));
+
+        assertEquals("Insufficient funds.", body.path("error").asText());
+        assertEquals("You tried to pay '250', but have only '100' available.", body.path("reason").asText());
+    }
+
+    @Test
+    void testBankIsLeftOutWhenThereIsNone() throws Exception {
+        JsonNode body = objectMapper.readTree(PaymentResponses.error(null, "Payment rejected.", "Too busy"));
+
+        assertFalse(body.has("bank"));
+        assertEquals("Too busy", body.path("reason").asText());
+    }
+}
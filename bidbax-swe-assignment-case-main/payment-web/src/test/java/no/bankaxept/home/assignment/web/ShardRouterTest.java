@@ -0,0 +1,137 @@
+package no.bankaxept.home.assignment.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import no.bankaxept.home.assignment.model.Transaction;
+import no.bankaxept.home.assignment.service.ledger.BalanceLedger;
+import no.bankaxept.home.assignment.web.config.WebConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ShardRouterTest {
+
+    private static final String SELF = "http://self";
+
+    private HttpServer peer;
+    private String peerUrl;
+    private String deadUrl;
+    private ShardRouter router;
+    private final Map<String, String> received = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        peer.createContext("/payment/pay", exchange -> {
+            received.put("forwardedBy", exchange.getRequestHeaders().getFirst(ShardRouter.FORWARDED_HEADER));
+            received.put("idempotencyKey", exchange.getRequestHeaders().getFirst("Idempotency-Key"));
+            received.put("body", new Scanner(exchange.getRequestBody(), "UTF-8").useDelimiter("\\A").next());
+            byte[] body = "{\"error\":\"Too many requests\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(429, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        peer.createContext("/actuator/health", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        peer.start();
+        peerUrl = "http://localhost:" + peer.getAddress().getPort();
+        try (ServerSocket closed = new ServerSocket(0)) {
+            deadUrl = "http://localhost:" + closed.getLocalPort();
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (router != null) {
+            router.close();
+        }
+        peer.stop(0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testShardingIsRefusedTogetherWithTheLedger() {
+        ObjectProvider<BalanceLedger> ledger = mock(ObjectProvider.class);
+        when(ledger.getIfAvailable()).thenReturn(mock(BalanceLedger.class));
+
+        assertThrows(IllegalStateException.class, () -> new WebConfiguration().shardRouter(new ObjectMapper(), ledger));
+    }
+
+    @Test
+    void testPaymentIsForwardedToTheOwnerAndItsAnswerPassedBack() throws Exception {
+        router = router(60000, SELF, peerUrl);
+        String card = cardOwnedBy(peerUrl);
+
+        ResponseEntity<String> answer = router.forward(peerUrl, new Transaction(card, 100, "Loaners"), "key-1",
+                () -> CompletableFuture.completedFuture(ResponseEntity.ok("paid here"))).get(5, TimeUnit.SECONDS);
+
+        assertEquals(429, answer.getStatusCodeValue());
+        assertEquals("1", answer.getHeaders().getFirst("Retry-After"));
+        assertEquals("{\"error\":\"Too many requests\"}", answer.getBody());
+        assertEquals(SELF, received.get("forwardedBy"));
+        assertEquals("key-1", received.get("idempotencyKey"));
+        assertTrue(received.get("body").contains("\"cardNumber\":\"" + card + "\""));
+    }
+
+    @Test
+    void testOwnerThatCannotBeReachedLeavesAndItsCardsArePaidElsewhere() throws Exception {
+        router = router(60000, SELF, deadUrl);
+        String card = cardOwnedBy(deadUrl);
+
+        ResponseEntity<String> answer = router.forward(deadUrl, new Transaction(card, 100, "Loaners"), null,
+                () -> CompletableFuture.completedFuture(ResponseEntity.ok("paid here"))).get(5, TimeUnit.SECONDS);
+
+        assertEquals("paid here", answer.getBody());
+        assertEquals(new HashSet<>(Arrays.asList(SELF)), router.getRing().getNodes());
+        assertNull(router.remoteOwner(card));
+    }
+
+    @Test
+    void testProbesTakeAnUnhealthyNodeOffTheRing() throws Exception {
+        router = router(50, SELF, peerUrl, deadUrl);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (router.getRing().getNodes().contains(deadUrl) && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList(SELF, peerUrl)), router.getRing().getNodes());
+    }
+
+    private ShardRouter router(long probeIntervalMs, String... nodes) {
+        return new ShardRouter(SELF, Arrays.asList(nodes), 64, new ObjectMapper(), 1000, 5000, 10, probeIntervalMs);
+    }
+
+    private String cardOwnedBy(String node) {
+        for (int i = 0; ; i++) {
+            String card = String.format("4000%012d", i);
+            if (node.equals(router.remoteOwner(card))) {
+                return card;
+            }
+        }
+    }
+}